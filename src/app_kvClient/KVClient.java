@@ -8,12 +8,14 @@ import org.apache.log4j.Level;
 
 import client.KVCommInterface;
 import client.KVStore;
+import client.ScanPage;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.UnknownHostException;
 import java.util.Arrays;
+import java.util.Map;
 
 public class KVClient implements IKVClient, IClientSocketListener {
     private static Logger logger = Logger.getRootLogger();
@@ -26,7 +28,8 @@ public class KVClient implements IKVClient, IClientSocketListener {
 
     @Override
     public void newConnection(String hostname, int port) throws Exception{
-        this.client = new KVStore(hostname, port);
+        // the text protocol, so the frames printed are the ones sent
+        this.client = new KVStore(hostname, port, false);
         this.client.addListener(this);
         this.client.connect();
     }
@@ -113,6 +116,34 @@ public class KVClient implements IKVClient, IClientSocketListener {
                 this.printError("Invalid number of parameters. Usage: put <key> <value> or put <key> to delete.");
             }
 
+        } else if (tokens[0].equals("putttl")){
+            /* put request whose tuple expires after <seconds> */
+            if(tokens.length >= 4) {
+                if (this.client!= null && this.client.isRunning()){
+                    String inputKey = tokens[1];
+                    String[] subTokenArray = Arrays.copyOfRange(tokens, 3, tokens.length);
+                    String inputValue = String.join(" ", subTokenArray);
+                    try {
+                        long ttl = Long.parseLong(tokens[2]);
+                        KVMessage receiveMsg = this.client.put(inputKey, inputValue, ttl);
+                        this.handleNewMessage(receiveMsg);
+                    }
+                    catch (NumberFormatException e){
+                        this.printError("Invalid time-to-live. Usage: putttl <key> <seconds> <value>.");
+                    }
+                    catch (Exception e){
+                        printError("Unable to perform put");
+                        this.client.disconnect();
+                    }
+                }
+                else{
+                    this.printError("Client not connected.");
+                }
+            }
+            else {
+                this.printError("Invalid number of parameters. Usage: putttl <key> <seconds> <value>.");
+            }
+
         } else if (tokens[0].equals("get")){
             /* get put command abd send out put request */
             if(tokens.length == 2) {
@@ -136,6 +167,78 @@ public class KVClient implements IKVClient, IClientSocketListener {
             else {
                 this.printError("Invalid number of parameters. Usage: put <key> <value>.");
             }
+        } else if (tokens[0].equals("scan") || tokens[0].equals("scanprefix")){
+            boolean prefix = tokens[0].equals("scanprefix");
+            int bounds = prefix ? 1 : 2;
+            if(tokens.length == bounds + 1 || tokens.length == bounds + 2) {
+                if (this.client!= null && this.client.isRunning()){
+                    try {
+                        int limit = tokens.length > bounds + 1 ? Integer.parseInt(tokens[bounds + 1]) : 0;
+                        ScanPage page = prefix ? this.client.scanPrefix(tokens[1], limit)
+                                : this.client.scan(tokens[1], tokens[2].equals("*") ? null : tokens[2], limit);
+                        for (KVMessage entry : page.getEntries()) {
+                            this.handleNewMessage(entry);
+                        }
+                        this.handleNewMessage(page.getEnd());
+                    }
+                    catch (NumberFormatException e){
+                        this.printError("Invalid limit. Usage: scan <from> <to> [<limit>] or scanprefix <prefix> [<limit>].");
+                    }
+                    catch (Exception e) {
+                        printError("Unable to perform scan");
+                        this.client.disconnect();
+                    }
+                }
+                else{
+                    this.printError("Client not connected.");
+                }
+            }
+            else {
+                this.printError("Invalid number of parameters. Usage: scan <from> <to> [<limit>] or scanprefix <prefix> [<limit>].");
+            }
+        } else if (tokens[0].equals("mget")){
+            if(tokens.length >= 2) {
+                if (this.client!= null && this.client.isRunning()){
+                    try {
+                        Map<String, KVMessage> tuples = this.client.mget(
+                                Arrays.asList(tokens).subList(1, tokens.length));
+                        for (KVMessage entry : tuples.values()) {
+                            this.handleNewMessage(entry);
+                        }
+                        System.out.println(PROMPT + "Found " + tuples.size() + " of "
+                                + (tokens.length - 1) + " keys.");
+                    }
+                    catch (Exception e) {
+                        printError("Unable to perform mget");
+                        this.client.disconnect();
+                    }
+                }
+                else{
+                    this.printError("Client not connected.");
+                }
+            }
+            else {
+                this.printError("Invalid number of parameters. Usage: mget <key> [<key> ...].");
+            }
+        } else if (tokens[0].equals("snapshot")){
+            if(tokens.length == 2) {
+                if (this.client!= null && this.client.isRunning()){
+                    try {
+                        KVMessage receiveMsg = this.client.snapshot(tokens[1]);
+                        this.handleNewMessage(receiveMsg);
+                    }
+                    catch (Exception e) {
+                        printError("Unable to perform snapshot");
+                        this.client.disconnect();
+                    }
+                }
+                else{
+                    this.printError("Client not connected.");
+                }
+            }
+            else {
+                this.printError("Invalid number of parameters. Usage: snapshot <name>.");
+            }
         } else if(tokens[0].equals("disconnect")) {
             this.client.disconnect();
 
@@ -171,10 +274,20 @@ public class KVClient implements IKVClient, IClientSocketListener {
         sb.append("\t establishes a connection to a server\n");
         sb.append(PROMPT).append("put <key> <value>");
         sb.append("\t\t puts a key value pair to the server \n");
+        sb.append(PROMPT).append("putttl <key> <seconds> <value>");
+        sb.append("\t puts a key value pair that expires after <seconds>\n");
         sb.append(PROMPT).append("put <key>");
         sb.append("\t\t deletes a key value pair from the server with <key>\n");
         sb.append(PROMPT).append("get <key>");
         sb.append("\t\t gets the value of the <key> stored in the server\n");
+        sb.append(PROMPT).append("scan <from> <to> [<limit>]");
+        sb.append("\t gets the pairs with keys from <from> up to <to>, * for no end\n");
+        sb.append(PROMPT).append("scanprefix <prefix> [<limit>]");
+        sb.append("\t gets the pairs with keys starting with <prefix>\n");
+        sb.append(PROMPT).append("mget <key> [<key> ...]");
+        sb.append("\t gets the values of several keys at once\n");
+        sb.append(PROMPT).append("snapshot <name>");
+        sb.append("\t\t saves a snapshot of the server's data under <name>\n");
         sb.append(PROMPT).append("disconnect");
         sb.append("\t\t\t disconnects from the server \n");
 
@@ -1,11 +1,16 @@
 package app_kvServer;
 
+import java.io.EOFException;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 
+import app_kvServer.storage.IKVStorage;
 import org.apache.log4j.*;
+import shared.messages.BinaryProtocol;
 import shared.messages.KVMessage.StatusType;
 import shared.messages.Message;
 import shared.messages.MessengerModule;
@@ -22,12 +27,23 @@ public class ClientConnection implements Runnable {
 
     private static Logger logger = Logger.getRootLogger();
 
+    /* values from this size on are sent from the data file with transferTo,
+       smaller ones cost less to copy than the extra writes of a split frame */
+    private static final int DIRECT_GET_MIN_SIZE = 16 * 1024;
+
     private boolean isOpen;
 
     private Socket clientSocket;
     private KVServer server;
 
     private MessengerModule messenger;
+    private RequestHandler handler;
+    /* sends the frames that precede a response straight to the socket */
+    private final RequestHandler.Responder responder = new RequestHandler.Responder() {
+        public void send(Message msg) throws IOException {
+            messenger.sendMessage(msg);
+        }
+    };
 
     private InputStream input;
     private OutputStream output;
@@ -42,9 +58,28 @@ public class ClientConnection implements Runnable {
         this.clientSocket = clientSocket;
         this.server = server;
         this.messenger = new MessengerModule(clientSocket);
+        this.handler = new RequestHandler(server);
         this.isOpen = true;
     }
 
+    /**
+     * Answers with SERVER_BUSY and closes the connection, for a client the
+     * server has no capacity to serve.
+     */
+    public void reject() {
+        try {
+            messenger.sendMessage(RequestHandler.busy(""));
+        } catch (IOException ioe) {
+            logger.error("Error! Unable to reject connection!", ioe);
+        } finally {
+            try {
+                clientSocket.close();
+            } catch (IOException ioe) {
+                logger.error("Error! Unable to tear down connection!", ioe);
+            }
+        }
+    }
+
     /**
      * Initializes and starts the client connection.
      * Loops until the connection is closed or aborted by the client.
@@ -62,18 +97,18 @@ public class ClientConnection implements Runnable {
                             + clientSocket.getPort() + ">: '"
                             + receivedMsg.getMsg().trim() + "'");
 
-                    String key = receivedMsg.getKey();
-                    String value = receivedMsg.getValue();
-
-                    Message res = null;
-                    switch (receivedMsg.getStatus()) {
-                        case GET:
-                            res = this.handleGet(key);
-                            break;
-                        case PUT:
-                            res = this.handlePut(key, value);
-                            break;
+                    if (receivedMsg.getStatus() == StatusType.HELLO) {
+                        // answered in and followed by frames of the version agreed on
+                        messenger.setVersion(BinaryProtocol.negotiate(receivedMsg.getOption()));
+                        messenger.sendMessage(BinaryProtocol.hello(messenger.getVersion()));
+                        continue;
+                    }
+                    if (receivedMsg.getStatus() == StatusType.GET
+                            && this.transferGet(receivedMsg)) {
+                        // the response went out straight from the data file
+                        continue;
                     }
+                    Message res = handler.handle(receivedMsg, responder, messenger.getVersion() == 0);
 
                     if(res != null) {
                         messenger.sendMessage(res);
@@ -85,11 +120,21 @@ public class ClientConnection implements Runnable {
                         logger.error("Error! Received message has unsupported StatusType.");
                     }
 
+                } catch (EOFException eof) {
+                    logger.info("Connection closed by client.");
+                    isOpen = false;
+
                     /* connection either terminated by the client or lost due to
                      * network problems*/
                 } catch (IOException ioe) {
                     logger.error("Error! Connection lost!");
                     isOpen = false;
+
+                    /* the request gets no response, so the client's next
+                     * responses would answer the wrong requests */
+                } catch (IllegalArgumentException iae) {
+                    logger.error("Error! Received malformed message! " + iae.getMessage());
+                    isOpen = false;
                 }
             }
 
@@ -110,38 +155,37 @@ public class ClientConnection implements Runnable {
         }
     }
 
-    private Message handleGet(String key){
-        try{
-            String value = this.server.getKV(key);
-            return new Message(key, value, StatusType.GET_SUCCESS);
-
-        } catch(IOException e){
-            return new Message(key, "Database Error! Please try again later.", StatusType.GET_ERROR);
-        } catch(IllegalArgumentException e){
-            return new Message(key, "Key Error! Key doesn't exist or key exceeds 20 character limit.", StatusType.GET_ERROR);
-        }
-
-    }
-
-    private Message handlePut(String key, String value){
-        StatusType statusType;
-
-        if(this.server.inStorage(key)){
-            statusType = StatusType.PUT_UPDATE;
-        } else{
-            statusType = StatusType.PUT_SUCCESS;
+    /* sends a large value as the binary frame of a GET_SUCCESS without
+     * copying it through the heap, returns false if handleGet() has to
+     * answer instead, as on a text connection, whose frames only carry
+     * values that were checked to be text
+     */
+    private boolean transferGet(final Message request) throws IOException {
+        final String key = request.getKey();
+        final int version = messenger.getVersion();
+        SocketChannel channel = clientSocket.getChannel();
+        if (channel == null || version == 0) {
+            return false;
         }
+        boolean sent = this.server.transferKV(key, new IKVStorage.Framer() {
+            public ByteBuffer header(int valueLength) {
+                if (valueLength < DIRECT_GET_MIN_SIZE) {
+                    return null;
+                }
+                return ByteBuffer.wrap(BinaryProtocol.header(key, valueLength, StatusType.GET_SUCCESS,
+                        request.getRequestId(), version));
+            }
 
-        try{
-            this.server.putKV(key, value);
-        } catch(IllegalArgumentException e){
-            statusType = StatusType.PUT_ERROR;
-            value = "Key or value has wrong length! Key must be under 20 character and value must be under 120,000 character.";
-        } catch(IOException e){
-            statusType = StatusType.PUT_ERROR;
-            value = "Database Error! Please try again later.";
+            public ByteBuffer trailer() {
+                return ByteBuffer.allocate(0);
+            }
+        }, channel);
+        if (sent) {
+            logger.info("SEND \t<"
+                    + clientSocket.getInetAddress().getHostAddress() + ":"
+                    + clientSocket.getPort() + ">: '"
+                    + key + ",<value from file>," + StatusType.GET_SUCCESS + "'");
         }
-
-        return new Message(key, value, statusType);
+        return sent;
     }
 }
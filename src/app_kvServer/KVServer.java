@@ -4,13 +4,33 @@ import logger.LogSetup;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import app_kvServer.ClientConnection;
+import app_kvServer.cache.FIFOCache;
+import app_kvServer.cache.ICache;
+import app_kvServer.cache.LFUCache;
+import app_kvServer.cache.LRUCache;
+import app_kvServer.storage.IKVStorage;
+import app_kvServer.storage.LegacyDatabase;
+import app_kvServer.storage.ShardedStorage;
+import app_kvServer.storage.StorageOptions;
 
 import java.io.*;
 import java.net.BindException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 public class KVServer implements IKVServer {
     /**
@@ -26,28 +46,87 @@ public class KVServer implements IKVServer {
 
     private static Logger logger = Logger.getRootLogger();
 
+    /* longest time-to-live a PUT may give, ten years */
+    public static final long MAX_TTL_SECONDS = 10L * 365 * 24 * 3600;
+    /* tuples a SCAN returns when it gives no limit, and at most */
+    public static final int DEFAULT_SCAN_LIMIT = 100;
+    public static final int MAX_SCAN_LIMIT = 10000;
+    /* keys an MGET or tuples an MPUT may carry */
+    public static final int MAX_BATCH_SIZE = 1000;
+    /* server.mode=nio serves connections with event loops instead of a thread each */
+    public static final String SERVER_MODE = "server.mode";
+    public static final String SERVER_MODE_THREAD = "thread";
+    public static final String SERVER_MODE_NIO = "nio";
+    /* event loop threads of nio mode */
+    public static final String IO_THREADS = "server.io.threads";
+    /* runs the connections of thread mode or the requests of nio mode: a new
+       thread per connection (thread mode only), a bounded pool of
+       server.workers threads queueing up to server.queue tasks, or a virtual
+       thread per task */
+    public static final String EXECUTOR = "server.executor";
+    public static final String EXECUTOR_THREAD = "thread";
+    public static final String EXECUTOR_POOL = "pool";
+    public static final String EXECUTOR_VIRTUAL = "virtual";
+    public static final String WORKERS = "server.workers";
+    public static final String QUEUE_SIZE = "server.queue";
+    /* directory the storage keeps its files in */
+    public static final String DATABASE_PATH = "server.database";
+    /* pool threads of thread mode, where each serves one connection at a time */
+    private static final int DEFAULT_CONNECTION_THREADS = 256;
+    private static final int DEFAULT_QUEUE_SIZE = 1024;
+    /* String values are stored as their UTF-8 bytes */
+    private static final Charset VALUE_CHARSET = Charset.forName("UTF-8");
+    /* the cache holds values as strings with one char per byte, which
+       carries any bytes unchanged, not only valid UTF-8 */
+    private static final Charset CACHE_CHARSET = Charset.forName("ISO-8859-1");
+
     /* constants */
     private int port;
     private ServerSocket serverSocket;
     private boolean running;
     private int cacheSize;
     private CacheStrategy cacheStrategy;
-
-    /* data size is the maximum byte length of a key value pair.
-        key max size = 20 Bytes
-        value max size = 120 kBytes
-       also need to store the size of existing value as Integer = 4 bytes
-     */
-    private static final Integer dataSize = 4 + 20 + 120000;
-    // no concurrent exception, can't use null key or value
-    static HashMap<String, String> idx = new HashMap<String, String>();
-    private String dbPath= "database.dat";
-    private String idxPath = "hash.idx";
+    /* null when caching is disabled */
+    private ICache cache;
+    /* bumped on every write, lets a GET tell whether its disk read went stale
+       before the value is put into the cache. Guarded by the cache's lock. */
+    private long writeVersion = 0;
+
+    private String dbPath = "database";
+    /* files of the fixed-layout storage the log replaced, imported once */
+    private String legacyDataPath = "database.dat";
+    private String legacyIndexPath = "hash.idx";
+    /* snapshots are written to subdirectories of this one */
+    private String snapshotPath = "snapshots";
+    private IKVStorage storage;
+    /* optional name=value settings given after the required arguments */
+    private Properties options;
+    /* null in thread mode */
+    private NioServer nioServer;
+    /* runs connections in thread mode, null for a new thread each */
+    private ExecutorService connectionExecutor;
 
     public KVServer(int port, int cacheSize, String strategy) {
+        this(port, cacheSize, strategy, new Properties());
+    }
+
+    /**
+     * Start KV Server at given port with additional options, e.g.
+     * storage.mode=mmap to serve GETs from memory mapped segments.
+     * See StorageOptions for the storage settings.
+     */
+    public KVServer(int port, int cacheSize, String strategy, Properties options) {
         this.port = port;
-//        this.cacheSize = cacheSize;
-//        this.cacheStrategy = CacheStrategy.valueOf(strategy);
+        this.options = options;
+        this.dbPath = options.getProperty(DATABASE_PATH, dbPath);
+        this.cacheSize = cacheSize;
+        try {
+            this.cacheStrategy = CacheStrategy.valueOf(strategy);
+        } catch (IllegalArgumentException e) {
+            logger.error("Unknown cache strategy " + strategy + ", caching disabled.");
+            this.cacheStrategy = CacheStrategy.None;
+        }
+        this.cache = createCache(this.cacheStrategy, cacheSize);
         this.initStorage();
         this.run();
     }
@@ -74,162 +153,420 @@ public class KVServer implements IKVServer {
 
     @Override
     public boolean inStorage(String key){
-        return idx.containsKey(key);
+        return storage != null && storage.contains(key);
     }
 
     @Override
     public boolean inCache(String key){
-        // TODO Auto-generated method stub
-        return false;
+        return cache != null && cache.contains(key);
+    }
+
+    private static ICache createCache(CacheStrategy strategy, int size) {
+        if (size <= 0) {
+            return null;
+        }
+        switch (strategy) {
+            case FIFO:
+                return new FIFOCache(size);
+            case LRU:
+                return new LRUCache(size);
+            case LFU:
+                return new LFUCache(size);
+            default:
+                return null;
+        }
     }
 
     private boolean isRunning() { return this.running; }
 
     @Override
     public String getKV(String key) throws IllegalArgumentException, IOException{
-        if (inStorage(key)) {
-            long begin = Long.parseLong(idx.get(key));
-            try {
-                RandomAccessFile f = new RandomAccessFile(dbPath, "r");
+        return new String(getKVBytes(key), VALUE_CHARSET);
+    }
 
-                if (key.length() == 0 || key.length() >= 20){
-                    logger.error("Key has wrong length!");
-                    throw new IllegalArgumentException("Key has wrong length!!");
+    /**
+     * Get the value associated with the key as the bytes it was put with.
+     */
+    public byte[] getKVBytes(String key) throws IllegalArgumentException, IOException{
+        long version = 0;
+        if (cache != null) {
+            synchronized (cache) {
+                String cached = cache.get(key);
+                if (cached != null) {
+                    logger.info("Cache hit for key " + key);
+                    return cached.getBytes(CACHE_CHARSET);
                 }
+                version = writeVersion;
+            }
+        }
 
-                f.seek(begin);
-                int valSize = f.readInt();
-                byte[] value = new byte[valSize];
-                f.seek(begin+4+20);
-                f.readFully(value);
-                f.close();
-                logger.info("Complete getting data from key " + key);
-                return new String(value);
+        if (key.length() == 0 || key.length() >= 20){
+            logger.error("Key has wrong length!");
+            throw new IllegalArgumentException("Key has wrong length!!");
+        }
 
-            } catch (IOException e) {
-                logger.error("Error getting data from database! " + e.getMessage());
-                throw new IOException("Error getting data from database!");
-            }
-        } else {
+        byte[] result;
+        try {
+            result = storage.getBytes(key);
+        } catch (IOException e) {
+            logger.error("Error getting data from database! " + e.getMessage());
+            throw new IOException("Error getting data from database!");
+        }
+
+        if (result == null) {
             logger.error("Error accessing non-existent key.");
             throw new IllegalArgumentException("Key does not exist in database!");
         }
+        logger.info("Complete getting data from key " + key);
+
+        // keys that expire are not cached, the cache would keep serving them
+        if (cache != null && storage.getExpiry(key) == 0) {
+            synchronized (cache) {
+                // skip the fill if a PUT landed while we were reading
+                if (version == writeVersion) {
+                    cache.put(key, new String(result, CACHE_CHARSET));
+                }
+            }
+        }
+        return result;
     }
 
-    @Override
-    public void putKV(String key, String value) throws IllegalArgumentException, IOException {
-        String valIndex = idx.get(key);
-        long begin;
-        try {
-            RandomAccessFile f = new RandomAccessFile(dbPath, "rw");
+    /**
+     * Get the values of several keys, cached ones from memory and the others
+     * from storage in one pass.
+     * @return  values by key of the keys stored, in the order asked for;
+     *          keys of wrong length are left out like keys not stored
+     * @throws IllegalArgumentException if there are more than MAX_BATCH_SIZE keys
+     */
+    public Map<String, byte[]> getAllKVBytes(List<String> keys) throws IllegalArgumentException, IOException {
+        if (keys.size() > MAX_BATCH_SIZE) {
+            logger.error("Batch of " + keys.size() + " keys is too large!");
+            throw new IllegalArgumentException("Batch is too large!");
+        }
+        Map<String, byte[]> found = new HashMap<String, byte[]>();
+        List<String> missing = new ArrayList<String>();
+        long version = 0;
+        if (cache != null) {
+            synchronized (cache) {
+                for (String key : keys) {
+                    String cached = cache.get(key);
+                    if (cached != null) {
+                        found.put(key, cached.getBytes(CACHE_CHARSET));
+                    } else if (key.length() > 0 && key.length() < 20) {
+                        missing.add(key);
+                    }
+                }
+                version = writeVersion;
+            }
+        } else {
+            for (String key : keys) {
+                if (key.length() > 0 && key.length() < 20) {
+                    missing.add(key);
+                }
+            }
+        }
 
-            if (valIndex==null) {
-                // new data added to end of file
-                begin = f.length();
-            } else {
-                begin = Long.parseLong(valIndex);
+        // keys that expire are not cached, the cache would keep serving them
+        Set<String> expiring = cache != null ? new HashSet<String>() : null;
+        Map<String, byte[]> read;
+        try {
+            read = missing.isEmpty() ? new HashMap<String, byte[]>() : storage.getAll(missing, expiring);
+        } catch (IOException e) {
+            logger.error("Error getting data from database! " + e.getMessage());
+            throw new IOException("Error getting data from database!");
+        }
+        found.putAll(read);
+
+        if (cache != null && !read.isEmpty()) {
+            synchronized (cache) {
+                // skip the fill if a PUT landed while we were reading
+                if (version == writeVersion) {
+                    for (Map.Entry<String, byte[]> entry : read.entrySet()) {
+                        if (!expiring.contains(entry.getKey())) {
+                            cache.put(entry.getKey(), new String(entry.getValue(), CACHE_CHARSET));
+                        }
+                    }
+                }
             }
+        }
 
-            if (key.length() == 0 || key.length() >= 20 || value.length() >= 120000){
-                logger.error("Key or value has wrong length!");
-                throw new IllegalArgumentException("Key or value has wrong length!!");
+        Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+        for (String key : keys) {
+            byte[] value = found.get(key);
+            if (value != null) {
+                result.put(key, value);
             }
+        }
+        logger.info("Complete getting data of " + result.size() + " of " + keys.size() + " keys");
+        return result;
+    }
 
-            if (value.equals("")) {
-                idx.remove(key);
-                f.close();
+    /**
+     * Send the value of the key straight from the storage files to the
+     * channel, framed by the framer, without copying it into the heap.
+     * Cached keys are left to getKV(), which serves them from memory.
+     * @return  false, with nothing written, if the value has to go through
+     *          getKV() instead
+     */
+    public boolean transferKV(String key, IKVStorage.Framer framer, WritableByteChannel target) throws IOException {
+        if (key.length() == 0 || key.length() >= 20 || storage == null || inCache(key)) {
+            return false;
+        }
+        if (storage.transferValue(key, framer, target)) {
+            logger.info("Complete sending data from key " + key);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void putKV(String key, String value) throws IllegalArgumentException, IOException {
+        putKV(key, value, 0);
+    }
+
+    /**
+     * Put a key-value pair that expires after the given number of seconds,
+     * 0 for one that never expires. An empty value deletes the key.
+     */
+    public void putKV(String key, String value, long ttlSeconds) throws IllegalArgumentException, IOException {
+        putKVBytes(key, value.getBytes(VALUE_CHARSET), ttlSeconds);
+    }
+
+    /**
+     * Put a key whose value is arbitrary bytes, like putKV().
+     */
+    public void putKVBytes(String key, byte[] value, long ttlSeconds) throws IllegalArgumentException, IOException {
+        if (key.length() == 0 || key.length() >= 20 || value.length >= 120000){
+            logger.error("Key or value has wrong length!");
+            throw new IllegalArgumentException("Key or value has wrong length!!");
+        }
+        if (ttlSeconds < 0 || ttlSeconds > MAX_TTL_SECONDS) {
+            logger.error("Invalid time-to-live " + ttlSeconds);
+            throw new IllegalArgumentException("Invalid time-to-live!");
+        }
+
+        try {
+            if (value.length == 0) {
+                storage.delete(key);
+                updateCache(key, null);
                 logger.info("Complete delete data from key " + key);
                 return;
             }
 
-            idx.put(key, String.valueOf(begin));
-            f.seek(begin);
-            f.writeInt(value.length());
-            f.writeBytes(key);
-            f.seek(begin+4+20);
-            f.writeBytes(value);
-            f.close();
-
+            if (ttlSeconds > 0) {
+                storage.put(key, value, System.currentTimeMillis() + ttlSeconds * 1000);
+                updateCache(key, null);
+                logger.info("Complete write data to key " + key + " expiring in " + ttlSeconds + " s");
+                return;
+            }
+            storage.put(key, value, 0);
+            updateCache(key, new String(value, CACHE_CHARSET));
             logger.info("Complete write data to key " + key);
 
         } catch (IOException e) {
+            // the record on disk may be partially written, so stop serving it from memory
+            updateCache(key, null);
+            logger.error("Error writing to database! " + e.getMessage());
+            throw new IOException("Error writing to database!");
+        }
+    }
+
+    /**
+     * Put several keys like putKVBytes() with a single storage write, which
+     * waits once for all of it to be durable. An empty value deletes its key.
+     * @throws IllegalArgumentException if a key, value or the time-to-live
+     *          is out of range or there are more than MAX_BATCH_SIZE tuples,
+     *          in which case nothing is written
+     */
+    public void putAllKVBytes(Map<String, byte[]> entries, long ttlSeconds)
+            throws IllegalArgumentException, IOException {
+        if (entries.size() > MAX_BATCH_SIZE) {
+            logger.error("Batch of " + entries.size() + " tuples is too large!");
+            throw new IllegalArgumentException("Batch is too large!");
+        }
+        if (ttlSeconds < 0 || ttlSeconds > MAX_TTL_SECONDS) {
+            logger.error("Invalid time-to-live " + ttlSeconds);
+            throw new IllegalArgumentException("Invalid time-to-live!");
+        }
+        Map<String, byte[]> writes = new LinkedHashMap<String, byte[]>();
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            String key = entry.getKey();
+            byte[] value = entry.getValue();
+            if (key.length() == 0 || key.length() >= 20 || value.length >= 120000){
+                logger.error("Key or value has wrong length!");
+                throw new IllegalArgumentException("Key or value has wrong length!!");
+            }
+            writes.put(key, value.length == 0 ? null : value);
+        }
+
+        try {
+            storage.putAll(writes, ttlSeconds > 0 ? System.currentTimeMillis() + ttlSeconds * 1000 : 0);
+        } catch (IOException e) {
+            // records on disk may be partially written, so stop serving them from memory
+            updateCache(writes, true);
             logger.error("Error writing to database! " + e.getMessage());
             throw new IOException("Error writing to database!");
         }
-        this.save();
+        updateCache(writes, ttlSeconds > 0);
+        logger.info("Complete write data to " + writes.size() + " keys");
+    }
+
+    /* write-through for a batch, drops all keys if they are not to be cached */
+    private void updateCache(Map<String, byte[]> writes, boolean drop) {
+        if (cache == null) {
+            return;
+        }
+        synchronized (cache) {
+            writeVersion++;
+            for (Map.Entry<String, byte[]> write : writes.entrySet()) {
+                if (drop || write.getValue() == null) {
+                    cache.remove(write.getKey());
+                } else {
+                    cache.put(write.getKey(), new String(write.getValue(), CACHE_CHARSET));
+                }
+            }
+        }
+    }
+
+    /* write-through: called after the storage write, null value drops the key */
+    private void updateCache(String key, String value) {
+        if (cache == null) {
+            return;
+        }
+        synchronized (cache) {
+            writeVersion++;
+            if (value == null) {
+                cache.remove(key);
+            } else {
+                cache.put(key, value);
+            }
+        }
     }
 
     @Override
     public void clearCache(){
-        // TODO Auto-generated method stub
+        if (cache != null) {
+            cache.clear();
+            logger.info("Cleared cache.");
+        }
     }
 
     @Override
     public void clearStorage(){
-        File dbFile = new File(dbPath);
-        File idxFile = new File(idxPath);
         try {
-            dbFile.delete();
-            idxFile.delete();
-            this.initStorage();
+            storage.clear();
+            this.clearCache();
             logger.info("Cleared storage files.");
         } catch (Exception e){
             logger.error("Error clearing storage files: " + e.getMessage());
         }
     }
 
-    public void initStorage() {
-        File dbFile = new File(dbPath);
-        File idxFile = new File(idxPath);
+    /**
+     * Get the tuples whose keys lie in [from, to) in key order, straight from
+     * storage.
+     * @param to end of the range, exclusive, null for no end
+     * @param limit maximum number of tuples
+     */
+    public List<Map.Entry<String, byte[]>> scan(String from, String to, int limit)
+            throws IllegalArgumentException, IOException {
+        if (from.length() >= 20 || (to != null && to.length() >= 20)) {
+            logger.error("Scan bound has wrong length!");
+            throw new IllegalArgumentException("Scan bound has wrong length!");
+        }
+        if (to != null && to.compareTo(from) <= 0) {
+            return new ArrayList<Map.Entry<String, byte[]>>();
+        }
+        try {
+            return storage.scan(from, to, limit);
+        } catch (IOException e) {
+            logger.error("Error scanning database! " + e.getMessage());
+            throw new IOException("Error scanning database!");
+        }
+    }
 
-        // If no existing database file, create one
-        if (!dbFile.isFile()) {
-            try {
-                dbFile.createNewFile();
-                logger.info("Created new database file at: " + dbPath);
-            } catch (IOException e) {
-                logger.error("Error creating database! " + e.getMessage());
-                logger.error("Error creating database! " + e);
-            }
+    /**
+     * Write a snapshot of the storage to the snapshot directory of the given
+     * name while PUTs carry on. Writing to an existing snapshot only copies
+     * what changed since.
+     * @return  path of the snapshot
+     */
+    public String snapshot(String name) throws IllegalArgumentException, IOException {
+        if (!name.matches("[A-Za-z0-9_-]{1,64}")) {
+            logger.error("Invalid snapshot name " + name);
+            throw new IllegalArgumentException("Invalid snapshot name!");
         }
+        File target = new File(snapshotPath, name);
+        try {
+            long start = System.currentTimeMillis();
+            storage.snapshot(target);
+            logger.info("Wrote snapshot " + name + " in " + (System.currentTimeMillis() - start) + " ms.");
+        } catch (IOException e) {
+            logger.error("Error writing snapshot " + name + "! " + e.getMessage());
+            throw new IOException("Error writing snapshot!");
+        }
+        return target.getPath();
+    }
 
-        if (idxFile.isFile()){
-            try {
-                FileInputStream in = new FileInputStream(idxPath);
-                Properties prop = new Properties();
-                prop.load(in);
-                for (String key : prop.stringPropertyNames()) {
-                    idx.put(key, prop.getProperty(key));
-                }
-                logger.info("Loaded index file.");
-                in.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-                logger.error("Error loading index file! " + e.getMessage());
-                logger.debug("Error loading index file! " + e);
-            }
-        } else {
+    public void initStorage() {
+        try {
+            storage = new ShardedStorage(new File(dbPath), StorageOptions.fromProperties(options));
+        } catch (IllegalArgumentException e) {
+            logger.error("Invalid storage option! " + e.getMessage());
+            return;
+        } catch (IOException e) {
+            logger.error("Error opening database! " + e.getMessage());
+            logger.debug("Error opening database! " + e);
+            return;
+        }
+        File legacyData = new File(legacyDataPath);
+        File legacyIndex = new File(legacyIndexPath);
+        if (LegacyDatabase.exists(legacyData, legacyIndex)) {
             try {
-                idxFile.createNewFile();
-                logger.info("Created new index file at: " + idxPath);
+                logger.info("Importing old database " + legacyDataPath + " into " + dbPath + " ...");
+                LegacyDatabase.importInto(legacyData, legacyIndex, storage);
             } catch (IOException e) {
-                logger.error("Error creating index file! " + e.getMessage());
-                logger.error("Error creating index file! " + e);
+                // serving without the old keys would look like they were lost
+                logger.error("Error importing old database! " + e.getMessage()
+                        + " Fix or remove " + legacyDataPath + " and " + legacyIndexPath + " to start.");
+                storage.close();
+                storage = null;
             }
         }
     }
 
     @Override
     public void run(){
-        this.running = initializeServer();
+        if (storage == null) {
+            // serving without a database would fail every request
+            logger.error("Server not started, the database is not open!");
+            return;
+        }
+        this.running = initializeServer() && initializeMode();
 
         if(serverSocket != null) {
             while(isRunning()){
                 try {
                     Socket client = serverSocket.accept();
-                    ClientConnection connection =
-                            new ClientConnection(client, this);
-                    new Thread(connection).start();
+                    if (nioServer != null) {
+                        nioServer.register(client.getChannel());
+                    } else if (connectionExecutor != null) {
+                        ClientConnection connection =
+                                new ClientConnection(client, this);
+                        try {
+                            connectionExecutor.execute(connection);
+                        } catch (RejectedExecutionException e) {
+                            // every thread is busy and the queue is full, shed the client
+                            logger.info("Server busy, rejected connection from "
+                                    + client.getInetAddress().getHostName());
+                            connection.reject();
+                            continue;
+                        }
+                    } else {
+                        ClientConnection connection =
+                                new ClientConnection(client, this);
+                        new Thread(connection).start();
+                    }
 
                     logger.info("Connected to "
                             + client.getInetAddress().getHostName()
@@ -246,7 +583,10 @@ public class KVServer implements IKVServer {
     private boolean initializeServer() {
         logger.info("Initialize server ...");
         try {
-            serverSocket = new ServerSocket(port);
+            // opened through a channel so client sockets have one too, which
+            // lets GETs send values from the data files with transferTo
+            serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.bind(new InetSocketAddress(port));
             logger.info("Server listening on port: "
                     + serverSocket.getLocalPort());
             return true;
@@ -260,22 +600,66 @@ public class KVServer implements IKVServer {
         }
     }
 
-    public void save(){
+    /* sets up the executor and, in nio mode, the event loops the options ask for */
+    private boolean initializeMode() {
+        String mode = options.getProperty(SERVER_MODE, SERVER_MODE_THREAD);
+        boolean nio = mode.equals(SERVER_MODE_NIO);
+        if (!nio && !mode.equals(SERVER_MODE_THREAD)) {
+            logger.error("Unknown server mode " + mode + "!");
+            return false;
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        String kind = options.getProperty(EXECUTOR, nio ? EXECUTOR_POOL : EXECUTOR_THREAD);
         try {
-            FileOutputStream out = new FileOutputStream(idxPath);
-            Properties prop = new Properties();
-            prop.putAll(this.idx);
-            prop.store(out, null);
-            out.close();
-        } catch (Exception e) {
-            logger.error("Error saving index file: " + e.getMessage());
+            ExecutorService executor = null;
+            if (kind.equals(EXECUTOR_POOL)) {
+                int workers = intOption(WORKERS, nio ? 4 * cores : DEFAULT_CONNECTION_THREADS, 1);
+                int queueSize = intOption(QUEUE_SIZE, DEFAULT_QUEUE_SIZE, 1);
+                executor = ServerExecutors.bounded(workers, queueSize, nio ? "worker" : "connection");
+                logger.info("Executing with " + workers + " threads and a queue of " + queueSize + ".");
+            } else if (kind.equals(EXECUTOR_VIRTUAL)) {
+                executor = ServerExecutors.virtual();
+                logger.info("Executing on virtual threads.");
+            } else if (nio || !kind.equals(EXECUTOR_THREAD)) {
+                logger.error("Unknown executor " + kind + " for " + mode + " mode!");
+                return false;
+            }
+            if (nio) {
+                nioServer = new NioServer(this, intOption(IO_THREADS, Math.min(cores, 4), 1), executor);
+            } else {
+                connectionExecutor = executor;
+            }
+            return true;
+        } catch (NumberFormatException e) {
+            logger.error("Invalid server option! " + e.getMessage());
+        } catch (UnsupportedOperationException e) {
+            logger.error("Error! " + e.getMessage());
+        } catch (IOException e) {
+            logger.error("Error! Cannot start event loops! " + e.getMessage());
         }
+        return false;
+    }
+
+    private int intOption(String name, int defaultValue, int min) {
+        int value = Integer.parseInt(options.getProperty(name, String.valueOf(defaultValue)));
+        if (value < min) {
+            throw new NumberFormatException(name + " must be at least " + min);
+        }
+        return value;
     }
 
     @Override
     public void kill(){
         this.running = false;
-        this.save();
+        if (nioServer != null) {
+            nioServer.stop();
+        }
+        if (connectionExecutor != null) {
+            connectionExecutor.shutdownNow();
+        }
+        if (storage != null) {
+            storage.close();
+        }
         try {
             serverSocket.close();
             logger.info("Server killed.");
@@ -288,7 +672,17 @@ public class KVServer implements IKVServer {
     @Override
     public void close(){
         this.running = false;
-        this.save();
+        if (nioServer != null) {
+            nioServer.stop();
+        }
+        if (connectionExecutor != null) {
+            connectionExecutor.shutdownNow();
+        }
+        if (storage != null) {
+            logger.info(String.format("Values were stored at a compression ratio of %.2f.",
+                    storage.getCompressionRatio()));
+            storage.close();
+        }
         try {
             serverSocket.close();
             logger.info("Server closed.");
@@ -302,14 +696,27 @@ public class KVServer implements IKVServer {
         try {
             new LogSetup("logs/server.log", Level.ALL);
 
-            if(args.length != 3) {
+            if(args.length < 3) {
                 System.out.println("Error! Invalid number of arguments!");
-                System.out.println("Usage: Server <port>!");
+                System.out.println("Usage: Server <port> <cacheSize> <strategy> [<option>=<value> ...]!");
             } else {
                 int port = Integer.parseInt(args[0]);
                 int cacheSize = Integer.parseInt(args[1]);
                 String strategy = args[2];
-                new KVServer(port, cacheSize, strategy);
+                Properties options = new Properties();
+                for (int i = 3; i < args.length; i++) {
+                    int eq = args[i].indexOf('=');
+                    if (eq <= 0) {
+                        System.out.println("Error! Invalid option " + args[i] + ", expected <option>=<value>!");
+                        System.exit(1);
+                    }
+                    options.setProperty(args[i].substring(0, eq), args[i].substring(eq + 1));
+                }
+                KVServer server = new KVServer(port, cacheSize, strategy, options);
+                if (server.storage == null) {
+                    System.out.println("Error! Unable to open the database, see the server log!");
+                    System.exit(1);
+                }
             }
         } catch (IOException e) {
             System.out.println("Error! Unable to initialize logger!");
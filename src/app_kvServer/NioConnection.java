@@ -0,0 +1,338 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+import shared.messages.BinaryProtocol;
+import shared.messages.FrameDecoder;
+import shared.messages.KVMessage.StatusType;
+import shared.messages.Message;
+
+/**
+ * A client connection served by an event loop of the NioServer.
+ *
+ * The event loop does all reads: it reads whatever arrived, keeps the
+ * start of an incomplete frame in a buffer of the connection and queues the
+ * complete requests. An idle connection holds no buffer, so many idle
+ * clients cost little memory. The requests of a connection run on the
+ * worker pool one at a time and in the order they arrived, so responses
+ * leave in that order too, while different connections run in parallel.
+ *
+ * A worker writes its response to the socket right away. Whatever the
+ * socket does not take is queued and written by the event loop once the
+ * socket has room. While too many requests or response bytes are queued,
+ * the connection stops reading, so a client that sends faster than it
+ * reads is slowed down instead of filling the heap.
+ */
+class NioConnection implements RequestHandler.Responder {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    /* reading pauses while more requests or response bytes are queued */
+    private static final int MAX_QUEUED_REQUESTS = 64;
+    private static final int MAX_QUEUED_BYTES = 1024 * 1024;
+    /* requests a worker executes before it hands the connection back to the pool */
+    private static final int REQUESTS_PER_TURN = 16;
+
+    /**
+     * The event loop serving the connection.
+     */
+    interface Loop {
+        /**
+         * Have the connection's interest in reading and writing brought up
+         * to date by the event loop's thread.
+         */
+        void update(NioConnection connection);
+    }
+
+    private final SocketChannel channel;
+    private final String address;
+    private final Loop loop;
+    private final RequestHandler handler;
+    private final Executor workers;
+    private final FrameDecoder decoder = new FrameDecoder();
+    private SelectionKey key;
+
+    /* start of an incomplete frame, ready for reading, null if there is none */
+    private ByteBuffer partial;
+    /* guarded by this */
+    private final ArrayDeque<Message> requests = new ArrayDeque<Message>();
+    private boolean scheduled = false;
+    private final ArrayDeque<ByteBuffer> writes = new ArrayDeque<ByteBuffer>();
+    private int queuedBytes = 0;
+    private boolean closed = false;
+    /* binary protocol version agreed on by a HELLO, 0 for text frames */
+    private volatile int version = 0;
+
+    NioConnection(SocketChannel channel, Loop loop, RequestHandler handler, Executor workers) {
+        this.channel = channel;
+        Socket socket = channel.socket();
+        this.address = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        this.loop = loop;
+        this.handler = handler;
+        this.workers = workers;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    SelectionKey getKey() {
+        return this.key;
+    }
+
+    SocketChannel channel() {
+        return this.channel;
+    }
+
+    /**
+     * Read what the client sent into the shared scratch buffer and queue
+     * the complete requests. Called by the event loop.
+     * @return  false once the client closed the connection
+     * @throws IllegalArgumentException if the client sent a malformed frame
+     */
+    boolean read(ByteBuffer scratch) throws IOException {
+        scratch.clear();
+        if (channel.read(scratch) < 0) {
+            return false;
+        }
+        scratch.flip();
+        ByteBuffer in = scratch;
+        if (partial != null) {
+            partial = append(partial, scratch);
+            in = partial;
+        }
+        Message request;
+        while ((request = decoder.decode(in)) != null) {
+            received(request);
+        }
+        if (!in.hasRemaining()) {
+            partial = null;
+        } else if (in == scratch) {
+            /* keep the start of the frame, the scratch buffer is reused */
+            partial = ByteBuffer.allocate(Math.max(scratch.remaining() * 2, 1024));
+            partial.put(scratch);
+            partial.flip();
+        }
+        return true;
+    }
+
+    /**
+     * Write queued responses until the socket takes no more. Called by the
+     * event loop.
+     */
+    synchronized void write() throws IOException {
+        flush();
+    }
+
+    /**
+     * @return  the operations the event loop should wait for
+     */
+    synchronized int interest() {
+        int ops = 0;
+        if (requests.size() < MAX_QUEUED_REQUESTS && queuedBytes < MAX_QUEUED_BYTES) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (!writes.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        return ops;
+    }
+
+    /**
+     * Queue a frame for the client and write as much of it as the socket
+     * takes right away.
+     */
+    @Override
+    public void send(Message msg) throws IOException {
+        ByteBuffer frame = ByteBuffer.wrap(version > 0 ? BinaryProtocol.encode(msg, version) : msg.getMsgBytes());
+        boolean waiting;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Connection closed!");
+            }
+            boolean idle = writes.isEmpty();
+            writes.add(frame);
+            queuedBytes += frame.remaining();
+            if (idle) {
+                flush();
+            }
+            waiting = idle && !writes.isEmpty();
+        }
+        if (waiting) {
+            /* the event loop finishes the write once the socket has room */
+            loop.update(this);
+        }
+    }
+
+    /**
+     * Close the connection, dropping queued requests and responses.
+     */
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            requests.clear();
+            writes.clear();
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Error! Unable to tear down connection!", e);
+        }
+        logger.info("Closed connection to " + address);
+    }
+
+    /* queues the request and starts a worker unless one is busy with this connection */
+    private void received(Message request) {
+        logger.info("RECEIVE \t<" + address + ">: '" + request.getMsg().trim() + "'");
+        synchronized (this) {
+            requests.add(request);
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        schedule();
+    }
+
+    /* hands the connection to a worker, or answers its queued requests
+       with SERVER_BUSY if the workers take no more */
+    private void schedule() {
+        try {
+            workers.execute(process);
+        } catch (RejectedExecutionException e) {
+            reject();
+        }
+    }
+
+    /* still scheduled until done, so later requests are answered after these */
+    private void reject() {
+        while (true) {
+            Message request;
+            synchronized (this) {
+                request = requests.poll();
+                if (request == null) {
+                    scheduled = false;
+                    break;
+                }
+            }
+            try {
+                send(RequestHandler.busy(request));
+                logger.info("Server busy, rejected request from <" + address + ">");
+            } catch (IOException e) {
+                close();
+                return;
+            }
+        }
+        loop.update(this);
+    }
+
+    /* executes the queued requests on a worker and hands the connection
+       back to the pool every REQUESTS_PER_TURN requests, so a busy
+       connection does not keep a worker from the others. The requests were
+       admitted when the connection was scheduled, so if the pool takes no
+       more work the worker carries on instead of rejecting them. */
+    private final Runnable process = new Runnable() {
+        public void run() {
+            int executed = 0;
+            while (true) {
+                Message request;
+                boolean paused;
+                synchronized (NioConnection.this) {
+                    paused = requests.size() >= MAX_QUEUED_REQUESTS;
+                    request = requests.poll();
+                    if (request == null) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+                execute(request);
+                if (paused) {
+                    /* there is room for requests again */
+                    loop.update(NioConnection.this);
+                }
+                if (++executed % REQUESTS_PER_TURN == 0) {
+                    try {
+                        workers.execute(this);
+                        return;
+                    } catch (RejectedExecutionException e) {
+                        // keep the turn
+                    }
+                }
+            }
+        }
+    };
+
+    private void execute(Message request) {
+        try {
+            if (request.getStatus() == StatusType.HELLO) {
+                // answered in and followed by frames of the version agreed on
+                version = BinaryProtocol.negotiate(request.getOption());
+                send(BinaryProtocol.hello(version));
+                return;
+            }
+            Message res = handler.handle(request, this, version == 0);
+            if (res != null) {
+                send(res);
+                logger.info("SEND \t<" + address + ">: '" + res.getMsg() + "'");
+            } else {
+                logger.error("Error! Received message has unsupported StatusType.");
+            }
+        } catch (IOException e) {
+            logger.error("Error! Connection lost!");
+            close();
+        }
+    }
+
+    /* writes queued frames until the socket takes no more, called holding the lock */
+    private void flush() throws IOException {
+        boolean full = queuedBytes >= MAX_QUEUED_BYTES;
+        while (!writes.isEmpty()) {
+            ByteBuffer frame = writes.peek();
+            queuedBytes -= channel.write(frame);
+            if (frame.hasRemaining()) {
+                break;
+            }
+            writes.poll();
+        }
+        if (full && queuedBytes < MAX_QUEUED_BYTES && key != null) {
+            /* reading was paused for the responses to drain */
+            loop.update(this);
+        }
+    }
+
+    private static ByteBuffer append(ByteBuffer buffer, ByteBuffer more) {
+        if (buffer.capacity() - buffer.limit() < more.remaining()) {
+            if (buffer.remaining() + more.remaining() <= buffer.capacity()) {
+                buffer.compact();
+                buffer.flip();
+            } else {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2,
+                        buffer.remaining() + more.remaining()));
+                grown.put(buffer);
+                grown.flip();
+                buffer = grown;
+            }
+        }
+        int position = buffer.position();
+        buffer.position(buffer.limit());
+        buffer.limit(buffer.capacity());
+        buffer.put(more);
+        buffer.flip();
+        buffer.position(position);
+        return buffer;
+    }
+}
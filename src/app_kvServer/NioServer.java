@@ -0,0 +1,183 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Serves client connections with a few event loop threads instead of a
+ * thread per connection, so tens of thousands of mostly idle clients cost
+ * a selection key and a little memory each rather than a thread stack.
+ *
+ * KVServer accepts the connections and hands them to register(), which
+ * assigns them to the event loops in turn. An event loop waits on a
+ * Selector for all of its connections, reads whatever arrived and passes
+ * complete requests on to the workers, which execute them like the
+ * connection threads of thread mode do. See NioConnection for how
+ * a connection buffers its reads and writes.
+ *
+ * Selection keys are only changed by the thread of their event loop, other
+ * threads queue the connection for an update and wake the selector.
+ */
+class NioServer {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    /* bytes an event loop reads from a socket at a time */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final RequestHandler handler;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private int next = 0;
+
+    /**
+     * Start the event loops.
+     * @param ioThreads number of event loops
+     * @param workers executes the requests, a request it rejects is
+     *           answered with SERVER_BUSY
+     */
+    NioServer(KVServer server, int ioThreads, ExecutorService workers) throws IOException {
+        this.handler = new RequestHandler(server);
+        this.workers = workers;
+        this.loops = new EventLoop[ioThreads];
+        ThreadFactory loopThreads = ServerExecutors.daemons("io");
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new EventLoop();
+            loopThreads.newThread(loops[i]).start();
+        }
+        logger.info("Serving connections with " + ioThreads + " event loops.");
+    }
+
+    /**
+     * Serve a newly accepted connection.
+     */
+    void register(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        EventLoop loop = loops[next];
+        next = (next + 1) % loops.length;
+        loop.add(new NioConnection(channel, loop, handler, workers));
+    }
+
+    /**
+     * Close all connections and stop the threads.
+     */
+    void stop() {
+        for (EventLoop loop : loops) {
+            loop.stop();
+        }
+        workers.shutdownNow();
+    }
+
+    private static class EventLoop implements Runnable, NioConnection.Loop {
+        private final Selector selector;
+        private final Queue<NioConnection> added = new ConcurrentLinkedQueue<NioConnection>();
+        private final Queue<NioConnection> updated = new ConcurrentLinkedQueue<NioConnection>();
+        /* shared by the connections of the loop, only incomplete frames are kept per connection */
+        private final ByteBuffer scratch = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private volatile boolean running = true;
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void add(NioConnection connection) {
+            added.add(connection);
+            selector.wakeup();
+        }
+
+        public void update(NioConnection connection) {
+            updated.add(connection);
+            selector.wakeup();
+        }
+
+        void stop() {
+            running = false;
+            selector.wakeup();
+        }
+
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    NioConnection connection;
+                    while ((connection = added.poll()) != null) {
+                        try {
+                            connection.setKey(connection.channel().register(selector,
+                                    SelectionKey.OP_READ, connection));
+                        } catch (IOException e) {
+                            logger.error("Error! Unable to register connection! " + e.getMessage());
+                            connection.close();
+                        }
+                    }
+                    while ((connection = updated.poll()) != null) {
+                        interest(connection);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handle((NioConnection) key.attachment(), key);
+                    }
+                }
+            } catch (IOException e) {
+                logger.error("Error! Event loop failed! " + e.getMessage());
+            } catch (ClosedSelectorException e) {
+                logger.error("Error! Event loop selector closed!");
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((NioConnection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    logger.error("Error! Unable to close selector!", e);
+                }
+            }
+        }
+
+        private void handle(NioConnection connection, SelectionKey key) {
+            try {
+                if (key.isValid() && key.isWritable()) {
+                    connection.write();
+                }
+                if (key.isValid() && key.isReadable() && !connection.read(scratch)) {
+                    connection.close();
+                    return;
+                }
+                interest(connection);
+            } catch (IOException e) {
+                logger.error("Error! Connection lost!");
+                connection.close();
+            } catch (IllegalArgumentException e) {
+                logger.error("Error! Received malformed message! " + e.getMessage());
+                connection.close();
+            } catch (CancelledKeyException e) {
+                // closed by a worker meanwhile
+            }
+        }
+
+        private static void interest(NioConnection connection) {
+            SelectionKey key = connection.getKey();
+            try {
+                if (key != null && key.isValid()) {
+                    key.interestOps(connection.interest());
+                }
+            } catch (CancelledKeyException e) {
+                // closed by a worker meanwhile
+            }
+        }
+    }
+}
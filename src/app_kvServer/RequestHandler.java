@@ -0,0 +1,253 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import shared.messages.BatchCodec;
+import shared.messages.KVMessage.StatusType;
+import shared.messages.Message;
+
+/**
+ * Executes client requests against the KVServer, independent of how the
+ * connection they arrived on reads and writes its frames.
+ * Shared by the connections of all server modes.
+ */
+class RequestHandler {
+
+    /* tuples a SCAN reads from storage at a time while streaming */
+    private static final int SCAN_BATCH = 100;
+
+    /**
+     * Sends frames that go out ahead of the response, e.g. the tuples of a
+     * SCAN, in order.
+     */
+    interface Responder {
+        void send(Message msg) throws IOException;
+    }
+
+    private final KVServer server;
+
+    RequestHandler(KVServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Execute the request. The response and the frames sent ahead of it
+     * carry the request's ID.
+     * @param   text true if the request came in a text frame, whose
+     *          connection only carries text
+     * @return  the response, or null if the request has an unsupported
+     *          StatusType
+     * @throws IOException if the responder failed
+     */
+    Message handle(Message request, final Responder responder, boolean text) throws IOException {
+        if (text) {
+            return this.handleText(request, responder);
+        }
+        final int requestId = request.getRequestId();
+        Message response = this.dispatch(request, requestId == 0 ? responder : new Responder() {
+            public void send(Message msg) throws IOException {
+                msg.setRequestId(requestId);
+                responder.send(msg);
+            }
+        });
+        if (response != null) {
+            response.setRequestId(requestId);
+        }
+        return response;
+    }
+
+    /**
+     * @return  the response to a request the server has no capacity for
+     */
+    static Message busy(Message request) {
+        Message response = busy(request.getKey());
+        response.setRequestId(request.getRequestId());
+        return response;
+    }
+
+    /* a tuple a text frame cannot carry is left out of the frames sent
+     * ahead of the response and fails the request, like a value of the
+     * response itself
+     */
+    private Message handleText(Message request, final Responder responder) throws IOException {
+        final boolean[] withheld = new boolean[1];
+        Message response = this.dispatch(request, new Responder() {
+            public void send(Message msg) throws IOException {
+                if (msg.fitsTextFrame()) {
+                    responder.send(msg);
+                } else {
+                    withheld[0] = true;
+                }
+            }
+        });
+        if (response == null || (!withheld[0] && response.fitsTextFrame())) {
+            return response;
+        }
+        return new Message(request.getKey(), "Value Error! Value is not text. Please use the binary protocol.",
+                errorOf(request.getStatus()));
+    }
+
+    private static StatusType errorOf(StatusType request) {
+        switch (request) {
+            case GET:
+                return StatusType.GET_ERROR;
+            case PUT:
+                return StatusType.PUT_ERROR;
+            case SNAPSHOT:
+                return StatusType.SNAPSHOT_ERROR;
+            case SCAN:
+                return StatusType.SCAN_ERROR;
+            case MGET:
+                return StatusType.MGET_ERROR;
+            default:
+                return StatusType.MPUT_ERROR;
+        }
+    }
+
+    private Message dispatch(Message request, Responder responder) throws IOException {
+        String key = request.getKey();
+        switch (request.getStatus()) {
+            case GET:
+                return this.handleGet(key);
+            case PUT:
+                return this.handlePut(key, request.getValueBytes(), request.getTtl());
+            case SNAPSHOT:
+                return this.handleSnapshot(key);
+            case SCAN:
+                return this.handleScan(key, request.getValue(), request.getLimit(), responder);
+            case MGET:
+                return this.handleMget(key, request.getValueBytes(), responder);
+            case MPUT:
+                return this.handleMput(key, request.getValueBytes(), request.getTtl());
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return  the response to a request the server has no capacity for
+     */
+    static Message busy(String key) {
+        return new Message(key, "Server busy! Please try again later.", StatusType.SERVER_BUSY);
+    }
+
+    private Message handleGet(String key){
+        try{
+            byte[] value = this.server.getKVBytes(key);
+            return new Message(key, value, StatusType.GET_SUCCESS);
+
+        } catch(IOException e){
+            return new Message(key, "Database Error! Please try again later.", StatusType.GET_ERROR);
+        } catch(IllegalArgumentException e){
+            return new Message(key, "Key Error! Key doesn't exist or key exceeds 20 character limit.", StatusType.GET_ERROR);
+        }
+
+    }
+
+    private Message handlePut(String key, byte[] value, long ttl){
+        StatusType statusType;
+
+        if(this.server.inStorage(key)){
+            statusType = StatusType.PUT_UPDATE;
+        } else{
+            statusType = StatusType.PUT_SUCCESS;
+        }
+
+        try{
+            // blocks until the write is durable under the server's fsync policy,
+            // so the reply never acknowledges a PUT a crash could still lose
+            this.server.putKVBytes(key, value, ttl);
+        } catch(IllegalArgumentException e){
+            String error = "Key or value has wrong length! Key must be under 20 character and value must be under 120,000 character.";
+            if(ttl < 0 || ttl > KVServer.MAX_TTL_SECONDS){
+                error = "TTL Error! Time-to-live must be between 0 and " + KVServer.MAX_TTL_SECONDS + " seconds.";
+            }
+            return new Message(key, error, StatusType.PUT_ERROR);
+        } catch(IOException e){
+            return new Message(key, "Database Error! Please try again later.", StatusType.PUT_ERROR);
+        }
+
+        return new Message(key, value, statusType);
+    }
+
+    /* streams every tuple as a SCAN_ENTRY frame, reading them from storage
+     * in batches, and returns the closing frame. Its key is the key the
+     * next page starts at, empty once the range is exhausted.
+     */
+    private Message handleScan(String from, String to, int limit, Responder responder) throws IOException {
+        int pageSize = limit <= 0 ? KVServer.DEFAULT_SCAN_LIMIT : Math.min(limit, KVServer.MAX_SCAN_LIMIT);
+        String cursor = from;
+        int sent = 0;
+        while (cursor != null && sent < pageSize) {
+            int batch = Math.min(SCAN_BATCH, pageSize - sent);
+            List<Map.Entry<String, byte[]>> entries;
+            try {
+                // one extra tuple tells where the next batch or page starts
+                entries = this.server.scan(cursor, to.isEmpty() ? null : to, batch + 1);
+            } catch(IllegalArgumentException e){
+                return new Message(from, "Key Error! Scan bounds must be under 20 character.", StatusType.SCAN_ERROR);
+            } catch(IOException e){
+                return new Message(from, "Database Error! Please try again later.", StatusType.SCAN_ERROR);
+            }
+            cursor = entries.size() > batch ? entries.get(batch).getKey() : null;
+            for (int i = 0; i < Math.min(batch, entries.size()); i++) {
+                responder.send(new Message(entries.get(i).getKey(), entries.get(i).getValue(),
+                        StatusType.SCAN_ENTRY));
+                sent++;
+            }
+        }
+        return new Message(cursor == null ? "" : cursor, String.valueOf(sent), StatusType.SCAN_SUCCESS);
+    }
+
+    /* streams the tuples found as SCAN_ENTRY frames in the order the keys
+     * were asked for and returns the closing frame, whose value counts them
+     */
+    private Message handleMget(String key, byte[] batch, Responder responder) throws IOException {
+        Map<String, byte[]> values;
+        try {
+            values = this.server.getAllKVBytes(BatchCodec.decodeKeys(batch));
+        } catch(IllegalArgumentException e){
+            return new Message(key, "Batch Error! A batch must hold at most " + KVServer.MAX_BATCH_SIZE
+                    + " keys.", StatusType.MGET_ERROR);
+        } catch(IOException e){
+            return new Message(key, "Database Error! Please try again later.", StatusType.MGET_ERROR);
+        }
+        for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+            responder.send(new Message(entry.getKey(), entry.getValue(), StatusType.SCAN_ENTRY));
+        }
+        return new Message(key, String.valueOf(values.size()), StatusType.MGET_SUCCESS);
+    }
+
+    private Message handleMput(String key, byte[] batch, long ttl){
+        Map<String, byte[]> entries;
+        try{
+            // one storage write for the whole batch, durable before the reply
+            entries = BatchCodec.decodeEntries(batch);
+            this.server.putAllKVBytes(entries, ttl);
+        } catch(IllegalArgumentException e){
+            String error = "Batch Error! A batch must hold at most " + KVServer.MAX_BATCH_SIZE
+                    + " tuples, keys must be under 20 character and values under 120,000 character.";
+            if(ttl < 0 || ttl > KVServer.MAX_TTL_SECONDS){
+                error = "TTL Error! Time-to-live must be between 0 and " + KVServer.MAX_TTL_SECONDS + " seconds.";
+            }
+            return new Message(key, error, StatusType.MPUT_ERROR);
+        } catch(IOException e){
+            return new Message(key, "Database Error! Please try again later.", StatusType.MPUT_ERROR);
+        }
+        return new Message(key, String.valueOf(entries.size()), StatusType.MPUT_SUCCESS);
+    }
+
+    private Message handleSnapshot(String name){
+        try{
+            // writes carry on while the snapshot is copied
+            String path = this.server.snapshot(name);
+            return new Message(name, path, StatusType.SNAPSHOT_SUCCESS);
+        } catch(IllegalArgumentException e){
+            return new Message(name, "Name Error! Snapshot names may only contain letters or digits or '-' or '_'.", StatusType.SNAPSHOT_ERROR);
+        } catch(IOException e){
+            return new Message(name, "Database Error! Please try again later.", StatusType.SNAPSHOT_ERROR);
+        }
+    }
+}
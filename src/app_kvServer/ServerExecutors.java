@@ -0,0 +1,71 @@
+package app_kvServer;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors that run the connections of thread mode or the requests of nio
+ * mode, selected by the server.executor option.
+ *
+ * A pool has a fixed number of threads and a bounded queue and rejects
+ * work once both are full, which the server answers with SERVER_BUSY
+ * instead of taking on more than it can serve. Virtual threads cost so
+ * little that every task gets one. They need Java 21, while the build
+ * targets 1.7, so they are looked up at runtime.
+ */
+class ServerExecutors {
+
+    private ServerExecutors() {
+    }
+
+    /**
+     * @param threads number of threads
+     * @param queueSize tasks that may wait for a thread, at least 1: without
+     *          a queue a task is only taken by a thread already waiting for
+     *          one, so it would be rejected while a thread that just
+     *          finished is on its way back
+     * @param name prefix of the thread names
+     * @return  executor that throws RejectedExecutionException when all
+     *          threads are busy and the queue is full
+     */
+    static ExecutorService bounded(int threads, int queueSize, String name) {
+        BlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(queueSize);
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, queue, daemons(name));
+    }
+
+    /**
+     * @return  executor running every task on a new virtual thread
+     * @throws UnsupportedOperationException if the JVM has no virtual threads
+     */
+    static ExecutorService virtual() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or newer, running on "
+                    + System.getProperty("java.version"));
+        }
+    }
+
+    /**
+     * @return  factory of daemon threads named after the prefix and a count
+     */
+    static ThreadFactory daemons(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
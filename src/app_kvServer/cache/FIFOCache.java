@@ -0,0 +1,12 @@
+package app_kvServer.cache;
+
+/**
+ * Evicts the entry that was inserted first. Reads and updates do not change
+ * the eviction order.
+ */
+public class FIFOCache extends LinkedCache {
+
+    public FIFOCache(int capacity) {
+        super(capacity, false);
+    }
+}
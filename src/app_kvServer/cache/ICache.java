@@ -0,0 +1,50 @@
+package app_kvServer.cache;
+
+/**
+ * In-memory cache of key-value pairs that sits in front of the server's
+ * persistent storage. Implementations bound the number of entries they hold
+ * and decide which entry to evict once that bound is reached.
+ * All implementations are safe to share between client connection threads.
+ */
+public interface ICache {
+
+    /**
+     * Get the cached value of a key. Counts as an access for the
+     * replacement strategy.
+     * @return  cached value, or null if the key is not cached
+     */
+    public String get(String key);
+
+    /**
+     * Insert or replace the cached value of a key, evicting an entry
+     * if the cache is full.
+     */
+    public void put(String key, String value);
+
+    /**
+     * Drop a key from the cache, e.g. after it was deleted from storage.
+     */
+    public void remove(String key);
+
+    /**
+     * Check if key is in the cache.
+     * NOTE: does not count as an access for the replacement strategy
+     * @return  true if key in cache, false otherwise
+     */
+    public boolean contains(String key);
+
+    /**
+     * Remove every entry from the cache.
+     */
+    public void clear();
+
+    /**
+     * @return  number of entries currently cached
+     */
+    public int size();
+
+    /**
+     * @return  maximum number of entries the cache will hold
+     */
+    public int getCapacity();
+}
@@ -0,0 +1,122 @@
+package app_kvServer.cache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Evicts the entry with the fewest accesses; ties are broken by evicting the
+ * least recently used of those entries.
+ * Keys are grouped into one insertion-ordered bucket per access count and the
+ * smallest non-empty count is tracked, so every operation takes O(1) time.
+ */
+public class LFUCache implements ICache {
+
+    private final int capacity;
+    private final HashMap<String, String> values = new HashMap<String, String>();
+    private final HashMap<String, Integer> counts = new HashMap<String, Integer>();
+    private final HashMap<Integer, LinkedHashSet<String>> buckets =
+            new HashMap<Integer, LinkedHashSet<String>>();
+    private int minCount = 0;
+
+    public LFUCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    @Override
+    public synchronized String get(String key) {
+        String value = values.get(key);
+        if (value != null) {
+            touch(key);
+        }
+        return value;
+    }
+
+    @Override
+    public synchronized void put(String key, String value) {
+        if (capacity <= 0) {
+            return;
+        }
+        if (values.containsKey(key)) {
+            values.put(key, value);
+            touch(key);
+            return;
+        }
+        if (values.size() >= capacity) {
+            evict();
+        }
+        values.put(key, value);
+        counts.put(key, 1);
+        bucket(1).add(key);
+        minCount = 1;
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        if (values.remove(key) == null) {
+            return;
+        }
+        int count = counts.remove(key);
+        LinkedHashSet<String> keys = buckets.get(count);
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            buckets.remove(count);
+        }
+        // minCount may now point at an empty bucket. The cache is no longer
+        // full, so evict() does not run before the next insert resets it to 1.
+    }
+
+    @Override
+    public synchronized boolean contains(String key) { return values.containsKey(key); }
+
+    @Override
+    public synchronized void clear() {
+        values.clear();
+        counts.clear();
+        buckets.clear();
+        minCount = 0;
+    }
+
+    @Override
+    public synchronized int size() { return values.size(); }
+
+    @Override
+    public int getCapacity() { return this.capacity; }
+
+    /* move key from its current access count bucket to the next one */
+    private void touch(String key) {
+        int count = counts.get(key);
+        LinkedHashSet<String> keys = buckets.get(count);
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            buckets.remove(count);
+            if (minCount == count) {
+                minCount = count + 1;
+            }
+        }
+        counts.put(key, count + 1);
+        bucket(count + 1).add(key);
+    }
+
+    /* only called on a full cache, where minCount names a non-empty bucket */
+    private void evict() {
+        LinkedHashSet<String> keys = buckets.get(minCount);
+        Iterator<String> it = keys.iterator();
+        String victim = it.next();
+        it.remove();
+        if (keys.isEmpty()) {
+            buckets.remove(minCount);
+        }
+        values.remove(victim);
+        counts.remove(victim);
+    }
+
+    private LinkedHashSet<String> bucket(int count) {
+        LinkedHashSet<String> keys = buckets.get(count);
+        if (keys == null) {
+            keys = new LinkedHashSet<String>();
+            buckets.put(count, keys);
+        }
+        return keys;
+    }
+}
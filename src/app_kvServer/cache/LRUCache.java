@@ -0,0 +1,11 @@
+package app_kvServer.cache;
+
+/**
+ * Evicts the entry that was least recently read or written.
+ */
+public class LRUCache extends LinkedCache {
+
+    public LRUCache(int capacity) {
+        super(capacity, true);
+    }
+}
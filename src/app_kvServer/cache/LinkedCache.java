@@ -0,0 +1,46 @@
+package app_kvServer.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache backed by a LinkedHashMap. The map keeps its entries in a doubly
+ * linked list, so both insertion-order (FIFO) and access-order (LRU)
+ * eviction take O(1) time: the eldest entry is always at the head.
+ */
+abstract class LinkedCache implements ICache {
+
+    private final int capacity;
+    private final LinkedHashMap<String, String> entries;
+
+    LinkedCache(final int capacity, boolean accessOrder) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<String, String>(16, 0.75f, accessOrder) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    @Override
+    public synchronized String get(String key) { return entries.get(key); }
+
+    @Override
+    public synchronized void put(String key, String value) { entries.put(key, value); }
+
+    @Override
+    public synchronized void remove(String key) { entries.remove(key); }
+
+    @Override
+    public synchronized boolean contains(String key) { return entries.containsKey(key); }
+
+    @Override
+    public synchronized void clear() { entries.clear(); }
+
+    @Override
+    public synchronized int size() { return entries.size(); }
+
+    @Override
+    public int getCapacity() { return this.capacity; }
+}
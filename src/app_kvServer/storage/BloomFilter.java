@@ -0,0 +1,92 @@
+package app_kvServer.storage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Bloom filter over the keys of an SSTable, so lookups of keys a table does
+ * not hold rarely have to read any of its blocks.
+ *
+ * Uses BITS_PER_KEY bits per key and HASHES probes derived from two 32 bit
+ * hashes of the key (Kirsch-Mitzenmacher double hashing), which gives a
+ * false positive rate of about one percent.
+ */
+class BloomFilter {
+
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASHES = 7;
+
+    private final long[] bits;
+    private final long numBits;
+
+    private BloomFilter(long[] bits) {
+        this.bits = bits;
+        this.numBits = (long) bits.length * 64;
+    }
+
+    /**
+     * Build a filter over keys given as hash() values.
+     */
+    static BloomFilter build(long[] hashes, int count) {
+        long numBits = Math.max(64, (long) count * BITS_PER_KEY);
+        BloomFilter filter = new BloomFilter(new long[(int) ((numBits + 63) / 64)]);
+        for (int i = 0; i < count; i++) {
+            filter.add(hashes[i]);
+        }
+        return filter;
+    }
+
+    boolean mightContain(byte[] key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASHES; i++) {
+            long bit = ((h1 + i * h2) & 0x7FFFFFFFL) % numBits;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void add(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASHES; i++) {
+            long bit = ((h1 + i * h2) & 0x7FFFFFFFL) % numBits;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(bits.length);
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+    }
+
+    static BloomFilter read(DataInputStream in) throws IOException {
+        long[] bits = new long[in.readInt()];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = in.readLong();
+        }
+        return new BloomFilter(bits);
+    }
+
+    /* two independent 32 bit hashes of the key: FNV-1a and a multiplicative one */
+    static long hash(byte[] key) {
+        int h1 = 0x811C9DC5;
+        int h2 = 0x9747B28C;
+        for (byte b : key) {
+            h1 = (h1 ^ (b & 0xFF)) * 0x01000193;
+            h2 = (h2 + (b & 0xFF)) * 0x5BD1E995;
+            h2 ^= h2 >>> 15;
+        }
+        h1 ^= h1 >>> 16;
+        h1 *= 0x85EBCA6B;
+        h1 ^= h1 >>> 13;
+        h2 |= 1;
+        return ((long) h2 << 32) | (h1 & 0xFFFFFFFFL);
+    }
+}
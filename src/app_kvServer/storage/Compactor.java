@@ -0,0 +1,79 @@
+package app_kvServer.storage;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+
+/**
+ * Background thread that periodically compacts a storage engine and
+ * persists its in-memory state: it rewrites mostly-dead segments of a
+ * LogStorage and checkpoints its index journal, or flushes memtables and
+ * merges levels of an LsmStorage. It runs every interval and additionally
+ * whenever the engine requests it.
+ */
+class Compactor implements Runnable {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    /**
+     * The maintenance a storage engine needs done in the background.
+     */
+    interface Task {
+        void compact() throws IOException;
+
+        /**
+         * Persist in-memory state if enough of it has accumulated.
+         */
+        void checkpointIfNeeded() throws IOException;
+    }
+
+    private final Task storage;
+    private final long intervalMillis;
+    private boolean running = true;
+    private boolean requested = false;
+
+    Compactor(Task storage, long intervalMillis) {
+        this.storage = storage;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Wake the compactor up before its interval elapses.
+     */
+    synchronized void request() {
+        requested = true;
+        notifyAll();
+    }
+
+    synchronized void stop() {
+        running = false;
+        notifyAll();
+    }
+
+    private synchronized boolean await() throws InterruptedException {
+        if (running && !requested) {
+            wait(intervalMillis);
+        }
+        requested = false;
+        return running;
+    }
+
+    public void run() {
+        try {
+            while (await()) {
+                try {
+                    storage.compact();
+                } catch (Exception e) {
+                    logger.error("Error compacting storage! " + e.getMessage());
+                }
+                try {
+                    storage.checkpointIfNeeded();
+                } catch (Exception e) {
+                    logger.error("Error checkpointing index! " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.info("Compactor interrupted.");
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package app_kvServer.storage;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Sorts the sealed segments of a LogStorage into size classes by the share
+ * of their bytes taken up by dead records, i.e. by how much space the
+ * Compactor would free by rewriting them.
+ *
+ * Classes are CLASSES equal steps of the dead ratio, plus a last class for
+ * segments without any live record left, which can be deleted without being
+ * read. Segments move between classes as their records die, so choosing
+ * where to compact next never needs to look at every segment.
+ */
+class FreeSpaceMap {
+
+    static final int CLASSES = 8;
+    private static final int EMPTY_CLASS = CLASSES;
+
+    private final List<LinkedHashSet<Segment>> classes = new ArrayList<LinkedHashSet<Segment>>();
+
+    FreeSpaceMap() {
+        for (int i = 0; i <= EMPTY_CLASS; i++) {
+            classes.add(new LinkedHashSet<Segment>());
+        }
+    }
+
+    /**
+     * Start tracking a segment that was sealed.
+     */
+    synchronized void add(Segment segment) {
+        int c = classOf(segment);
+        segment.setFreeClass(c);
+        classes.get(c).add(segment);
+    }
+
+    synchronized void remove(Segment segment) {
+        if (segment.getFreeClass() >= 0) {
+            classes.get(segment.getFreeClass()).remove(segment);
+            segment.setFreeClass(-1);
+        }
+    }
+
+    /**
+     * Move the segment to the class matching its dead bytes, if it is
+     * tracked at all.
+     */
+    synchronized void update(Segment segment) {
+        int current = segment.getFreeClass();
+        int c = classOf(segment);
+        if (current >= 0 && current != c) {
+            classes.get(current).remove(segment);
+            classes.get(c).add(segment);
+            segment.setFreeClass(c);
+        }
+    }
+
+    synchronized void clear() {
+        for (LinkedHashSet<Segment> segments : classes) {
+            for (Segment segment : segments) {
+                segment.setFreeClass(-1);
+            }
+            segments.clear();
+        }
+    }
+
+    /**
+     * Pick segments to compact, those with the largest share of dead bytes
+     * first. Segments without live records are always picked; otherwise
+     * picking stops once the live bytes to copy reach the budget.
+     * @param threshold lowest dead ratio worth compacting
+     * @param budget live bytes a single compaction may copy, at least one
+     *           segment is picked regardless
+     */
+    synchronized List<Segment> pick(double threshold, long budget) {
+        List<Segment> picked = new ArrayList<Segment>(classes.get(EMPTY_CLASS));
+        long live = 0;
+        int lowest = (int) (threshold * CLASSES);
+        for (int c = CLASSES - 1; c >= lowest; c--) {
+            for (Segment segment : classes.get(c)) {
+                if (live >= budget) {
+                    return picked;
+                }
+                if (segment.getDeadRatio() >= threshold) {
+                    picked.add(segment);
+                    live += segment.getSize() - segment.getDeadBytes();
+                }
+            }
+        }
+        return picked;
+    }
+
+    /**
+     * @return  true if some segment reached the given dead ratio
+     */
+    synchronized boolean hasCandidates(double threshold) {
+        for (int c = EMPTY_CLASS; c >= (int) (threshold * CLASSES); c--) {
+            for (Segment segment : classes.get(c)) {
+                if (segment.getDeadRatio() >= threshold) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int classOf(Segment segment) {
+        long size = segment.getSize();
+        long dead = segment.getDeadBytes();
+        if (size > 0 && dead >= size) {
+            return EMPTY_CLASS;
+        }
+        return size == 0 ? 0 : (int) (dead * CLASSES / size);
+    }
+}
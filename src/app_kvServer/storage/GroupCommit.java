@@ -0,0 +1,76 @@
+package app_kvServer.storage;
+
+import java.io.IOException;
+
+/**
+ * Batches the fsyncs of concurrent writers.
+ *
+ * A writer that finds no sync in progress becomes the leader: it optionally
+ * waits for the commit window so more writers can join, then forces the log
+ * up to the newest write and wakes everybody covered by it. Writers arriving
+ * while a sync is running wait for it and, if their write came too late to
+ * be covered, one of them leads the next round. Under load one fsync
+ * therefore covers every write made while the previous one was running.
+ */
+class GroupCommit {
+
+    /**
+     * The log whose writes are committed.
+     */
+    interface Log {
+        /**
+         * Force every write made so far to disk.
+         * @return  sequence number of the newest write that is now durable
+         */
+        long sync() throws IOException;
+    }
+
+    private final Log log;
+    private final long windowMillis;
+
+    /* sequence number of the newest write known to be on disk */
+    private long durable = 0;
+    private boolean syncing = false;
+
+    GroupCommit(Log log, long windowMillis) {
+        this.log = log;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Block until the write with the given sequence number is on disk.
+     */
+    void await(long sequence) throws IOException {
+        synchronized (this) {
+            while (durable < sequence && syncing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for commit!");
+                }
+            }
+            if (durable >= sequence) {
+                return;
+            }
+            syncing = true;
+        }
+
+        long synced = 0;
+        try {
+            if (windowMillis > 0) {
+                Thread.sleep(windowMillis);
+            }
+            synced = log.sync();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for commit!");
+        } finally {
+            synchronized (this) {
+                durable = Math.max(durable, synced);
+                syncing = false;
+                notifyAll();
+            }
+        }
+    }
+}
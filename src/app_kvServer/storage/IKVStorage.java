@@ -0,0 +1,156 @@
+package app_kvServer.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent key-value store used by the KVServer.
+ * Implementations are safe to share between client connection threads.
+ */
+public interface IKVStorage {
+
+    /**
+     * Wraps a value sent by transferValue() into a protocol frame.
+     */
+    interface Framer {
+        /**
+         * @return  bytes to send before a value of the given length, or
+         *          null if the value should not be sent directly
+         */
+        ByteBuffer header(int valueLength);
+
+        /**
+         * @return  bytes to send after the value
+         */
+        ByteBuffer trailer();
+    }
+
+    /**
+     * Check if key is in storage.
+     * @return  true if key in storage, false otherwise
+     */
+    public boolean contains(String key);
+
+    /**
+     * Get the value associated with the key
+     * @return  value associated with key, null if the key is not stored
+     */
+    public String get(String key) throws IOException;
+
+    /**
+     * Get the value associated with the key as the bytes it was put with,
+     * get() decodes them as UTF-8
+     * @return  value associated with key, null if the key is not stored
+     */
+    public byte[] getBytes(String key) throws IOException;
+
+    /**
+     * Get the values of several keys in one pass over the storage, which
+     * reads them in the order they are stored in rather than the order
+     * they are asked for.
+     * @param expiring  if not null, receives the keys of the values found
+     *          that expire, as told by the entries read for them
+     * @return  values by key of the keys stored, keys not stored are left out
+     */
+    public Map<String, byte[]> getAll(Collection<String> keys, Set<String> expiring) throws IOException;
+
+    /**
+     * Send the value of the key to the target straight from the storage
+     * files, between the header and trailer of the framer, without copying
+     * it into the heap.
+     * @return  false, with nothing written, if the key is not stored, the
+     *          framer declined the value or the value cannot be sent this
+     *          way, e.g. because it is compressed; callers then use get()
+     */
+    public boolean transferValue(String key, Framer framer, WritableByteChannel target) throws IOException;
+
+    /**
+     * Insert or update a key-value pair. Returns once the write is as
+     * durable as the storage is configured to make it.
+     */
+    public void put(String key, String value) throws IOException;
+
+    /**
+     * Insert or update a key-value pair that expires at the given time.
+     * Once expired the key is treated as not stored and its space is
+     * reclaimed in the background.
+     * @param expiresAt time in milliseconds since the epoch, 0 if the key
+     *           does not expire
+     */
+    public void put(String key, String value, long expiresAt) throws IOException;
+
+    /**
+     * Insert or update a key-value pair whose value is arbitrary bytes,
+     * the String variants store their value encoded as UTF-8.
+     * @param expiresAt time in milliseconds since the epoch, 0 if the key
+     *           does not expire
+     */
+    public void put(String key, byte[] value, long expiresAt) throws IOException;
+
+    /**
+     * Insert, update or remove several keys as one write, a null value
+     * removing its key, which waits once for all of it to be as durable
+     * as the storage is configured to make it.
+     * @param expiresAt time in milliseconds since the epoch the keys put
+     *           expire at, 0 if they do not expire
+     * @throws IllegalArgumentException if a key or value is too large, in
+     *           which case nothing is written, except by the partitions of
+     *           a ShardedStorage that had no such key
+     */
+    public void putAll(Map<String, byte[]> entries, long expiresAt) throws IOException;
+
+    /**
+     * @return  time in milliseconds since the epoch at which the key
+     *          expires, 0 if it does not expire or is not stored
+     */
+    public long getExpiry(String key) throws IOException;
+
+    /**
+     * Get the key-value pairs whose keys lie in a range, in key order.
+     * @param from first key of the range, inclusive
+     * @param to end of the range, exclusive, null for no end
+     * @param limit maximum number of pairs to return
+     * @return  at most limit pairs, fewer only if the range holds no more
+     */
+    public List<Map.Entry<String, byte[]>> scan(String from, String to, int limit) throws IOException;
+
+    /**
+     * Remove a key, does nothing if it is not stored.
+     */
+    public void delete(String key) throws IOException;
+
+    /**
+     * Remove every key-value pair.
+     */
+    public void clear() throws IOException;
+
+    /**
+     * Persist everything and release the files.
+     */
+    public void close();
+
+    /**
+     * Write a consistent copy of the data as of one point in time into the
+     * target directory while writes carry on. If the directory holds an
+     * earlier snapshot, only the data written since is copied. The snapshot
+     * can be opened as storage of the same kind.
+     */
+    public void snapshot(File target) throws IOException;
+
+    /**
+     * @return  number of keys stored
+     */
+    public int size();
+
+    /**
+     * @return  bytes of the values put since the storage was opened divided
+     *          by the bytes they take up in storage, 1 without compression
+     */
+    public double getCompressionRatio();
+}
@@ -0,0 +1,17 @@
+package app_kvServer.storage;
+
+/**
+ * Storage engine that can serve as one partition of a ShardedStorage.
+ */
+interface IPartition extends IKVStorage {
+
+    /**
+     * @return  bytes of the values put since the storage was opened
+     */
+    public long getValueBytes();
+
+    /**
+     * @return  bytes those values take up in storage after compression
+     */
+    public long getStoredValueBytes();
+}
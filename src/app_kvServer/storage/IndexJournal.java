@@ -0,0 +1,381 @@
+package app_kvServer.storage;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Persists the key to location index of a LogStorage as a binary checkpoint
+ * plus an append-only journal of the changes made since.
+ *
+ * Every index change appends one fixed-size entry to the current journal
+ * generation, so a write costs O(1) regardless of the number of keys.
+ * A checkpoint first rolls the journal over to a new generation and then
+ * dumps the whole index, tagged with that generation, into hash.idx; the
+ * journals of older generations are deleted afterwards. Because rolling over
+ * happens under the storage write lock, every change the dump might miss is
+ * in a journal of the checkpoint's generation or later, which is replayed on
+ * top of it at startup.
+ *
+ * Every entry also carries the version of the write, and the checkpoint the
+ * newest version at the time of the rotation, so the version counter of the
+ * storage continues where it left off after a restart. Entries of puts carry
+ * the deadline of keys that expire, 0 for keys that do not.
+ *
+ * Journal entry layout (ENTRY_SIZE bytes):
+ *   1 byte operation | 1 byte key length | key bytes padded to MAX_KEY_SIZE | 8 byte location | 8 byte version | 8 byte deadline
+ *
+ * Checkpoint layout:
+ *   4 byte magic | 8 byte generation | 8 byte version | entries of (1 byte key length | key bytes | 8 byte location | 8 byte deadline) | 1 zero byte
+ */
+class IndexJournal {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    static final int MAX_KEY_SIZE = OffsetIndex.MAX_KEY_SIZE;
+    static final int ENTRY_SIZE = 1 + 1 + MAX_KEY_SIZE + 8 + 8 + 8;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+
+    private static final int CHECKPOINT_MAGIC = 0x4B56495A;
+    static final String CHECKPOINT_FILE = "hash.idx";
+    static final String JOURNAL_PREFIX = "index-";
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    private final File dir;
+    private final ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+    /* entries held back until endBatch() writes them, null outside a batch */
+    private ByteArrayOutputStream batch;
+
+    /* journal state, guarded by the storage write lock */
+    private long generation = 0;
+    private FileOutputStream journal;
+    private long entriesSinceCheckpoint = 0;
+
+    /* serializes writing checkpoints against clear() */
+    private final Object checkpointLock = new Object();
+    private long clearedGeneration = 0;
+
+    IndexJournal(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Rebuild the index from the checkpoint and the journals written after it
+     * and open the latest journal for appending.
+     * @return  newest version found in the checkpoint or the journals
+     */
+    long load(OffsetIndex index) throws IOException {
+        long[] checkpoint = readCheckpoint(index);
+        long checkpointGeneration = checkpoint[0];
+        long version = checkpoint[1];
+
+        List<Long> generations = listGenerations();
+        for (long gen : generations) {
+            if (gen < checkpointGeneration) {
+                journalFile(gen).delete();
+                continue;
+            }
+            long[] replayed = replay(journalFile(gen), index);
+            entriesSinceCheckpoint += replayed[0];
+            version = Math.max(version, replayed[1]);
+            generation = gen;
+        }
+        generation = Math.max(generation, checkpointGeneration);
+        openJournal();
+        logger.info("Loaded index checkpoint of generation " + checkpointGeneration
+                + " and replayed " + entriesSinceCheckpoint + " journal entries.");
+        return version;
+    }
+
+    /**
+     * @return  true if there is a checkpoint or a journal to load
+     */
+    boolean exists() {
+        return new File(dir, CHECKPOINT_FILE).isFile() || !listGenerations().isEmpty();
+    }
+
+    /**
+     * Delete the checkpoint and all journals, e.g. because they could not be
+     * read, and open a new journal. The caller rebuilds the index from the
+     * segments and checkpoints it.
+     */
+    synchronized void reset() throws IOException {
+        if (journal != null) {
+            close();
+        }
+        for (long gen : listGenerations()) {
+            generation = Math.max(generation, gen);
+            journalFile(gen).delete();
+        }
+        new File(dir, CHECKPOINT_FILE).delete();
+        generation++;
+        entriesSinceCheckpoint = 0;
+        openJournal();
+    }
+
+    void logPut(byte[] key, long location, long version, long expiresAt) throws IOException {
+        append(OP_PUT, key, location, version, expiresAt);
+    }
+
+    void logDelete(byte[] key, long version) throws IOException {
+        append(OP_DELETE, key, 0, version, OffsetIndex.NEVER);
+    }
+
+    /**
+     * Hold back the entries logged from now on, so endBatch() writes them
+     * to the journal at once. Called under the storage write lock.
+     */
+    void beginBatch() {
+        batch = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Write the entries logged since beginBatch(). Called under the storage
+     * write lock, also if the batch failed, so the journal holds an entry
+     * for every record written.
+     */
+    void endBatch() throws IOException {
+        ByteArrayOutputStream entries = batch;
+        batch = null;
+        journal.write(entries.toByteArray());
+    }
+
+    long getEntriesSinceCheckpoint() {
+        return this.entriesSinceCheckpoint;
+    }
+
+    /**
+     * Start a new journal generation. Must be called under the storage write
+     * lock, the returned generation is then handed to checkpoint().
+     */
+    synchronized long rotate() throws IOException {
+        journal.getChannel().force(false);
+        journal.close();
+        generation++;
+        entriesSinceCheckpoint = 0;
+        openJournal();
+        return generation;
+    }
+
+    /**
+     * Dump the index as the checkpoint of the given generation and delete the
+     * journals it supersedes. Runs without the storage write lock; changes
+     * made while the index is being iterated are also in the journal of
+     * this generation.
+     * @param version newest version at the time the journal was rotated
+     */
+    void checkpoint(long gen, long version, OffsetIndex index) throws IOException {
+        synchronized (checkpointLock) {
+            if (gen <= clearedGeneration) {
+                /* storage was cleared after the journal was rotated */
+                return;
+            }
+            File tmp = new File(dir, CHECKPOINT_FILE + ".tmp");
+            FileOutputStream file = new FileOutputStream(tmp);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            try {
+                out.writeInt(CHECKPOINT_MAGIC);
+                out.writeLong(gen);
+                out.writeLong(version);
+                index.forEach(new OffsetIndex.Visitor() {
+                    public void visit(byte[] key, long location, long expiresAt) throws IOException {
+                        out.writeByte(key.length);
+                        out.write(key);
+                        out.writeLong(location);
+                        out.writeLong(expiresAt);
+                    }
+                });
+                out.writeByte(0);
+                /* the journals are deleted next, the checkpoint must be on disk by then */
+                out.flush();
+                file.getFD().sync();
+            } finally {
+                out.close();
+            }
+            replace(tmp, new File(dir, CHECKPOINT_FILE));
+
+            for (long old : listGenerations()) {
+                if (old < gen) {
+                    journalFile(old).delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the checkpoint and all journals. Must be called under the storage
+     * write lock.
+     */
+    void clear() throws IOException {
+        synchronized (checkpointLock) {
+            synchronized (this) {
+                journal.close();
+                for (long gen : listGenerations()) {
+                    journalFile(gen).delete();
+                }
+                new File(dir, CHECKPOINT_FILE).delete();
+                generation++;
+                clearedGeneration = generation;
+                entriesSinceCheckpoint = 0;
+                openJournal();
+            }
+        }
+    }
+
+    /**
+     * Force the journal entries appended so far to disk. May be called
+     * without the storage write lock, it is synchronized with rotate().
+     */
+    synchronized void force() throws IOException {
+        journal.getChannel().force(false);
+    }
+
+    synchronized void close() {
+        try {
+            journal.close();
+        } catch (IOException e) {
+            logger.error("Error closing index journal! " + e.getMessage());
+        }
+    }
+
+    private void append(byte op, byte[] key, long location, long version, long expiresAt) throws IOException {
+        entry.clear();
+        entry.put(op);
+        entry.put((byte) key.length);
+        entry.put(key);
+        entry.position(2 + MAX_KEY_SIZE);
+        entry.putLong(location);
+        entry.putLong(version);
+        entry.putLong(expiresAt);
+        if (batch != null) {
+            batch.write(entry.array(), 0, ENTRY_SIZE);
+        } else {
+            journal.write(entry.array(), 0, ENTRY_SIZE);
+        }
+        entriesSinceCheckpoint++;
+    }
+
+    /* opens the journal of the current generation, dropping a torn last entry */
+    private void openJournal() throws IOException {
+        File file = journalFile(generation);
+        if (file.length() % ENTRY_SIZE != 0) {
+            logger.error("Index journal " + file + " ends with an incomplete entry.");
+            RandomAccessFile f = new RandomAccessFile(file, "rw");
+            try {
+                f.setLength(file.length() - file.length() % ENTRY_SIZE);
+            } finally {
+                f.close();
+            }
+        }
+        journal = new FileOutputStream(file, true);
+    }
+
+    /* returns the generation and the version of the checkpoint */
+    private long[] readCheckpoint(OffsetIndex index) throws IOException {
+        File file = new File(dir, CHECKPOINT_FILE);
+        if (!file.isFile() || file.length() == 0) {
+            return new long[] {0, 0};
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != CHECKPOINT_MAGIC) {
+                throw new IOException("Index checkpoint " + file + " has an unknown format!");
+            }
+            long gen = in.readLong();
+            long version = in.readLong();
+            int length;
+            while ((length = in.readUnsignedByte()) != 0) {
+                byte[] key = new byte[length];
+                in.readFully(key);
+                long location = in.readLong();
+                index.put(key, location, in.readLong());
+            }
+            return new long[] {gen, version};
+        } finally {
+            in.close();
+        }
+    }
+
+    /* applies the entries of a journal file and returns how many there were
+       and the newest version among them */
+    private static long[] replay(File file, OffsetIndex index) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        byte[] buf = new byte[ENTRY_SIZE];
+        long count = 0;
+        long version = 0;
+        try {
+            while (true) {
+                try {
+                    in.readFully(buf);
+                } catch (EOFException e) {
+                    break;
+                }
+                ByteBuffer b = ByteBuffer.wrap(buf);
+                byte op = b.get();
+                byte[] key = new byte[b.get() & 0xFF];
+                System.arraycopy(buf, 2, key, 0, key.length);
+                b.position(2 + MAX_KEY_SIZE);
+                long location = b.getLong();
+                long entryVersion = b.getLong();
+                if (op == OP_PUT) {
+                    index.put(key, location, b.getLong());
+                } else if (op == OP_DELETE) {
+                    index.remove(key);
+                } else {
+                    throw new IOException("Index journal " + file + " is corrupt!");
+                }
+                version = Math.max(version, entryVersion);
+                count++;
+            }
+        } finally {
+            in.close();
+        }
+        return new long[] {count, version};
+    }
+
+    private List<Long> listGenerations() {
+        List<Long> generations = new ArrayList<Long>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(JOURNAL_PREFIX) && name.endsWith(JOURNAL_SUFFIX)) {
+                    generations.add(Long.parseLong(name.substring(JOURNAL_PREFIX.length(),
+                            name.length() - JOURNAL_SUFFIX.length())));
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    private File journalFile(long gen) {
+        return new File(dir, String.format("%s%010d%s", JOURNAL_PREFIX, gen, JOURNAL_SUFFIX));
+    }
+
+    /* rename that also works on platforms that refuse to overwrite */
+    static void replace(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            to.delete();
+            if (!from.renameTo(to)) {
+                throw new IOException("Unable to replace " + to);
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package app_kvServer.storage;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Properties;
+
+/**
+ * Imports the database.dat and hash.idx files of the fixed-layout storage
+ * the log replaced, so a server upgraded in place keeps its data.
+ *
+ * hash.idx is a properties file mapping every stored key to the offset of
+ * its record in database.dat, deleted keys are not in it. A record is the
+ * value length as an int, the key padded to KEY_SIZE bytes and the value,
+ * both written one byte per character.
+ *
+ * Once every value is in the new storage the old files are renamed with the
+ * IMPORTED_SUFFIX, so the import runs once while the files stay around until
+ * an operator removes them. An import that fails leaves them in place and is
+ * run again in full on the next start, which puts the same values again.
+ */
+public class LegacyDatabase {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    public static final String IMPORTED_SUFFIX = ".imported";
+    /* bytes reserved for the key of a record */
+    private static final int KEY_SIZE = 20;
+    private static final int MAX_VALUE_SIZE = 120000;
+    /* writeBytes() kept the low byte of every character */
+    private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+    private LegacyDatabase() {
+    }
+
+    /**
+     * @return true if there is an old database that was not imported yet
+     */
+    public static boolean exists(File dataFile, File indexFile) {
+        return dataFile.isFile() || indexFile.isFile();
+    }
+
+    /**
+     * Put every key of the old database into the storage and rename the old
+     * files once all are in.
+     * @return  number of keys imported
+     * @throws IOException if the old files cannot be read or are corrupt,
+     *          or the storage fails to take a value
+     */
+    public static int importInto(File dataFile, File indexFile, IKVStorage storage) throws IOException {
+        if (!dataFile.isFile() || !indexFile.isFile()) {
+            throw new IOException("Old database is incomplete, expected both " + dataFile + " and "
+                    + indexFile + "!");
+        }
+        Properties index = new Properties();
+        InputStream in = new FileInputStream(indexFile);
+        try {
+            index.load(in);
+        } finally {
+            in.close();
+        }
+        RandomAccessFile data = new RandomAccessFile(dataFile, "r");
+        try {
+            for (String key : index.stringPropertyNames()) {
+                storage.put(key, readValue(data, key, index.getProperty(key)));
+            }
+        } finally {
+            data.close();
+        }
+        rename(dataFile);
+        rename(indexFile);
+        logger.info("Imported " + index.size() + " keys of the old database " + dataFile + ".");
+        return index.size();
+    }
+
+    private static String readValue(RandomAccessFile data, String key, String offset) throws IOException {
+        long begin;
+        try {
+            begin = Long.parseLong(offset.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Old index holds no offset for key " + key + "!");
+        }
+        if (begin < 0 || begin + 4 + KEY_SIZE > data.length()) {
+            throw new IOException("Old index points past the data file for key " + key + "!");
+        }
+        data.seek(begin);
+        int length = data.readInt();
+        if (length < 0 || length > MAX_VALUE_SIZE || begin + 4 + KEY_SIZE + length > data.length()) {
+            throw new IOException("Old record of key " + key + " is corrupt!");
+        }
+        byte[] value = new byte[length];
+        data.seek(begin + 4 + KEY_SIZE);
+        data.readFully(value);
+        return new String(value, CHARSET);
+    }
+
+    private static void rename(File file) throws IOException {
+        File imported = new File(file.getPath() + IMPORTED_SUFFIX);
+        if (!file.renameTo(imported)) {
+            throw new IOException("Unable to rename " + file + " to " + imported + "!");
+        }
+    }
+}
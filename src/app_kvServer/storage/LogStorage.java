@@ -0,0 +1,1395 @@
+package app_kvServer.storage;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, segment based key-value storage.
+ *
+ * Every PUT appends a variable-length record to the active segment and points
+ * the in-memory index at it; the previous record of that key becomes dead.
+ * Once the active segment reaches its size limit it is sealed and a new one
+ * is started. A background Compactor copies the live records out of sealed
+ * segments with many dead bytes into a fresh segment, swaps the index entries
+ * over and deletes the old files, so disk usage stays proportional to the
+ * live data. A FreeSpaceMap keeps the sealed segments sorted by their dead
+ * bytes, so each compaction frees the most space for the bytes it copies
+ * and segments without live records are dropped without copying anything.
+ *
+ * Record layout:
+ *   1 byte key length | 1 byte flags | 4 byte value length | 8 byte version | 4 byte CRC32 | key bytes | value bytes
+ *
+ * The checksum covers the rest of the header, the key and the stored value.
+ * It is verified whenever a value is read onto the heap, and for every
+ * record that recovery or compaction reads, so those never pass on bytes
+ * that changed on disk. A value sent straight from the file with
+ * transferTo is only verified with the verified transfers option, as that
+ * reads the record an extra time through the heap and gives up most of
+ * what transferTo saves; without it, a record that changed on disk since
+ * it was last read can be sent as it is.
+ * A DELETE appends a tombstone, a record with the FLAG_TOMBSTONE flag and
+ * no value, so the segments alone tell which keys exist. Compaction keeps a
+ * tombstone as long as an older segment might still hold a record it
+ * shadows.
+ *
+ * With compression enabled, values of at least the configured size are
+ * stored deflated if that makes them smaller, which the FLAG_DEFLATE flag
+ * marks; only those records are inflated again when read. Values are
+ * compressed before the write lock is taken.
+ *
+ * A PUT with a time-to-live stores its deadline in the first 8 bytes of the
+ * value and sets FLAG_EXPIRES; the index keeps a copy of the deadline, so
+ * an expired key is invisible to get() and contains() the moment it
+ * expires. A TimingWheel reclaims it in the background by dropping its
+ * index entry, which leaves its record dead. The deadline makes the record
+ * dead by itself, so no tombstone is written, but compaction treats an
+ * expired record like one as long as older records of its key may exist.
+ *
+ * Records are never changed once written, so every PUT adds a new version
+ * of its key and the index points at the newest one. The version is the
+ * sequence number of the write that created the record and is also kept in
+ * the IndexJournal.
+ *
+ * A GET looks up the location without taking a lock and reads whichever
+ * version was current at that moment while writers carry on; it never sees
+ * a partly written value because a record is only published in the index
+ * after it was appended. Superseded versions stay readable until the
+ * Compactor reclaims their segment, and a segment is only closed once the
+ * readers pinning it are done. transferValue() pins the segment the same
+ * way while it sends a value from the file to a socket with
+ * FileChannel.transferTo.
+ *
+ * The OffsetIndex maps each key to a location that packs the segment id,
+ * the offset of the record inside the segment and the record length into a
+ * single long. The id of a deleted segment is given to the next new one, so
+ * the ids in use stay below the number of segments on disk; a reader that
+ * looked up a location before its segment was deleted checks the key of the
+ * record it finds and looks again if it belongs to another key.
+ *
+ * Every change to the index is appended to an IndexJournal, which the
+ * Compactor checkpoints once the journal grows as large as the index.
+ *
+ * The hash index has no order, so by default a range scan walks all of it
+ * and keeps the smallest keys of the range, which takes time proportional
+ * to the number of keys but no memory per key. With the sorted keys option
+ * the keys are also kept in a sorted set, which a scan walks from the start
+ * of the range; that costs a String and a skip list node, about 100 bytes
+ * of heap plus twice the key length, for every key, which the garbage
+ * collector has to trace.
+ *
+ * The segments and the journal together act as the write-ahead log: put()
+ * and delete() return once their records are durable according to the
+ * SyncPolicy, either forced individually, batched with concurrent writers
+ * through a GroupCommit, or left to the operating system. Compaction and
+ * checkpoints always force their output before deleting what it replaces.
+ *
+ * A clean shutdown leaves a marker file next to the checkpoint. Without it,
+ * or if the checkpoint and journals cannot be read, the index is rebuilt by
+ * scanning all segments in parallel through Recovery, which also cuts off
+ * records torn by the crash. Alternatively the journal can be replayed after
+ * a crash, in which case only the newest segment is scanned for a torn end.
+ *
+ * A snapshot records the segments and their lengths under the write lock
+ * and then copies them while writes go on; sealed segments never change
+ * and the active one is only appended to, so these prefixes hold exactly
+ * the records up to that moment. Compaction waits until the copy is done.
+ * The snapshot holds no index, opening it rebuilds one through Recovery.
+ */
+public class LogStorage implements IPartition {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    static final Charset CHARSET = Charset.forName("UTF-8");
+
+    static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    static final int HEADER_SIZE = 1 + 1 + 4 + 8 + 4;
+    private static final int FLAGS_OFFSET = 1;
+    private static final int VALUE_LENGTH_OFFSET = 2;
+    private static final int VERSION_OFFSET = 6;
+    private static final int CRC_OFFSET = 14;
+    static final byte FLAG_DEFLATE = 1;
+    static final byte FLAG_TOMBSTONE = 2;
+    static final byte FLAG_EXPIRES = 4;
+    private static final int EXPIRY_SIZE = 8;
+
+    /* created by close(), its absence on open means the server crashed */
+    private static final String CLEAN_FILE = "clean";
+
+    /* location = segment id (20 bits) | offset (26 bits) | record length (18 bits) */
+    private static final int LENGTH_BITS = 18;
+    private static final int OFFSET_BITS = 26;
+    private static final int MAX_SEGMENT_ID = (1 << 20) - 1;
+    public static final long MAX_SEGMENT_SIZE = 1L << OFFSET_BITS;
+    static final int MAX_RECORD_SIZE = (1 << LENGTH_BITS) - 1;
+
+    /* share of dead bytes at which a sealed segment is compacted */
+    private static final double COMPACTION_THRESHOLD = 0.5;
+    /* live bytes one compaction may copy, in segments */
+    private static final int COMPACTION_BATCH = 4;
+    private static final long COMPACTION_INTERVAL = 30 * 1000;
+    /* journal entries after which a checkpoint is taken even for small indexes */
+    private static final long CHECKPOINT_MIN_ENTRIES = 10000;
+    /* bytes read at a time to verify a record sent with transferTo */
+    private static final int VERIFY_CHUNK_SIZE = 64 * 1024;
+    /* granularity at which expired keys are reclaimed */
+    private static final long EXPIRY_TICK = 1000;
+
+    private final File dir;
+    private final long maxSegmentSize;
+    private final boolean memoryMapped;
+    private final SyncPolicy syncPolicy;
+    private final boolean compressed;
+    private final int compressionThreshold;
+    private final boolean scanOnCrash;
+    private final boolean verifiedTransfers;
+    private final IndexJournal journal;
+    private final GroupCommit groupCommit;
+
+    private final OffsetIndex index;
+    /* the keys of the index in order, changed under the write lock, null
+       unless the sorted keys option is set */
+    private final ConcurrentSkipListSet<String> orderedKeys;
+    private final ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<Integer, Segment>();
+    private final FreeSpaceMap freeSpace = new FreeSpaceMap();
+
+    /* guards appends, index updates and the segment set */
+    private final Object writeLock = new Object();
+    private Segment active;
+    private int nextSegmentId = 0;
+    /* ids below nextSegmentId whose segment was deleted, reused first */
+    private final TreeSet<Integer> freeSegmentIds = new TreeSet<Integer>();
+    /* version of the newest put or delete */
+    private long writeSequence = 0;
+
+    private Compactor compactor;
+    private final TimingWheel expiry;
+
+    /* value bytes put since the storage was opened, before and after compression */
+    private final AtomicLong valueBytes = new AtomicLong();
+    private final AtomicLong storedValueBytes = new AtomicLong();
+
+    /**
+     * Open the storage in the given directory with default options except
+     * for the segment size.
+     * @param dir directory holding the segment files and the index
+     * @param maxSegmentSize size in bytes after which the active segment
+     *           is sealed, at most MAX_SEGMENT_SIZE
+     */
+    public LogStorage(File dir, long maxSegmentSize) throws IOException {
+        this(dir, withSegmentSize(maxSegmentSize));
+    }
+
+    /**
+     * Open the storage in the given directory, creating it if needed.
+     * @param dir directory holding the segment files and the index
+     * @param options segment size and read path to use
+     */
+    public LogStorage(File dir, StorageOptions options) throws IOException {
+        this.dir = dir;
+        this.maxSegmentSize = options.getSegmentSize();
+        this.memoryMapped = options.isMemoryMapped();
+        this.syncPolicy = options.getSyncPolicy();
+        this.compressed = options.isCompressed();
+        this.compressionThreshold = options.getCompressionThreshold();
+        this.scanOnCrash = options.getRecovery().equals(StorageOptions.RECOVERY_SCAN);
+        this.verifiedTransfers = options.isVerifiedTransfers();
+        this.groupCommit = new GroupCommit(new GroupCommit.Log() {
+            public long sync() throws IOException {
+                return LogStorage.this.sync();
+            }
+        }, options.getGroupCommitMillis());
+        this.index = new OffsetIndex(options.isOffHeapIndex());
+        this.orderedKeys = options.isSortedKeys() ? new ConcurrentSkipListSet<String>() : null;
+        this.journal = new IndexJournal(dir);
+        this.expiry = new TimingWheel(new TimingWheel.Handler() {
+            public void expired(byte[] key, long deadline) {
+                LogStorage.this.expired(key, deadline);
+            }
+        }, EXPIRY_TICK);
+        open();
+        this.compactor = new Compactor(new Compactor.Task() {
+            public void compact() throws IOException {
+                LogStorage.this.compact();
+            }
+
+            public void checkpointIfNeeded() throws IOException {
+                LogStorage.this.checkpointIfNeeded();
+            }
+        }, COMPACTION_INTERVAL);
+        Thread compactorThread = new Thread(compactor, "compactor");
+        compactorThread.setDaemon(true);
+        compactorThread.start();
+        Thread expiryThread = new Thread(expiry, "expiry");
+        expiryThread.setDaemon(true);
+        expiryThread.start();
+    }
+
+    private static StorageOptions withSegmentSize(long maxSegmentSize) {
+        StorageOptions options = new StorageOptions();
+        options.setSegmentSize(maxSegmentSize);
+        return options;
+    }
+
+    private void open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create storage directory " + dir);
+        }
+
+        for (File file : listSegmentFiles()) {
+            int id = segmentId(file);
+            segments.put(id, new Segment(id, file, memoryMapped));
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+        }
+
+        for (int id = 0; id < nextSegmentId; id++) {
+            if (!segments.containsKey(id)) {
+                freeSegmentIds.add(id);
+            }
+        }
+
+        boolean clean = new File(dir, CLEAN_FILE).delete();
+        boolean rebuild = !clean && scanOnCrash;
+        if (!rebuild && !journal.exists() && !segments.isEmpty()) {
+            logger.error("Storage at " + dir + " has segments but no index.");
+            rebuild = true;
+        }
+        if (!rebuild) {
+            try {
+                writeSequence = journal.load(index);
+                if (!clean && !segments.isEmpty()) {
+                    writeSequence = Math.max(writeSequence, Recovery.truncateTornEnd(newestSegment()));
+                }
+            } catch (IOException e) {
+                logger.error("Unable to load the index of " + dir + ": " + e.getMessage());
+                index.clear();
+                rebuild = true;
+            }
+        }
+        if (rebuild) {
+            journal.reset();
+            writeSequence = Recovery.rebuild(segments.values(), newestSegment(), index);
+        }
+
+        /* every record the index does not point at is dead */
+        final Map<Integer, Long> live = new HashMap<Integer, Long>();
+        final List<byte[]> missing = new ArrayList<byte[]>();
+        index.forEach(new OffsetIndex.Visitor() {
+            public void visit(byte[] key, long location, long expiresAt) {
+                Segment segment = segments.get(segmentOf(location));
+                if (segment == null || offsetOf(location) + lengthOf(location) > segment.getSize()) {
+                    logger.error("Index entry of key " + new String(key, CHARSET)
+                            + " points to a missing record.");
+                    missing.add(key);
+                    return;
+                }
+                Long bytes = live.get(segmentOf(location));
+                live.put(segmentOf(location), (bytes == null ? 0 : bytes) + lengthOf(location));
+                if (orderedKeys != null) {
+                    orderedKeys.add(new String(key, CHARSET));
+                }
+                if (expiresAt != OffsetIndex.NEVER) {
+                    expiry.schedule(key, expiresAt);
+                }
+            }
+        });
+        for (byte[] key : missing) {
+            index.remove(key);
+        }
+        for (Segment segment : segments.values()) {
+            Long bytes = live.get(segment.getId());
+            segment.addDeadBytes(segment.getSize() - (bytes == null ? 0 : bytes));
+        }
+
+        synchronized (writeLock) {
+            Segment last = newestSegment();
+            active = last != null ? last : newSegment(writeSequence + 1);
+            for (Segment segment : segments.values()) {
+                if (segment != active) {
+                    freeSpace.add(segment);
+                }
+            }
+        }
+        if (rebuild) {
+            checkpoint();
+        }
+        logger.info("Opened storage at " + dir + " with " + segments.size()
+                + " segments and " + index.size() + " keys.");
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return index.containsLive(key.getBytes(CHARSET), System.currentTimeMillis());
+    }
+
+    /**
+     * @return  value of the key, or null if the key is not stored
+     */
+    @Override
+    public String get(String key) throws IOException {
+        byte[] value = getBytes(key);
+        return value == null ? null : new String(value, CHARSET);
+    }
+
+    @Override
+    public byte[] getBytes(String key) throws IOException {
+        byte[] keyBytes = key.getBytes(CHARSET);
+        return read(keyBytes, index.get(keyBytes), null);
+    }
+
+    /**
+     * Look all keys up first, then read their records sorted by location,
+     * so the batch goes through every segment once, front to back.
+     */
+    @Override
+    public Map<String, byte[]> getAll(Collection<String> keys, Set<String> expiring) throws IOException {
+        TreeMap<Long, String> byLocation = new TreeMap<Long, String>();
+        for (String key : keys) {
+            long location = index.get(key.getBytes(CHARSET));
+            if (location != OffsetIndex.NONE) {
+                byLocation.put(location, key);
+            }
+        }
+        Map<String, byte[]> values = new HashMap<String, byte[]>();
+        long[] deadline = new long[1];
+        for (Map.Entry<Long, String> entry : byLocation.entrySet()) {
+            byte[] value = read(entry.getValue().getBytes(CHARSET), entry.getKey(), deadline);
+            if (value != null) {
+                values.put(entry.getValue(), value);
+                if (expiring != null && deadline[0] != OffsetIndex.NEVER) {
+                    expiring.add(entry.getValue());
+                }
+            }
+        }
+        return values;
+    }
+
+    /* reads the value of the record at the location the key was looked up
+       at, and its deadline into the array if one is given */
+    private byte[] read(byte[] keyBytes, long location, long[] deadline) throws IOException {
+        while (location != OffsetIndex.NONE) {
+            try {
+                return readValue(keyBytes, location, deadline);
+            } catch (IOException e) {
+                /* the compactor may have moved the record and deleted its
+                   segment, or given its id to a new one, after we looked it
+                   up, in that case look again */
+                long current = index.get(keyBytes);
+                if (location == current) {
+                    throw e;
+                }
+                location = current;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean transferValue(String key, Framer framer, WritableByteChannel target) throws IOException {
+        byte[] keyBytes = key.getBytes(CHARSET);
+        long location = index.get(keyBytes);
+        while (location != OffsetIndex.NONE) {
+            Segment segment = segments.get(segmentOf(location));
+            int prefix = Math.min(lengthOf(location), HEADER_SIZE + keyBytes.length + EXPIRY_SIZE);
+            ByteBuffer record;
+            try {
+                if (segment == null) {
+                    throw new IOException("Segment " + segmentOf(location) + " does not exist!");
+                }
+                record = segment.acquire(offsetOf(location), prefix);
+                if (!holdsKey(record, keyBytes)) {
+                    segment.release();
+                    throw new IOException("Segment " + segmentOf(location) + " holds another key at offset "
+                            + offsetOf(location) + "!");
+                }
+            } catch (IOException e) {
+                /* moved by the compactor, like in get() */
+                long current = index.get(keyBytes);
+                if (location == current) {
+                    throw e;
+                }
+                location = current;
+                continue;
+            }
+            try {
+                return transferValue(segment, location, record, framer, target);
+            } finally {
+                segment.release();
+            }
+        }
+        return false;
+    }
+
+    /* sends the value of the pinned record unless it is compressed or expired */
+    private boolean transferValue(Segment segment, long location, ByteBuffer record, Framer framer,
+            WritableByteChannel target) throws IOException {
+        byte flags = record.get(FLAGS_OFFSET);
+        int valOffset = HEADER_SIZE + (record.get(0) & 0xFF);
+        int valSize = record.getInt(VALUE_LENGTH_OFFSET);
+        if ((flags & FLAG_DEFLATE) != 0) {
+            return false;
+        }
+        if ((flags & FLAG_EXPIRES) != 0) {
+            if (record.getLong(valOffset) <= System.currentTimeMillis()) {
+                return false;
+            }
+            valOffset += EXPIRY_SIZE;
+            valSize -= EXPIRY_SIZE;
+        }
+        ByteBuffer header = framer.header(valSize);
+        if (header == null) {
+            return false;
+        }
+        if (verifiedTransfers) {
+            verify(segment, location, record);
+        }
+        writeFully(header, target);
+        segment.transferTo(offsetOf(location) + valOffset, valSize, target);
+        writeFully(framer.trailer(), target);
+        return true;
+    }
+
+    private static void writeFully(ByteBuffer src, WritableByteChannel target) throws IOException {
+        while (src.hasRemaining()) {
+            target.write(src);
+        }
+    }
+
+    @Override
+    public long getExpiry(String key) {
+        return index.getExpiry(key.getBytes(CHARSET));
+    }
+
+    @Override
+    public void put(String key, String value) throws IOException {
+        put(key, value, OffsetIndex.NEVER);
+    }
+
+    @Override
+    public void put(String key, String value, long expiresAt) throws IOException {
+        put(key, value.getBytes(CHARSET), expiresAt);
+    }
+
+    @Override
+    public void put(String key, byte[] value, long expiresAt) throws IOException {
+        Record record = encode(key, value, expiresAt);
+        long version;
+        synchronized (writeLock) {
+            version = write(key, record);
+        }
+        commit(version);
+    }
+
+    /**
+     * Append every record while holding the write lock once, with their
+     * journal entries written at once, and wait for durability once.
+     */
+    @Override
+    public void putAll(Map<String, byte[]> entries, long expiresAt) throws IOException {
+        /* checks every record before any is written */
+        Map<String, Record> records = new LinkedHashMap<String, Record>();
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            records.put(entry.getKey(), entry.getValue() == null
+                    ? new Record(checkKey(entry.getKey()), FLAG_TOMBSTONE, 0, new byte[0])
+                    : encode(entry.getKey(), entry.getValue(), expiresAt));
+        }
+        long version = 0;
+        synchronized (writeLock) {
+            journal.beginBatch();
+            try {
+                for (Map.Entry<String, Record> entry : records.entrySet()) {
+                    Record record = entry.getValue();
+                    long written = record.isTombstone() ? remove(entry.getKey(), record.keyBytes)
+                            : write(entry.getKey(), record);
+                    version = Math.max(version, written);
+                }
+            } finally {
+                journal.endBatch();
+            }
+        }
+        if (version != 0) {
+            commit(version);
+        }
+    }
+
+    /* compresses the value and checks the size of the record, before the
+       write lock is taken; the version is given when it is written */
+    private Record encode(String key, byte[] value, long expiresAt) {
+        byte[] keyBytes = key.getBytes(CHARSET);
+        byte[] valueBytes = value;
+        int rawLength = valueBytes.length;
+        byte flags = 0;
+        if (compressed && valueBytes.length >= compressionThreshold) {
+            byte[] deflated = ValueCodec.compress(valueBytes);
+            if (deflated != null) {
+                valueBytes = deflated;
+                flags = FLAG_DEFLATE;
+            }
+        }
+        int storedLength = valueBytes.length;
+        if (expiresAt != OffsetIndex.NEVER) {
+            valueBytes = ByteBuffer.allocate(EXPIRY_SIZE + valueBytes.length)
+                    .putLong(expiresAt).put(valueBytes).array();
+            flags |= FLAG_EXPIRES;
+        }
+        int length = HEADER_SIZE + keyBytes.length + valueBytes.length;
+        if (keyBytes.length == 0 || keyBytes.length > OffsetIndex.MAX_KEY_SIZE || length > MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("Record too large!");
+        }
+        this.valueBytes.addAndGet(rawLength);
+        this.storedValueBytes.addAndGet(storedLength);
+        return new Record(keyBytes, flags, 0, valueBytes);
+    }
+
+    /* appends the record of a put, called under the write lock, returns its version */
+    private long write(String key, Record record) throws IOException {
+        int length = record.length();
+        if (active.getSize() + length > maxSegmentSize && active.getSize() > Segment.HEADER_SIZE) {
+            roll();
+        }
+        long version = writeSequence + 1;
+        long expiresAt = record.expiresAt();
+        long offset = append(active, record.keyBytes, record.flags, version, record.valueBytes);
+        long location = location(active.getId(), offset, length);
+        journal.logPut(record.keyBytes, location, version, expiresAt);
+        long old = index.put(record.keyBytes, location, expiresAt);
+        if (old != OffsetIndex.NONE) {
+            markDead(old);
+        } else if (orderedKeys != null) {
+            orderedKeys.add(key);
+        }
+        if (expiresAt != OffsetIndex.NEVER) {
+            /* shadows older records once expired, like a tombstone */
+            active.addedTombstone();
+            expiry.schedule(record.keyBytes, expiresAt);
+        }
+        checkJournalSize();
+        writeSequence = version;
+        return version;
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        byte[] keyBytes = checkKey(key);
+        long version;
+        synchronized (writeLock) {
+            version = remove(key, keyBytes);
+        }
+        if (version != 0) {
+            commit(version);
+        }
+    }
+
+    private static byte[] checkKey(String key) {
+        byte[] keyBytes = key.getBytes(CHARSET);
+        if (keyBytes.length == 0 || keyBytes.length > OffsetIndex.MAX_KEY_SIZE) {
+            throw new IllegalArgumentException("Record too large!");
+        }
+        return keyBytes;
+    }
+
+    /* appends a tombstone if the key is stored, called under the write lock,
+       returns its version, 0 if the key is not stored */
+    private long remove(String key, byte[] keyBytes) throws IOException {
+        if (!index.containsKey(keyBytes)) {
+            return 0;
+        }
+        int length = HEADER_SIZE + keyBytes.length;
+        if (active.getSize() + length > maxSegmentSize && active.getSize() > Segment.HEADER_SIZE) {
+            roll();
+        }
+        long version = writeSequence + 1;
+        long offset = append(active, keyBytes, FLAG_TOMBSTONE, version, new byte[0]);
+        active.addedTombstone();
+        /* no index entry points at a tombstone */
+        markDead(location(active.getId(), offset, length));
+        journal.logDelete(keyBytes, version);
+        markDead(index.remove(keyBytes));
+        if (orderedKeys != null) {
+            orderedKeys.remove(key);
+        }
+        checkJournalSize();
+        writeSequence = version;
+        return version;
+    }
+
+    /* drops the index entry of a key whose deadline passed, unless it was
+       put again or deleted since. Called by the TimingWheel thread. */
+    private void expired(byte[] key, long deadline) {
+        synchronized (writeLock) {
+            if (index.getExpiry(key) != deadline) {
+                return;
+            }
+            long version = writeSequence + 1;
+            try {
+                journal.logDelete(key, version);
+            } catch (IOException e) {
+                /* the deadline keeps the record invisible, expire it again after a restart */
+                logger.error("Error journaling expiry of key " + new String(key, CHARSET) + "! " + e.getMessage());
+                return;
+            }
+            markDead(index.remove(key));
+            if (orderedKeys != null) {
+                orderedKeys.remove(new String(key, CHARSET));
+            }
+            checkJournalSize();
+            writeSequence = version;
+        }
+    }
+
+    /**
+     * Walk the ordered keys of the range, or pick the first ones from the
+     * whole index, and read their values, skipping keys deleted or expired
+     * since they were listed.
+     */
+    @Override
+    public List<Map.Entry<String, byte[]>> scan(String from, String to, int limit) throws IOException {
+        NavigableSet<String> range;
+        if (orderedKeys != null) {
+            range = to == null ? orderedKeys.tailSet(from, true) : orderedKeys.subSet(from, true, to, false);
+        } else {
+            range = firstKeys(from, to, limit);
+        }
+        List<Map.Entry<String, byte[]>> result = new ArrayList<Map.Entry<String, byte[]>>();
+        for (String key : range) {
+            if (result.size() >= limit) {
+                break;
+            }
+            byte[] value = getBytes(key);
+            if (value != null) {
+                result.add(new AbstractMap.SimpleImmutableEntry<String, byte[]>(key, value));
+            }
+        }
+        return result;
+    }
+
+    /* the first limit keys of the index in [from, to), to null for no end */
+    private NavigableSet<String> firstKeys(final String from, final String to, final int limit) throws IOException {
+        final TreeSet<String> first = new TreeSet<String>();
+        if (limit <= 0) {
+            return first;
+        }
+        index.forEach(new OffsetIndex.Visitor() {
+            public void visit(byte[] keyBytes, long location, long expiresAt) {
+                String key = new String(keyBytes, CHARSET);
+                if (key.compareTo(from) < 0 || (to != null && key.compareTo(to) >= 0)) {
+                    return;
+                }
+                if (first.size() < limit) {
+                    first.add(key);
+                } else if (key.compareTo(first.last()) < 0) {
+                    first.pollLast();
+                    first.add(key);
+                }
+            }
+        });
+        return first;
+    }
+
+    /* returns once the write with the given sequence number is durable */
+    private void commit(long sequence) throws IOException {
+        switch (syncPolicy) {
+            case ALWAYS:
+                sync();
+                break;
+            case GROUP:
+                groupCommit.await(sequence);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Force the active segment and the journal to disk.
+     * Sealed segments were forced when the log rolled over.
+     * @return  sequence number of the newest write that is now durable
+     */
+    long sync() throws IOException {
+        long sequence;
+        Segment segment;
+        synchronized (writeLock) {
+            sequence = writeSequence;
+            segment = active;
+        }
+        segment.force();
+        journal.force();
+        return sequence;
+    }
+
+    /**
+     * Remove every segment and the index and start over with an empty log.
+     */
+    @Override
+    public void clear() throws IOException {
+        synchronized (writeLock) {
+            index.clear();
+            if (orderedKeys != null) {
+                orderedKeys.clear();
+            }
+            for (Segment segment : segments.values()) {
+                segment.delete();
+                freeSegmentIds.add(segment.getId());
+            }
+            segments.clear();
+            freeSpace.clear();
+            journal.clear();
+            active = newSegment(writeSequence + 1);
+        }
+    }
+
+    /**
+     * Stop the compactor, checkpoint the index, so the next start does not
+     * need to replay the journal, and close the segment files.
+     */
+    @Override
+    public void close() {
+        compactor.stop();
+        expiry.stop();
+        /* wait for a running compaction, it holds this object's lock */
+        synchronized (this) {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                logger.error("Error saving index file: " + e.getMessage());
+            }
+            synchronized (writeLock) {
+                journal.close();
+                for (Segment segment : segments.values()) {
+                    try {
+                        segment.close();
+                    } catch (IOException e) {
+                        logger.error("Error closing segment " + segment.getId() + "! " + e.getMessage());
+                    }
+                }
+                try {
+                    new File(dir, CLEAN_FILE).createNewFile();
+                } catch (IOException e) {
+                    logger.error("Error marking the storage as cleanly closed! " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy the segments as of now into the target directory. Holds off
+     * compaction, which would delete segments, but not writers.
+     */
+    @Override
+    public synchronized void snapshot(File target) throws IOException {
+        Map<Segment, Long> lengths = new HashMap<Segment, Long>();
+        long version;
+        synchronized (writeLock) {
+            version = writeSequence;
+            for (Segment segment : segments.values()) {
+                lengths.put(segment, segment.getSize());
+            }
+        }
+        SnapshotCopier copier = new SnapshotCopier(target, SEGMENT_PREFIX,
+                IndexJournal.CHECKPOINT_FILE, IndexJournal.JOURNAL_PREFIX, CLEAN_FILE);
+        for (Map.Entry<Segment, Long> entry : lengths.entrySet()) {
+            copier.copy(entry.getKey().getFile(), entry.getValue());
+        }
+        copier.finish(version);
+    }
+
+    /**
+     * Write a checkpoint of the index and drop the journal entries it covers.
+     * Writers are only blocked while the journal is rolled over.
+     */
+    public void checkpoint() throws IOException {
+        long generation;
+        long version;
+        synchronized (writeLock) {
+            generation = journal.rotate();
+            version = writeSequence;
+        }
+        journal.checkpoint(generation, version, index);
+        logger.info("Checkpointed index with " + index.size() + " keys.");
+    }
+
+    /**
+     * Checkpoint if the journal has grown at least as large as the index,
+     * which keeps the amortized cost per write constant.
+     * Called by the Compactor thread.
+     */
+    void checkpointIfNeeded() throws IOException {
+        if (journalTooLarge()) {
+            checkpoint();
+        }
+    }
+
+    private boolean journalTooLarge() {
+        return journal.getEntriesSinceCheckpoint() >= Math.max(CHECKPOINT_MIN_ENTRIES, index.size());
+    }
+
+    /* called under the write lock after each journal append */
+    private void checkJournalSize() {
+        if (journalTooLarge()) {
+            compactor.request();
+        }
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long stored = storedValueBytes.get();
+        return stored == 0 ? 1 : (double) valueBytes.get() / stored;
+    }
+
+    public long getValueBytes() { return this.valueBytes.get(); }
+
+    public long getStoredValueBytes() { return this.storedValueBytes.get(); }
+
+    /**
+     * Total number of bytes the segment files take up on disk.
+     */
+    public long diskSize() {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.getSize();
+        }
+        return total;
+    }
+
+    /**
+     * Rewrite the live records of the sealed segments whose share of dead
+     * bytes reached the threshold into fresh segments, then point the index
+     * at the copies and delete the old files. Segments with the most dead
+     * bytes go first, and a single call copies about COMPACTION_BATCH
+     * segments worth of live records; if more segments qualify the
+     * Compactor is asked to run again. Writers are only blocked while the
+     * index is swapped, not while records are copied.
+     * Called by the Compactor thread, only one compaction may run at a time.
+     */
+    public synchronized void compact() throws IOException {
+        List<Segment> victims = freeSpace.pick(COMPACTION_THRESHOLD, COMPACTION_BATCH * maxSegmentSize);
+        addReleasedTombstones(victims);
+        if (victims.isEmpty()) {
+            return;
+        }
+
+        List<byte[]> keys = new ArrayList<byte[]>();
+        List<Long> versions = new ArrayList<Long>();
+        List<Long> from = new ArrayList<Long>();
+        List<Long> to = new ArrayList<Long>();
+        List<Segment> outputs = new ArrayList<Segment>();
+        List<Long> outputVersions = new ArrayList<Long>();
+        Segment output = null;
+        long now = System.currentTimeMillis();
+
+        /* the copies keep their versions, so the outputs may hold records as
+           old as the oldest victim; a tombstone is only needed while some
+           other segment may hold older records of its key */
+        long outputVersion = Long.MAX_VALUE;
+        for (Segment victim : victims) {
+            outputVersion = Math.min(outputVersion, victim.getMinVersion());
+        }
+        long oldestOther = Long.MAX_VALUE;
+        for (Segment segment : segments.values()) {
+            if (!victims.contains(segment)) {
+                oldestOther = Math.min(oldestOther, segment.getMinVersion());
+            }
+        }
+
+        for (Segment victim : victims) {
+            if (victim.getDeadBytes() >= victim.getSize() && !victim.mayHoldTombstones()) {
+                /* nothing left to copy */
+                continue;
+            }
+            DataInputStream in = openScan(victim);
+            try {
+                long offset = Segment.HEADER_SIZE;
+                Record record;
+                while ((record = readRecord(in)) != null) {
+                    int length = record.length();
+                    long location = location(victim.getId(), offset, length);
+                    offset += length;
+                    /* an expired record the index no longer points at is
+                       kept like a tombstone */
+                    boolean shadow = record.isTombstone()
+                            || (record.isExpired(now) && index.get(record.keyBytes) != location);
+                    if (shadow) {
+                        if (record.version <= oldestOther || index.containsKey(record.keyBytes)) {
+                            continue;
+                        }
+                    } else if (index.get(record.keyBytes) != location) {
+                        continue;
+                    }
+                    if (output == null || output.getSize() + length > maxSegmentSize) {
+                        synchronized (writeLock) {
+                            output = newSegment(outputVersion);
+                        }
+                        outputs.add(output);
+                        outputVersions.add(Long.MAX_VALUE);
+                    }
+                    long newOffset = append(output, record.keyBytes, record.flags, record.version, record.valueBytes);
+                    int last = outputs.size() - 1;
+                    outputVersions.set(last, Math.min(outputVersions.get(last), record.version));
+                    if (shadow) {
+                        /* counted as live in the output, or it would be
+                           compacted again right away */
+                        output.keptTombstone(record.version);
+                        continue;
+                    }
+                    if (record.expiresAt() != OffsetIndex.NEVER) {
+                        output.addedTombstone();
+                    }
+                    keys.add(record.keyBytes);
+                    versions.add(record.version);
+                    from.add(location);
+                    to.add(location(output.getId(), newOffset, length));
+                }
+                if (offset != victim.getSize()) {
+                    discard(outputs);
+                    throw new IOException("Segment " + victim.getId() + " holds a corrupt record at offset " + offset);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        /* the copies must be on disk before the journal points at them */
+        for (int i = 0; i < outputs.size(); i++) {
+            outputs.get(i).setMinVersion(outputVersions.get(i));
+            outputs.get(i).force();
+        }
+
+        synchronized (writeLock) {
+            for (Segment victim : victims) {
+                if (segments.get(victim.getId()) != victim) {
+                    /* storage was cleared while we were copying */
+                    discard(outputs);
+                    return;
+                }
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                if (index.replace(keys.get(i), from.get(i), to.get(i))) {
+                    journal.logPut(keys.get(i), to.get(i), versions.get(i), index.getExpiry(keys.get(i)));
+                } else {
+                    /* overwritten or deleted while we were copying */
+                    markDead(to.get(i));
+                }
+            }
+            for (Segment victim : victims) {
+                segments.remove(victim.getId());
+                freeSpace.remove(victim);
+            }
+            for (Segment out : outputs) {
+                freeSpace.add(out);
+            }
+        }
+        /* and the journal entries before the originals are gone */
+        journal.force();
+
+        long reclaimed = 0;
+        for (Segment victim : victims) {
+            reclaimed += victim.getSize();
+            victim.delete();
+        }
+        /* the files are gone, so new segments may take over the ids */
+        synchronized (writeLock) {
+            for (Segment victim : victims) {
+                freeSegmentIds.add(victim.getId());
+            }
+        }
+        for (Segment out : outputs) {
+            reclaimed -= out.getSize();
+        }
+        logger.info("Compacted " + victims.size() + " segments into " + outputs.size()
+                + ", reclaimed " + reclaimed + " bytes.");
+        if (freeSpace.hasCandidates(COMPACTION_THRESHOLD)) {
+            compactor.request();
+        }
+    }
+
+    /* adds the segments holding kept tombstones of which at least the oldest
+       can be dropped, because no segment that stays is older than it */
+    private void addReleasedTombstones(List<Segment> victims) {
+        Set<Segment> picked = new HashSet<Segment>(victims);
+        boolean added = true;
+        while (added) {
+            added = false;
+            Segment oldest = null;
+            long first = Long.MAX_VALUE;
+            long second = Long.MAX_VALUE;
+            for (Segment segment : segments.values()) {
+                long version = segment.getMinVersion();
+                if (picked.contains(segment)) {
+                    continue;
+                } else if (version < first) {
+                    second = first;
+                    first = version;
+                    oldest = segment;
+                } else if (version < second) {
+                    second = version;
+                }
+            }
+            for (Segment segment : segments.values()) {
+                long kept = segment.getOldestKeptTombstone();
+                long others = segment == oldest ? second : first;
+                if (kept != Long.MAX_VALUE && kept <= others && !picked.contains(segment)) {
+                    picked.add(segment);
+                    victims.add(segment);
+                    added = true;
+                }
+            }
+        }
+    }
+
+    /* removes compaction outputs that will not be used, unless clear()
+       already did and a new segment may have taken over the id */
+    private void discard(List<Segment> outputs) {
+        for (Segment out : outputs) {
+            if (segments.remove(out.getId(), out)) {
+                out.delete();
+                synchronized (writeLock) {
+                    freeSegmentIds.add(out.getId());
+                }
+            }
+        }
+    }
+
+    /* seal the active segment and start appending to a new one */
+    private void roll() throws IOException {
+        if (syncPolicy != SyncPolicy.NONE) {
+            active.force();
+        }
+        freeSpace.add(active);
+        active = newSegment(writeSequence + 1);
+        compactor.request();
+    }
+
+    /* creates a segment for records of at least the given version, taking
+       the lowest free id, called under the write lock */
+    private Segment newSegment(long minVersion) throws IOException {
+        int id;
+        if (!freeSegmentIds.isEmpty()) {
+            id = freeSegmentIds.pollFirst();
+        } else if (nextSegmentId <= MAX_SEGMENT_ID) {
+            id = nextSegmentId++;
+        } else {
+            throw new IOException("Out of segment ids!");
+        }
+        File file = new File(dir, String.format("%s%07d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        if (!file.createNewFile()) {
+            throw new IOException("Segment file already exists: " + file);
+        }
+        Segment segment = new Segment(id, file, memoryMapped, minVersion);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /* appends a record at the end of the segment and returns its offset */
+    private long append(Segment segment, byte[] key, byte flags, long version, byte[] value) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put((byte) key.length);
+        header.put(flags);
+        header.putInt(value.length);
+        header.putLong(version);
+        header.putInt(checksum(header.array(), key, value, 0, value.length));
+        header.flip();
+        return segment.append(new ByteBuffer[] {header, ByteBuffer.wrap(key), ByteBuffer.wrap(value)});
+    }
+
+    /* reads the whole record at once, its length is part of the location,
+       and verifies its checksum before anything of it is used */
+    private byte[] readValue(byte[] keyBytes, long location, long[] deadline) throws IOException {
+        Segment segment = segments.get(segmentOf(location));
+        if (segment == null) {
+            throw new IOException("Segment " + segmentOf(location) + " does not exist!");
+        }
+        ByteBuffer record = segment.acquire(offsetOf(location), lengthOf(location));
+        byte[] header = new byte[HEADER_SIZE];
+        byte[] value;
+        int start;
+        int valSize;
+        try {
+            if (!holdsKey(record, keyBytes)) {
+                throw new IOException("Segment " + segmentOf(location) + " holds another key at offset "
+                        + offsetOf(location) + "!");
+            }
+            record.get(header);
+            valSize = lengthOf(location) - HEADER_SIZE - keyBytes.length;
+            if (record.hasArray()) {
+                value = record.array();
+                start = record.arrayOffset() + HEADER_SIZE + keyBytes.length;
+            } else {
+                /* copy out of the mapping before the segment is released */
+                value = new byte[valSize];
+                record.position(HEADER_SIZE + keyBytes.length);
+                record.get(value);
+                start = 0;
+            }
+        } finally {
+            segment.release();
+        }
+        ByteBuffer fields = ByteBuffer.wrap(header);
+        if (fields.getInt(VALUE_LENGTH_OFFSET) != valSize
+                || checksum(header, keyBytes, value, start, valSize) != fields.getInt(CRC_OFFSET)) {
+            throw new IOException("Record of key " + new String(keyBytes, CHARSET) + " in segment "
+                    + segmentOf(location) + " at offset " + offsetOf(location) + " fails its checksum!");
+        }
+        byte flags = header[FLAGS_OFFSET];
+        long expiresAt = OffsetIndex.NEVER;
+        if ((flags & FLAG_EXPIRES) != 0) {
+            expiresAt = ByteBuffer.wrap(value, start, EXPIRY_SIZE).getLong();
+            if (expiresAt <= System.currentTimeMillis()) {
+                return null;
+            }
+            start += EXPIRY_SIZE;
+            valSize -= EXPIRY_SIZE;
+        }
+        if (deadline != null) {
+            deadline[0] = expiresAt;
+        }
+        if ((flags & FLAG_DEFLATE) != 0) {
+            return ValueCodec.decompress(value, start, valSize);
+        }
+        if (start == 0 && valSize == value.length) {
+            return value;
+        }
+        return Arrays.copyOfRange(value, start, start + valSize);
+    }
+
+    /* verifies the checksum of a record before its value is sent from the
+       file, reading it through a small buffer instead of onto the heap */
+    private static void verify(Segment segment, long location, ByteBuffer header) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer chunk = ByteBuffer.allocate(Math.min(lengthOf(location), VERIFY_CHUNK_SIZE));
+        update(crc, segment, offsetOf(location), CRC_OFFSET, chunk);
+        update(crc, segment, offsetOf(location) + HEADER_SIZE, lengthOf(location) - HEADER_SIZE, chunk);
+        if ((int) crc.getValue() != header.getInt(CRC_OFFSET)) {
+            throw new IOException("Record in segment " + segmentOf(location) + " at offset "
+                    + offsetOf(location) + " fails its checksum!");
+        }
+    }
+
+    private static void update(CRC32 crc, Segment segment, long position, int length, ByteBuffer chunk)
+            throws IOException {
+        while (length > 0) {
+            chunk.clear();
+            chunk.limit(Math.min(length, chunk.capacity()));
+            segment.read(chunk, position);
+            crc.update(chunk.array(), 0, chunk.limit());
+            position += chunk.limit();
+            length -= chunk.limit();
+        }
+    }
+
+    /* the segment appended to last, the one whose records may be newest,
+       as ids are reused they do not tell */
+    private Segment newestSegment() {
+        Segment newest = null;
+        for (Segment segment : segments.values()) {
+            if (newest == null || segment.getMinVersion() > newest.getMinVersion()) {
+                newest = segment;
+            }
+        }
+        return newest;
+    }
+
+    /* true if the record starting at the buffer's first byte is one of the key */
+    private static boolean holdsKey(ByteBuffer record, byte[] key) {
+        if ((record.get(0) & 0xFF) != key.length || record.limit() < HEADER_SIZE + key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (record.get(HEADER_SIZE + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void markDead(long location) {
+        Segment segment = segments.get(segmentOf(location));
+        if (segment != null) {
+            segment.addDeadBytes(lengthOf(location));
+            freeSpace.update(segment);
+        }
+    }
+
+    private File[] listSegmentFiles() {
+        File[] files = dir.listFiles();
+        List<File> result = new ArrayList<File>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    result.add(file);
+                }
+            }
+        }
+        File[] sorted = result.toArray(new File[result.size()]);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static int segmentId(File file) {
+        String name = file.getName();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /* opens a sequential scan over the records of a segment */
+    static DataInputStream openScan(Segment segment) throws IOException {
+        return openScan(segment, Segment.HEADER_SIZE);
+    }
+
+    /* opens a sequential scan over the records from the offset on */
+    static DataInputStream openScan(Segment segment, long offset) throws IOException {
+        FileInputStream file = new FileInputStream(segment.getFile());
+        file.getChannel().position(offset);
+        return new DataInputStream(new BufferedInputStream(file, 64 * 1024));
+    }
+
+    /* length of the record at the offset as its complete header gives it,
+       without verifying the record, or -1 if the header is malformed */
+    static int recordLength(Segment segment, long offset) throws IOException {
+        ByteBuffer header = segment.acquire(offset, HEADER_SIZE);
+        try {
+            int keySize = header.get(0) & 0xFF;
+            int valSize = header.getInt(VALUE_LENGTH_OFFSET);
+            if (keySize == 0 || valSize < 0 || HEADER_SIZE + keySize + valSize > MAX_RECORD_SIZE) {
+                return -1;
+            }
+            return HEADER_SIZE + keySize + valSize;
+        } finally {
+            segment.release();
+        }
+    }
+
+    /* true if the segment holds only zeros from the offset on */
+    static boolean isZeroFrom(Segment segment, long offset) throws IOException {
+        DataInputStream in = openScan(segment, offset);
+        try {
+            int b;
+            while ((b = in.read()) >= 0) {
+                if (b != 0) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+    /* reads the next record of a sequential scan, null at the end of the
+       segment or at a torn or corrupt record, which callers tell apart by
+       comparing the offset reached with the segment size */
+    static Record readRecord(DataInputStream in) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        int keySize = in.read();
+        if (keySize < 0) {
+            return null;
+        }
+        try {
+            header[0] = (byte) keySize;
+            in.readFully(header, 1, HEADER_SIZE - 1);
+            ByteBuffer fields = ByteBuffer.wrap(header);
+            int valSize = fields.getInt(VALUE_LENGTH_OFFSET);
+            if (keySize == 0 || valSize < 0 || HEADER_SIZE + keySize + valSize > MAX_RECORD_SIZE) {
+                return null;
+            }
+            byte[] key = new byte[keySize];
+            byte[] value = new byte[valSize];
+            in.readFully(key);
+            in.readFully(value);
+            if (checksum(header, key, value, 0, valSize) != fields.getInt(CRC_OFFSET)) {
+                return null;
+            }
+            return new Record(key, header[FLAGS_OFFSET], fields.getLong(VERSION_OFFSET), value);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /* CRC32 of a record, over its header without the checksum field */
+    private static int checksum(byte[] header, byte[] key, byte[] value, int valueOffset, int valueLength) {
+        CRC32 crc = new CRC32();
+        crc.update(header, 0, CRC_OFFSET);
+        crc.update(key, 0, key.length);
+        crc.update(value, valueOffset, valueLength);
+        return (int) crc.getValue();
+    }
+
+    static long location(int segment, long offset, int length) {
+        return ((long) segment << (OFFSET_BITS + LENGTH_BITS)) | (offset << LENGTH_BITS) | length;
+    }
+
+    static int segmentOf(long location) {
+        return (int) (location >>> (OFFSET_BITS + LENGTH_BITS));
+    }
+
+    static long offsetOf(long location) {
+        return (location >>> LENGTH_BITS) & ((1L << OFFSET_BITS) - 1);
+    }
+
+    static int lengthOf(long location) {
+        return (int) (location & ((1L << LENGTH_BITS) - 1));
+    }
+
+    static class Record {
+        final byte[] keyBytes;
+        final byte flags;
+        final long version;
+        final byte[] valueBytes;
+
+        Record(byte[] keyBytes, byte flags, long version, byte[] valueBytes) {
+            this.keyBytes = keyBytes;
+            this.flags = flags;
+            this.version = version;
+            this.valueBytes = valueBytes;
+        }
+
+        int length() {
+            return HEADER_SIZE + keyBytes.length + valueBytes.length;
+        }
+
+        boolean isTombstone() {
+            return (flags & FLAG_TOMBSTONE) != 0;
+        }
+
+        /* deadline stored in front of the value, NEVER if the record does not expire */
+        long expiresAt() {
+            return (flags & FLAG_EXPIRES) != 0 ? ByteBuffer.wrap(valueBytes).getLong() : OffsetIndex.NEVER;
+        }
+
+        boolean isExpired(long now) {
+            long expiresAt = expiresAt();
+            return expiresAt != OffsetIndex.NEVER && expiresAt <= now;
+        }
+    }
+}
@@ -0,0 +1,1030 @@
+package app_kvServer.storage;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Log-structured merge tree storage, for key sets that do not fit in memory.
+ *
+ * Writes go to a MemTable, a sorted in-memory map backed by a write-ahead
+ * log. Once it reaches the memtable size it becomes immutable and a fresh one
+ * takes over, while the Compactor flushes the old one into an SSTable in
+ * level 0 and deletes its log. Level 0 tables may overlap each other; once
+ * there are L0_LIMIT of them they are merged with the overlapping tables of
+ * level 1. Every deeper level holds non-overlapping tables and may grow to
+ * LEVEL_RATIO times the size of the one above before one of its tables is
+ * merged into the next level, so a lookup reads at most L0_LIMIT tables of
+ * level 0 plus one table per deeper level, most of which its Bloom filter
+ * rules out without any I/O. Deletes write tombstones, which are dropped
+ * once they are merged into the deepest level holding data.
+ *
+ * Only the memtables, the block indexes and the Bloom filters are kept in
+ * memory. Which tables belong to which level is recorded in the MANIFEST,
+ * which is replaced atomically after each flush and merge; tables it does
+ * not list are leftovers of an interrupted merge and deleted at startup.
+ *
+ * Reads take no lock: they work on an immutable State holding the memtables
+ * and levels at the time, and look again if a merge deleted a table they
+ * were about to read.
+ *
+ * Entries are byte arrays holding a flags byte followed by the stored value,
+ * which is compressed like in LogStorage if enabled. Entries of keys put
+ * with a time-to-live have FLAG_EXPIRES set and their deadline in the 8
+ * bytes before the value. Once expired they read like tombstones, and
+ * merges into the deepest level drop them along with the tombstones.
+ *
+ * Tables are immutable, so a snapshot only has to pin the State of one
+ * moment: it copies its tables, the logs of its memtables up to their length
+ * at that moment and writes a MANIFEST listing exactly those tables.
+ */
+public class LsmStorage implements IPartition {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    /* 1 byte key length | 1 byte flags | 4 byte value length */
+    static final int RECORD_HEADER_SIZE = 1 + 1 + 4;
+    static final byte FLAG_TOMBSTONE = 2;
+    static final byte FLAG_EXPIRES = LogStorage.FLAG_EXPIRES;
+    private static final int EXPIRY_SIZE = 8;
+
+    private static final int MAX_KEY_SIZE = 255;
+
+    private static final String WAL_PREFIX = "wal-";
+    private static final String WAL_SUFFIX = ".log";
+    private static final String MANIFEST_FILE = "MANIFEST";
+    private static final int MANIFEST_MAGIC = 0x4B564C4D;
+
+    /* level 0 tables at which they are merged into level 1 */
+    private static final int L0_LIMIT = 4;
+    /* growth in size from one level to the next */
+    private static final int LEVEL_RATIO = 10;
+    private static final int MAX_LEVELS = 7;
+    /* memtables waiting for a flush at which writers are held back */
+    private static final int MAX_IMMUTABLE = 4;
+    private static final long COMPACTION_INTERVAL = 30 * 1000;
+
+    private final File dir;
+    private final long memtableSize;
+    private final SyncPolicy syncPolicy;
+    private final boolean compressed;
+    private final int compressionThreshold;
+    private final GroupCommit groupCommit;
+    private Compactor compactor;
+
+    /* guards appends to the active memtable and replacing the state */
+    private final Object writeLock = new Object();
+    private volatile State state;
+    private long nextWalId = 0;
+    private long writeSequence = 0;
+
+    /* serializes flushes */
+    private final Object flushLock = new Object();
+    /* notified whenever a memtable was flushed */
+    private final Object flushed = new Object();
+    /* serializes changes to the levels and writing them to the MANIFEST */
+    private final Object manifestLock = new Object();
+    private final AtomicLong nextTableId = new AtomicLong();
+    /* id of the newest write-ahead log whose entries are in a table */
+    private long flushedWal = -1;
+    /* last key merged out of each level, the next merge continues after it */
+    private final String[] compactPointer = new String[MAX_LEVELS];
+
+    /* value bytes put since the storage was opened, before and after compression */
+    private final AtomicLong valueBytes = new AtomicLong();
+    private final AtomicLong storedValueBytes = new AtomicLong();
+
+    /**
+     * Open the storage in the given directory, creating it if needed.
+     * @param dir directory holding the tables, logs and MANIFEST
+     * @param options memtable size, sync policy and compression to use
+     */
+    public LsmStorage(File dir, StorageOptions options) throws IOException {
+        this.dir = dir;
+        this.memtableSize = options.getMemtableSize();
+        this.syncPolicy = options.getSyncPolicy();
+        this.compressed = options.isCompressed();
+        this.compressionThreshold = options.getCompressionThreshold();
+        this.groupCommit = new GroupCommit(new GroupCommit.Log() {
+            public long sync() throws IOException {
+                return LsmStorage.this.sync();
+            }
+        }, options.getGroupCommitMillis());
+        open();
+        this.compactor = new Compactor(new Compactor.Task() {
+            public void compact() throws IOException {
+                LsmStorage.this.compact();
+            }
+
+            public void checkpointIfNeeded() throws IOException {
+                flush();
+            }
+        }, COMPACTION_INTERVAL);
+        Thread compactorThread = new Thread(compactor, "compactor");
+        compactorThread.setDaemon(true);
+        compactorThread.start();
+        if (!state.immutable.isEmpty()) {
+            compactor.request();
+        }
+    }
+
+    private void open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create storage directory " + dir);
+        }
+        List<List<SSTable>> levels = readManifest();
+
+        Set<Long> live = new HashSet<Long>();
+        for (List<SSTable> level : levels) {
+            for (SSTable table : level) {
+                live.add(table.getId());
+            }
+        }
+        for (long id : listIds(SSTable.PREFIX, SSTable.SUFFIX)) {
+            if (!live.contains(id)) {
+                logger.info("Deleting table " + id + " left over from an interrupted merge.");
+                SSTable.fileOf(dir, id).delete();
+            }
+            nextTableId.set(Math.max(nextTableId.get(), id + 1));
+        }
+
+        /* logs that were not flushed yet are replayed into memtables */
+        nextWalId = flushedWal + 1;
+        MemTable active = null;
+        List<MemTable> immutable = new ArrayList<MemTable>();
+        for (long id : listIds(WAL_PREFIX, WAL_SUFFIX)) {
+            nextWalId = Math.max(nextWalId, id + 1);
+            if (id <= flushedWal) {
+                walFile(id).delete();
+                continue;
+            }
+            if (active != null) {
+                immutable.add(0, active);
+            }
+            active = new MemTable(id, walFile(id));
+        }
+        if (active == null) {
+            active = newMemTable();
+        }
+        state = new State(active, immutable, levels);
+
+        logger.info("Opened LSM storage at " + dir + " with " + live.size() + " tables and "
+                + (immutable.size() + 1) + " memtables.");
+    }
+
+    @Override
+    public boolean contains(String key) {
+        try {
+            return isLive(find(key), System.currentTimeMillis());
+        } catch (IOException e) {
+            logger.error("Error looking up key " + key + "! " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return  value of the key, or null if the key is not stored
+     */
+    @Override
+    public String get(String key) throws IOException {
+        byte[] value = getBytes(key);
+        return value == null ? null : new String(value, LogStorage.CHARSET);
+    }
+
+    @Override
+    public byte[] getBytes(String key) throws IOException {
+        byte[] entry = find(key);
+        if (!isLive(entry, System.currentTimeMillis())) {
+            return null;
+        }
+        return valueOf(entry);
+    }
+
+    /* extracts the value of a live entry */
+    private static byte[] valueOf(byte[] entry) throws IOException {
+        int start = (entry[0] & FLAG_EXPIRES) != 0 ? 1 + EXPIRY_SIZE : 1;
+        if ((entry[0] & LogStorage.FLAG_DEFLATE) != 0) {
+            return ValueCodec.decompress(entry, start, entry.length - start);
+        }
+        return Arrays.copyOfRange(entry, start, entry.length);
+    }
+
+    /**
+     * Values live inside table blocks that are read into memory anyway, so
+     * there is nothing to send straight from the files.
+     */
+    @Override
+    public boolean transferValue(String key, Framer framer, WritableByteChannel target) {
+        return false;
+    }
+
+    @Override
+    public long getExpiry(String key) throws IOException {
+        byte[] entry = find(key);
+        return isLive(entry, System.currentTimeMillis()) ? expiryOf(entry) : 0;
+    }
+
+    @Override
+    public void put(String key, String value) throws IOException {
+        put(key, value, 0);
+    }
+
+    @Override
+    public void put(String key, String value, long expiresAt) throws IOException {
+        put(key, value.getBytes(LogStorage.CHARSET), expiresAt);
+    }
+
+    @Override
+    public void put(String key, byte[] value, long expiresAt) throws IOException {
+        byte[] keyBytes = checkKey(key);
+        write(new String[] {key}, new byte[][] {keyBytes}, new byte[][] {entry(value, expiresAt)});
+    }
+
+    /**
+     * Add every entry to the memtable while holding the write lock once
+     * and wait for durability once.
+     */
+    @Override
+    public void putAll(Map<String, byte[]> entries, long expiresAt) throws IOException {
+        String[] keys = new String[entries.size()];
+        byte[][] keyBytes = new byte[keys.length][];
+        byte[][] values = new byte[keys.length][];
+        int i = 0;
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            keys[i] = entry.getKey();
+            keyBytes[i] = checkKey(entry.getKey());
+            values[i] = entry.getValue() == null ? new byte[] {FLAG_TOMBSTONE} : entry(entry.getValue(), expiresAt);
+            i++;
+        }
+        write(keys, keyBytes, values);
+    }
+
+    @Override
+    public Map<String, byte[]> getAll(Collection<String> keys, Set<String> expiring) throws IOException {
+        Map<String, byte[]> values = new HashMap<String, byte[]>();
+        long now = System.currentTimeMillis();
+        for (String key : keys) {
+            byte[] entry = find(key);
+            if (isLive(entry, now)) {
+                values.put(key, valueOf(entry));
+                if (expiring != null && expiryOf(entry) != 0) {
+                    expiring.add(key);
+                }
+            }
+        }
+        return values;
+    }
+
+    /* the memtable entry of a value: flags, the deadline if it expires and the value */
+    private byte[] entry(byte[] value, long expiresAt) {
+        byte[] valueBytes = value;
+        int rawLength = valueBytes.length;
+        byte flags = 0;
+        if (compressed && valueBytes.length >= compressionThreshold) {
+            byte[] deflated = ValueCodec.compress(valueBytes);
+            if (deflated != null) {
+                valueBytes = deflated;
+                flags = LogStorage.FLAG_DEFLATE;
+            }
+        }
+        int start = 1;
+        if (expiresAt != 0) {
+            flags |= FLAG_EXPIRES;
+            start += EXPIRY_SIZE;
+        }
+        byte[] entry = new byte[start + valueBytes.length];
+        entry[0] = flags;
+        if (expiresAt != 0) {
+            ByteBuffer.wrap(entry, 1, EXPIRY_SIZE).putLong(expiresAt);
+        }
+        System.arraycopy(valueBytes, 0, entry, start, valueBytes.length);
+        this.valueBytes.addAndGet(rawLength);
+        this.storedValueBytes.addAndGet(valueBytes.length);
+        return entry;
+    }
+
+    /**
+     * Write a tombstone for the key, whether it is stored or not.
+     */
+    @Override
+    public void delete(String key) throws IOException {
+        write(new String[] {key}, new byte[][] {checkKey(key)}, new byte[][] {{FLAG_TOMBSTONE}});
+    }
+
+    /* true for an entry of a stored value that has not expired by now */
+    private static boolean isLive(byte[] entry, long now) {
+        if (entry == null || (entry[0] & FLAG_TOMBSTONE) != 0) {
+            return false;
+        }
+        long expiresAt = expiryOf(entry);
+        return expiresAt == 0 || expiresAt > now;
+    }
+
+    private static long expiryOf(byte[] entry) {
+        return (entry[0] & FLAG_EXPIRES) != 0 ? ByteBuffer.wrap(entry, 1, EXPIRY_SIZE).getLong() : 0;
+    }
+
+    private static byte[] checkKey(String key) {
+        byte[] keyBytes = key.getBytes(LogStorage.CHARSET);
+        if (keyBytes.length == 0 || keyBytes.length > MAX_KEY_SIZE) {
+            throw new IllegalArgumentException("Key must be between 1 and " + MAX_KEY_SIZE + " bytes");
+        }
+        return keyBytes;
+    }
+
+    private void write(String[] keys, byte[][] keyBytes, byte[][] entries) throws IOException {
+        awaitFlushes();
+        long sequence;
+        synchronized (writeLock) {
+            for (int i = 0; i < keys.length; i++) {
+                State s = state;
+                s.active.put(keys[i], keyBytes[i], entries[i]);
+                if (s.active.getSize() >= memtableSize) {
+                    rotate(s);
+                }
+            }
+            sequence = ++writeSequence;
+        }
+        switch (syncPolicy) {
+            case ALWAYS:
+                sync();
+                break;
+            case GROUP:
+                groupCommit.await(sequence);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /* holds writers back while too many memtables wait for a flush */
+    private void awaitFlushes() throws IOException {
+        synchronized (flushed) {
+            while (state.immutable.size() >= MAX_IMMUTABLE) {
+                try {
+                    flushed.wait(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for a flush!");
+                }
+            }
+        }
+    }
+
+    /* called under the write lock, makes the active memtable immutable */
+    private void rotate(State s) throws IOException {
+        if (syncPolicy != SyncPolicy.NONE) {
+            s.active.force();
+        }
+        List<MemTable> immutable = new ArrayList<MemTable>(s.immutable.size() + 1);
+        immutable.add(s.active);
+        immutable.addAll(s.immutable);
+        state = new State(newMemTable(), immutable, s.levels);
+        compactor.request();
+    }
+
+    private MemTable newMemTable() throws IOException {
+        long id = nextWalId++;
+        return new MemTable(id, walFile(id));
+    }
+
+    /**
+     * Force the active write-ahead log to disk. Logs of immutable memtables
+     * were forced when they were rotated out.
+     * @return  sequence number of the newest write that is now durable
+     */
+    long sync() throws IOException {
+        long sequence;
+        MemTable active;
+        synchronized (writeLock) {
+            sequence = writeSequence;
+            active = state.active;
+        }
+        active.force();
+        return sequence;
+    }
+
+    /* newest entry of the key, which may be a tombstone */
+    private byte[] find(String key) throws IOException {
+        byte[] keyBytes = key.getBytes(LogStorage.CHARSET);
+        while (true) {
+            State s = state;
+            try {
+                return s.find(key, keyBytes);
+            } catch (IOException e) {
+                /* a merge may have deleted a table after we picked it up,
+                   in that case look again in the new state */
+                if (s == state) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Flush the immutable memtables into level 0 tables, oldest first, and
+     * delete their logs. Called by the Compactor thread.
+     */
+    void flush() throws IOException {
+        synchronized (flushLock) {
+            while (true) {
+                List<MemTable> pending = state.immutable;
+                if (pending.isEmpty()) {
+                    return;
+                }
+                MemTable oldest = pending.get(pending.size() - 1);
+                List<SSTable> tables = writeTables(new MergeIterator(
+                        Collections.singletonList(MergeIterator.of(oldest.iterator()))), false, Long.MAX_VALUE);
+
+                boolean compact;
+                synchronized (manifestLock) {
+                    List<List<SSTable>> levels = copy(state.levels);
+                    levels.get(0).addAll(0, tables);
+                    flushedWal = oldest.getId();
+                    writeManifest(levels);
+                    synchronized (writeLock) {
+                        List<MemTable> immutable = new ArrayList<MemTable>(state.immutable);
+                        immutable.remove(oldest);
+                        state = new State(state.active, immutable, levels);
+                    }
+                    compact = pickLevel(levels) >= 0;
+                }
+                oldest.delete();
+                synchronized (flushed) {
+                    flushed.notifyAll();
+                }
+                if (compact) {
+                    compactor.request();
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge levels that outgrew their limit into the next level until none
+     * does. Called by the Compactor thread, only one merge may run at a time.
+     */
+    public synchronized void compact() throws IOException {
+        int level;
+        while ((level = pickLevel(state.levels)) >= 0) {
+            List<List<SSTable>> levels = state.levels;
+            List<SSTable> inputs = level == 0 ? levels.get(0)
+                    : Collections.singletonList(pickTable(levels.get(level), compactPointer[level]));
+            String first = inputs.get(0).getFirstKey();
+            String last = inputs.get(0).getLastKey();
+            for (SSTable table : inputs) {
+                first = table.getFirstKey().compareTo(first) < 0 ? table.getFirstKey() : first;
+                last = table.getLastKey().compareTo(last) > 0 ? table.getLastKey() : last;
+            }
+            List<SSTable> overlapping = new ArrayList<SSTable>();
+            for (SSTable table : levels.get(level + 1)) {
+                if (table.overlaps(first, last)) {
+                    overlapping.add(table);
+                }
+            }
+            /* tombstones are only needed while older entries may exist below */
+            boolean bottom = true;
+            for (int deeper = level + 2; deeper < MAX_LEVELS; deeper++) {
+                bottom &= levels.get(deeper).isEmpty();
+            }
+
+            /* inputs are newer than the tables they overlap, level 0 is newest first */
+            List<MergeIterator.Source> sources = new ArrayList<MergeIterator.Source>();
+            try {
+                for (SSTable table : inputs) {
+                    sources.add(table.scan());
+                }
+                for (SSTable table : overlapping) {
+                    sources.add(table.scan());
+                }
+            } catch (IOException e) {
+                for (MergeIterator.Source source : sources) {
+                    source.close();
+                }
+                throw e;
+            }
+            List<SSTable> outputs = writeTables(new MergeIterator(sources), bottom, memtableSize);
+
+            synchronized (manifestLock) {
+                List<List<SSTable>> next = copy(state.levels);
+                next.get(level).removeAll(inputs);
+                next.get(level + 1).removeAll(overlapping);
+                next.get(level + 1).addAll(outputs);
+                Collections.sort(next.get(level + 1), BY_FIRST_KEY);
+                writeManifest(next);
+                synchronized (writeLock) {
+                    state = new State(state.active, state.immutable, next);
+                }
+            }
+            compactPointer[level] = last;
+
+            long reclaimed = 0;
+            for (SSTable table : inputs) {
+                reclaimed += table.getSize();
+                table.delete();
+            }
+            for (SSTable table : overlapping) {
+                reclaimed += table.getSize();
+                table.delete();
+            }
+            for (SSTable table : outputs) {
+                reclaimed -= table.getSize();
+            }
+            logger.info("Merged " + (inputs.size() + overlapping.size()) + " tables of level " + level
+                    + " into " + outputs.size() + " tables of level " + (level + 1)
+                    + ", reclaimed " + reclaimed + " bytes.");
+        }
+    }
+
+    /* level whose tables should be merged into the next one, or -1 */
+    private int pickLevel(List<List<SSTable>> levels) {
+        if (levels.get(0).size() >= L0_LIMIT) {
+            return 0;
+        }
+        long limit = memtableSize * LEVEL_RATIO;
+        for (int level = 1; level < MAX_LEVELS - 1; level++) {
+            long bytes = 0;
+            for (SSTable table : levels.get(level)) {
+                bytes += table.getSize();
+            }
+            if (bytes > limit) {
+                return level;
+            }
+            limit *= LEVEL_RATIO;
+        }
+        return -1;
+    }
+
+    /* first table after the key merged out last, wrapping around */
+    private static SSTable pickTable(List<SSTable> level, String pointer) {
+        for (SSTable table : level) {
+            if (pointer == null || table.getFirstKey().compareTo(pointer) > 0) {
+                return table;
+            }
+        }
+        return level.get(0);
+    }
+
+    /* writes the merged entries into tables of at most about tableSize bytes */
+    private List<SSTable> writeTables(MergeIterator merged, boolean dropTombstones, long tableSize)
+            throws IOException {
+        List<SSTable> tables = new ArrayList<SSTable>();
+        SSTable.Writer writer = null;
+        long id = 0;
+        try {
+            Map.Entry<String, byte[]> entry;
+            long now = System.currentTimeMillis();
+            while ((entry = merged.next()) != null) {
+                if (dropTombstones && !isLive(entry.getValue(), now)) {
+                    continue;
+                }
+                if (writer == null) {
+                    id = nextTableId.getAndIncrement();
+                    writer = new SSTable.Writer(SSTable.fileOf(dir, id));
+                }
+                writer.add(entry.getKey().getBytes(LogStorage.CHARSET), entry.getValue());
+                if (writer.getSize() >= tableSize) {
+                    writer.finish();
+                    writer = null;
+                    tables.add(new SSTable(id, SSTable.fileOf(dir, id)));
+                }
+            }
+            if (writer != null) {
+                writer.finish();
+                writer = null;
+                tables.add(new SSTable(id, SSTable.fileOf(dir, id)));
+            }
+            return tables;
+        } catch (IOException e) {
+            if (writer != null) {
+                writer.abort();
+            }
+            for (SSTable table : tables) {
+                table.delete();
+            }
+            throw e;
+        } finally {
+            merged.close();
+        }
+    }
+
+    /**
+     * Remove every table and log and start over empty.
+     */
+    @Override
+    public synchronized void clear() throws IOException {
+        synchronized (flushLock) {
+            synchronized (manifestLock) {
+                State old;
+                synchronized (writeLock) {
+                    old = state;
+                    MemTable active = newMemTable();
+                    flushedWal = active.getId() - 1;
+                    List<List<SSTable>> levels = emptyLevels();
+                    writeManifest(levels);
+                    state = new State(active, new ArrayList<MemTable>(), levels);
+                }
+                old.active.delete();
+                for (MemTable memTable : old.immutable) {
+                    memTable.delete();
+                }
+                for (List<SSTable> level : old.levels) {
+                    for (SSTable table : level) {
+                        table.delete();
+                    }
+                }
+                for (int i = 0; i < MAX_LEVELS; i++) {
+                    compactPointer[i] = null;
+                }
+            }
+        }
+        synchronized (flushed) {
+            flushed.notifyAll();
+        }
+    }
+
+    /**
+     * Stop the compactor, flush all memtables, so the next start does not
+     * need to replay any log, and close the files.
+     */
+    @Override
+    public void close() {
+        compactor.stop();
+        /* wait for a running merge, it holds this object's lock */
+        synchronized (this) {
+            try {
+                synchronized (writeLock) {
+                    if (!state.active.isEmpty()) {
+                        rotate(state);
+                    }
+                }
+                flush();
+            } catch (IOException e) {
+                logger.error("Error flushing memtables: " + e.getMessage());
+            }
+            State s = state;
+            s.active.close();
+            for (MemTable memTable : s.immutable) {
+                memTable.close();
+            }
+            for (List<SSTable> level : s.levels) {
+                for (SSTable table : level) {
+                    try {
+                        table.close();
+                    } catch (IOException e) {
+                        logger.error("Error closing table " + table.getId() + "! " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy the tables and logs as of now into the target directory. Holds
+     * off merges, which would delete tables, but not writers or flushes.
+     */
+    @Override
+    public synchronized void snapshot(File target) throws IOException {
+        State s;
+        long tableId;
+        long walFlushed;
+        long activeLength;
+        long version;
+        List<FileInputStream> logs = new ArrayList<FileInputStream>();
+        try {
+            synchronized (manifestLock) {
+                synchronized (writeLock) {
+                    s = state;
+                    tableId = nextTableId.get();
+                    walFlushed = flushedWal;
+                    version = writeSequence;
+                    activeLength = s.active.getSize();
+                    /* a flush may delete a log while it is copied, the open
+                       stream keeps it readable */
+                    logs.add(new FileInputStream(walFile(s.active.getId())));
+                    for (MemTable memTable : s.immutable) {
+                        logs.add(new FileInputStream(walFile(memTable.getId())));
+                    }
+                }
+            }
+            SnapshotCopier copier = new SnapshotCopier(target, SSTable.PREFIX, WAL_PREFIX, MANIFEST_FILE);
+            for (List<SSTable> level : s.levels) {
+                for (SSTable table : level) {
+                    copier.copy(table.getFile(), table.getSize());
+                }
+            }
+            copier.copy(logs.get(0).getChannel(), walFile(s.active.getId()).getName(), activeLength);
+            for (int i = 0; i < s.immutable.size(); i++) {
+                FileChannel log = logs.get(i + 1).getChannel();
+                copier.copy(log, walFile(s.immutable.get(i).getId()).getName(), log.size());
+            }
+            writeManifest(copier.file(MANIFEST_FILE), s.levels, tableId, walFlushed);
+            copier.finish(version);
+        } finally {
+            for (FileInputStream log : logs) {
+                log.close();
+            }
+        }
+    }
+
+    /**
+     * Number of keys stored. Unlike the other engines this has to merge all
+     * tables and memtables, so it costs a full scan.
+     */
+    @Override
+    public int size() {
+        while (true) {
+            State s = state;
+            try {
+                int count = 0;
+                MergeIterator merged = s.scan();
+                try {
+                    Map.Entry<String, byte[]> entry;
+                    long now = System.currentTimeMillis();
+                    while ((entry = merged.next()) != null) {
+                        if (isLive(entry.getValue(), now)) {
+                            count++;
+                        }
+                    }
+                } finally {
+                    merged.close();
+                }
+                return count;
+            } catch (IOException e) {
+                if (s == state) {
+                    logger.error("Error counting keys! " + e.getMessage());
+                    return 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge the memtables and the tables overlapping the range. Like reads,
+     * this starts over on a newer State if a merge deleted a table meanwhile.
+     */
+    @Override
+    public List<Map.Entry<String, byte[]>> scan(String from, String to, int limit) throws IOException {
+        while (true) {
+            State s = state;
+            try {
+                List<Map.Entry<String, byte[]>> result = new ArrayList<Map.Entry<String, byte[]>>();
+                long now = System.currentTimeMillis();
+                MergeIterator merged = s.scan(from, to);
+                try {
+                    Map.Entry<String, byte[]> entry;
+                    while (result.size() < limit && (entry = merged.next()) != null) {
+                        String key = entry.getKey();
+                        if (to != null && key.compareTo(to) >= 0) {
+                            break;
+                        }
+                        if (key.compareTo(from) >= 0 && isLive(entry.getValue(), now)) {
+                            result.add(new AbstractMap.SimpleImmutableEntry<String, byte[]>(key,
+                                    valueOf(entry.getValue())));
+                        }
+                    }
+                } finally {
+                    merged.close();
+                }
+                return result;
+            } catch (IOException e) {
+                if (s == state) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long stored = storedValueBytes.get();
+        return stored == 0 ? 1 : (double) valueBytes.get() / stored;
+    }
+
+    public long getValueBytes() { return this.valueBytes.get(); }
+
+    public long getStoredValueBytes() { return this.storedValueBytes.get(); }
+
+    /**
+     * @return  number of tables in each level, for monitoring
+     */
+    public int[] getLevelSizes() {
+        List<List<SSTable>> levels = state.levels;
+        int[] sizes = new int[levels.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = levels.get(i).size();
+        }
+        return sizes;
+    }
+
+    /* must be called under the manifest lock */
+    private void writeManifest(List<List<SSTable>> levels) throws IOException {
+        writeManifest(new File(dir, MANIFEST_FILE), levels, nextTableId.get(), flushedWal);
+    }
+
+    private static void writeManifest(File target, List<List<SSTable>> levels, long nextTableId, long flushedWal)
+            throws IOException {
+        File tmp = new File(target.getPath() + ".tmp");
+        FileOutputStream file = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+        try {
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeLong(nextTableId);
+            out.writeLong(flushedWal);
+            int count = 0;
+            for (List<SSTable> level : levels) {
+                count += level.size();
+            }
+            out.writeInt(count);
+            for (int i = 0; i < levels.size(); i++) {
+                for (SSTable table : levels.get(i)) {
+                    out.writeInt(i);
+                    out.writeLong(table.getId());
+                }
+            }
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            out.close();
+        }
+        IndexJournal.replace(tmp, target);
+    }
+
+    private List<List<SSTable>> readManifest() throws IOException {
+        List<List<SSTable>> levels = emptyLevels();
+        File file = new File(dir, MANIFEST_FILE);
+        if (!file.isFile()) {
+            return levels;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MANIFEST_MAGIC) {
+                throw new IOException("Manifest " + file + " has an unknown format!");
+            }
+            nextTableId.set(in.readLong());
+            flushedWal = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int level = in.readInt();
+                long id = in.readLong();
+                File tableFile = SSTable.fileOf(dir, id);
+                if (level < 0 || level >= MAX_LEVELS || !tableFile.isFile()) {
+                    throw new IOException("Manifest " + file + " lists missing table " + id + "!");
+                }
+                levels.get(level).add(new SSTable(id, tableFile));
+            }
+        } finally {
+            in.close();
+        }
+        for (int i = 1; i < MAX_LEVELS; i++) {
+            Collections.sort(levels.get(i), BY_FIRST_KEY);
+        }
+        return levels;
+    }
+
+    private List<Long> listIds(String prefix, String suffix) {
+        List<Long> ids = new ArrayList<Long>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(prefix) && name.endsWith(suffix)) {
+                    ids.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private File walFile(long id) {
+        return new File(dir, String.format("%s%010d%s", WAL_PREFIX, id, WAL_SUFFIX));
+    }
+
+    private static List<List<SSTable>> emptyLevels() {
+        List<List<SSTable>> levels = new ArrayList<List<SSTable>>(MAX_LEVELS);
+        for (int i = 0; i < MAX_LEVELS; i++) {
+            levels.add(new ArrayList<SSTable>());
+        }
+        return levels;
+    }
+
+    private static List<List<SSTable>> copy(List<List<SSTable>> levels) {
+        List<List<SSTable>> copy = new ArrayList<List<SSTable>>(levels.size());
+        for (List<SSTable> level : levels) {
+            copy.add(new ArrayList<SSTable>(level));
+        }
+        return copy;
+    }
+
+    private static final Comparator<SSTable> BY_FIRST_KEY = new Comparator<SSTable>() {
+        public int compare(SSTable a, SSTable b) {
+            return a.getFirstKey().compareTo(b.getFirstKey());
+        }
+    };
+
+    /**
+     * Memtables and tables at one point in time. Never changed once
+     * published, only replaced.
+     */
+    private static class State {
+        final MemTable active;
+        /* newest first */
+        final List<MemTable> immutable;
+        /* level 0 newest first, deeper levels ordered by key */
+        final List<List<SSTable>> levels;
+
+        State(MemTable active, List<MemTable> immutable, List<List<SSTable>> levels) {
+            this.active = active;
+            this.immutable = immutable;
+            this.levels = levels;
+        }
+
+        byte[] find(String key, byte[] keyBytes) throws IOException {
+            byte[] entry = active.get(key);
+            for (int i = 0; entry == null && i < immutable.size(); i++) {
+                entry = immutable.get(i).get(key);
+            }
+            for (int i = 0; entry == null && i < levels.get(0).size(); i++) {
+                entry = levels.get(0).get(i).get(key, keyBytes);
+            }
+            for (int level = 1; entry == null && level < levels.size(); level++) {
+                SSTable table = floor(levels.get(level), key);
+                if (table != null) {
+                    entry = table.get(key, keyBytes);
+                }
+            }
+            return entry;
+        }
+
+        /* merged view of everything, newest entries win */
+        MergeIterator scan() throws IOException {
+            return scan(null, null);
+        }
+
+        /* merged view starting at or shortly before from, leaving out tables
+           entirely outside [from, to); null bounds are open */
+        MergeIterator scan(String from, String to) throws IOException {
+            List<MergeIterator.Source> sources = new ArrayList<MergeIterator.Source>();
+            sources.add(MergeIterator.of(from == null ? active.iterator() : active.iterator(from)));
+            for (MemTable memTable : immutable) {
+                sources.add(MergeIterator.of(from == null ? memTable.iterator() : memTable.iterator(from)));
+            }
+            try {
+                for (List<SSTable> level : levels) {
+                    for (SSTable table : level) {
+                        if (from != null && table.getLastKey().compareTo(from) < 0
+                                || to != null && table.getFirstKey().compareTo(to) >= 0) {
+                            continue;
+                        }
+                        sources.add(from == null ? table.scan() : table.scan(from));
+                    }
+                }
+            } catch (IOException e) {
+                for (MergeIterator.Source source : sources) {
+                    source.close();
+                }
+                throw e;
+            }
+            return new MergeIterator(sources);
+        }
+
+        /* table of a sorted level whose range may hold the key */
+        private static SSTable floor(List<SSTable> level, String key) {
+            int low = 0;
+            int high = level.size() - 1;
+            SSTable found = null;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (level.get(mid).getFirstKey().compareTo(key) <= 0) {
+                    found = level.get(mid);
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found;
+        }
+    }
+}
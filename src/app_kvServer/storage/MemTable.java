@@ -0,0 +1,151 @@
+package app_kvServer.storage;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sorted in-memory buffer of the newest writes of an LsmStorage, backed by a
+ * write-ahead log so it survives a crash until it is flushed to an SSTable.
+ *
+ * Entries are LsmStorage entries, a flags byte followed by the stored value.
+ * Appends to the log are serialized by the storage write lock; lookups and
+ * iteration are lock-free.
+ *
+ * Log record layout:
+ *   1 byte key length | 1 byte flags | 4 byte value length | key bytes | value bytes
+ */
+class MemTable {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private final long id;
+    private final File file;
+    private final FileChannel wal;
+    private final ConcurrentSkipListMap<String, byte[]> entries = new ConcurrentSkipListMap<String, byte[]>();
+    /* bytes the entries take up in the log, about what they need in a table */
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * Open the log file, creating it if it does not exist, and load the
+     * entries it holds. A torn last record is cut off.
+     */
+    MemTable(long id, File file) throws IOException {
+        this.id = id;
+        this.file = file;
+        this.wal = new RandomAccessFile(file, "rw").getChannel();
+        replay();
+    }
+
+    long getId() { return this.id; }
+
+    long getSize() { return this.size.get(); }
+
+    boolean isEmpty() { return entries.isEmpty(); }
+
+    /**
+     * Log the entry and make it visible. Callers must make sure only one
+     * thread puts at a time.
+     */
+    void put(String key, byte[] keyBytes, byte[] entry) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LsmStorage.RECORD_HEADER_SIZE);
+        header.put((byte) keyBytes.length);
+        header.put(entry[0]);
+        header.putInt(entry.length - 1);
+        header.flip();
+        ByteBuffer[] record = {header, ByteBuffer.wrap(keyBytes), ByteBuffer.wrap(entry, 1, entry.length - 1)};
+        long length = LsmStorage.RECORD_HEADER_SIZE + keyBytes.length + entry.length - 1;
+        long written = 0;
+        while (written < length) {
+            written += wal.write(record);
+        }
+        entries.put(key, entry);
+        size.addAndGet(length);
+    }
+
+    /**
+     * @return  the entry of the key, or null if this table has none
+     */
+    byte[] get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Entries in key order, reflecting concurrent puts or not.
+     */
+    Iterator<Map.Entry<String, byte[]>> iterator() {
+        return entries.entrySet().iterator();
+    }
+
+    /**
+     * Entries from the given key on in key order.
+     */
+    Iterator<Map.Entry<String, byte[]>> iterator(String from) {
+        return entries.tailMap(from, true).entrySet().iterator();
+    }
+
+    /**
+     * Force the logged entries to disk.
+     */
+    void force() throws IOException {
+        try {
+            wal.force(false);
+        } catch (ClosedChannelException e) {
+            // flushed in the meantime, the table holds the entries now
+        }
+    }
+
+    void close() {
+        try {
+            wal.close();
+        } catch (IOException e) {
+            logger.error("Error closing write-ahead log " + file + "! " + e.getMessage());
+        }
+    }
+
+    /**
+     * Close and remove the log file, once its entries are in a table.
+     */
+    void delete() {
+        close();
+        file.delete();
+    }
+
+    private void replay() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        long valid = 0;
+        try {
+            int keySize;
+            while ((keySize = in.read()) >= 0) {
+                byte[] key = new byte[keySize];
+                byte flags = in.readByte();
+                byte[] entry = new byte[in.readInt() + 1];
+                in.readFully(key);
+                in.readFully(entry, 1, entry.length - 1);
+                entry[0] = flags;
+                entries.put(new String(key, LogStorage.CHARSET), entry);
+                valid += LsmStorage.RECORD_HEADER_SIZE + keySize + entry.length - 1;
+            }
+        } catch (EOFException e) {
+            logger.error("Write-ahead log " + file + " ends with an incomplete record.");
+        } finally {
+            in.close();
+        }
+        wal.truncate(valid);
+        wal.position(valid);
+        size.set(valid);
+    }
+}
@@ -0,0 +1,95 @@
+package app_kvServer.storage;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Merges several sorted sources of LsmStorage entries into one sorted
+ * stream with a single entry per key. Sources are given newest first; if
+ * several hold a key, the entry of the newest one wins.
+ */
+class MergeIterator {
+
+    /**
+     * Sorted stream of entries.
+     */
+    interface Source {
+        /**
+         * @return  the next entry, or null at the end
+         */
+        Map.Entry<String, byte[]> next() throws IOException;
+
+        void close();
+    }
+
+    private final List<Source> sources;
+    private final PriorityQueue<Head> heads = new PriorityQueue<Head>();
+
+    MergeIterator(List<Source> sources) throws IOException {
+        this.sources = sources;
+        for (int i = 0; i < sources.size(); i++) {
+            advance(new Head(i));
+        }
+    }
+
+    /**
+     * @return  the newest entry of the next key, or null at the end
+     */
+    Map.Entry<String, byte[]> next() throws IOException {
+        Head head = heads.poll();
+        if (head == null) {
+            return null;
+        }
+        Map.Entry<String, byte[]> entry = head.entry;
+        advance(head);
+        /* older entries of the same key are shadowed */
+        while (!heads.isEmpty() && heads.peek().entry.getKey().equals(entry.getKey())) {
+            advance(heads.poll());
+        }
+        return entry;
+    }
+
+    void close() {
+        for (Source source : sources) {
+            source.close();
+        }
+    }
+
+    private void advance(Head head) throws IOException {
+        head.entry = sources.get(head.rank).next();
+        if (head.entry != null) {
+            heads.add(head);
+        }
+    }
+
+    /**
+     * Source over a sorted iterator, e.g. of a MemTable.
+     */
+    static Source of(final Iterator<Map.Entry<String, byte[]>> iterator) {
+        return new Source() {
+            public Map.Entry<String, byte[]> next() {
+                return iterator.hasNext() ? iterator.next() : null;
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+    private static class Head implements Comparable<Head> {
+        final int rank;
+        Map.Entry<String, byte[]> entry;
+
+        Head(int rank) {
+            this.rank = rank;
+        }
+
+        public int compareTo(Head other) {
+            int c = entry.getKey().compareTo(other.entry.getKey());
+            return c != 0 ? c : rank - other.rank;
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package app_kvServer.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Open-addressing hash table from keys of at most MAX_KEY_SIZE bytes to
+ * packed record locations.
+ *
+ * Keys live in fixed-size slots of a single ByteBuffer, either on the heap
+ * or off-heap, and the locations in a parallel AtomicLongArray, so the index
+ * holds no object per key and adds nothing for the garbage collector to
+ * trace. Collisions are resolved by linear probing.
+ *
+ * Reads take no lock. The location of a slot is its only mutable part and
+ * is read and written atomically; a key is written into an empty slot before
+ * its location is published, and stays there until the table is rebuilt.
+ * Removing an entry therefore leaves its key behind as a tombstone, which
+ * only the same key may take over again. A rebuild fills a new table and
+ * then swaps it in, so readers still probing the old one see a consistent,
+ * if slightly stale, state. Writers are serialized among themselves.
+ *
+ * Keys put with a time-to-live also have their deadline in a second
+ * parallel AtomicLongArray, which is only allocated once the first such key
+ * arrives, so storages that never use expiry pay nothing for it. The
+ * deadline is written before the location it belongs to is published.
+ *
+ * Slot layout (SLOT_SIZE bytes):
+ *   1 byte key length (0 = empty) | key bytes padded to MAX_KEY_SIZE
+ */
+class OffsetIndex {
+
+    static final long NONE = -1;
+
+    static final int MAX_KEY_SIZE = 20;
+    private static final int SLOT_SIZE = 1 + MAX_KEY_SIZE;
+    private static final int KEY_OFFSET = 1;
+
+    /* deadline of keys that do not expire */
+    static final long NEVER = 0;
+
+    /* locations of slots without a live entry. No record has length 0 and
+       none reaches up to the last offset of a segment, so neither value can
+       be a real location. */
+    private static final long EMPTY = 0;
+    private static final long REMOVED = -2;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    /* largest power of two number of slots whose keys fit into one ByteBuffer */
+    private static final int MAX_CAPACITY = 1 << 26;
+    private static final float LOAD_FACTOR = 0.7f;
+
+    /**
+     * Receives the entries of the index in forEach().
+     */
+    interface Visitor {
+        /**
+         * @param expiresAt deadline of the key, NEVER if it does not expire
+         */
+        void visit(byte[] key, long location, long expiresAt) throws IOException;
+    }
+
+    private final boolean offHeap;
+
+    private volatile Table table;
+    private volatile int size;
+    /* number of tombstones, only used by writers */
+    private int removed;
+
+    OffsetIndex(boolean offHeap) {
+        this.offHeap = offHeap;
+        this.table = new Table(INITIAL_CAPACITY, offHeap);
+    }
+
+    /**
+     * @return  location of the key, or NONE if it is not in the index
+     */
+    long get(byte[] key) {
+        Table t = table;
+        int slot = t.find(key);
+        if (slot < 0) {
+            return NONE;
+        }
+        long location = t.locations.get(slot);
+        return location == REMOVED ? NONE : location;
+    }
+
+    boolean containsKey(byte[] key) {
+        return get(key) != NONE;
+    }
+
+    /**
+     * @return  deadline of the key, NEVER if it does not expire or is not
+     *          in the index
+     */
+    long getExpiry(byte[] key) {
+        Table t = table;
+        int slot = t.find(key);
+        if (slot < 0 || t.locations.get(slot) == REMOVED) {
+            return NEVER;
+        }
+        return t.expiry(slot);
+    }
+
+    /**
+     * @return  true if the key is in the index and has not expired by now
+     */
+    boolean containsLive(byte[] key, long now) {
+        Table t = table;
+        int slot = t.find(key);
+        if (slot < 0 || t.locations.get(slot) == REMOVED) {
+            return false;
+        }
+        long expiresAt = t.expiry(slot);
+        return expiresAt == NEVER || expiresAt > now;
+    }
+
+    /**
+     * @return  previous location of the key, or NONE if it is new
+     */
+    synchronized long put(byte[] key, long location) {
+        return put(key, location, NEVER);
+    }
+
+    /**
+     * @param expiresAt deadline of the key, NEVER if it does not expire
+     * @return  previous location of the key, or NONE if it is new
+     */
+    synchronized long put(byte[] key, long location, long expiresAt) {
+        if (key.length == 0 || key.length > MAX_KEY_SIZE) {
+            throw new IllegalArgumentException("Key must be between 1 and " + MAX_KEY_SIZE + " bytes");
+        }
+        Table t = table;
+        int slot = t.find(key);
+        if (slot >= 0) {
+            t.setExpiry(slot, expiresAt);
+            long old = t.locations.getAndSet(slot, location);
+            if (old != REMOVED) {
+                return old;
+            }
+            removed--;
+            size++;
+            return NONE;
+        }
+        if (size + removed + 1 > t.capacity * LOAD_FACTOR) {
+            t = rebuild();
+        }
+        t.insert(key, location, expiresAt);
+        size++;
+        return NONE;
+    }
+
+    /**
+     * Point the key at a new location only if it still is at the expected one.
+     * @return  true if the location was replaced
+     */
+    synchronized boolean replace(byte[] key, long expected, long location) {
+        Table t = table;
+        int slot = t.find(key);
+        return slot >= 0 && t.locations.compareAndSet(slot, expected, location);
+    }
+
+    /**
+     * @return  location the key had, or NONE if it was not in the index
+     */
+    synchronized long remove(byte[] key) {
+        Table t = table;
+        int slot = t.find(key);
+        if (slot < 0 || t.locations.get(slot) == REMOVED) {
+            return NONE;
+        }
+        long old = t.locations.getAndSet(slot, REMOVED);
+        size--;
+        removed++;
+        return old;
+    }
+
+    int size() {
+        return size;
+    }
+
+    synchronized void clear() {
+        table = new Table(INITIAL_CAPACITY, offHeap);
+        size = 0;
+        removed = 0;
+    }
+
+    /**
+     * Visit every entry of the table as it is when the walk starts. Entries
+     * changed during the walk may be visited with either their old or new
+     * location, entries added during it may be missed.
+     */
+    void forEach(Visitor visitor) throws IOException {
+        Table t = table;
+        for (int slot = 0; slot < t.capacity; slot++) {
+            long location = t.locations.get(slot);
+            if (location != EMPTY && location != REMOVED) {
+                visitor.visit(t.key(slot), location, t.expiry(slot));
+            }
+        }
+    }
+
+    /* copies the live entries into a new table, doubling it unless most of
+       the load came from tombstones, and publishes it */
+    private Table rebuild() {
+        Table old = table;
+        int slots = size + 1 > old.capacity * LOAD_FACTOR / 2 ? old.capacity * 2 : old.capacity;
+        if (slots > MAX_CAPACITY) {
+            throw new IllegalStateException("Index is full!");
+        }
+        Table fresh = new Table(slots, offHeap);
+        for (int slot = 0; slot < old.capacity; slot++) {
+            long location = old.locations.get(slot);
+            if (location != EMPTY && location != REMOVED) {
+                fresh.insert(old.key(slot), location, old.expiry(slot));
+            }
+        }
+        removed = 0;
+        table = fresh;
+        return fresh;
+    }
+
+    /* FNV-1a followed by a finalizer so that the low bits are well mixed */
+    private static int hash(byte[] key) {
+        int h = 0x811C9DC5;
+        for (byte b : key) {
+            h = (h ^ (b & 0xFF)) * 0x01000193;
+        }
+        return mix(h);
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static class Table {
+        final int capacity;
+        final ByteBuffer keys;
+        final AtomicLongArray locations;
+        /* null until a key with a deadline is put, only assigned by writers */
+        volatile AtomicLongArray expiries;
+
+        Table(int capacity, boolean offHeap) {
+            this.capacity = capacity;
+            this.keys = offHeap ? ByteBuffer.allocateDirect(capacity * SLOT_SIZE)
+                    : ByteBuffer.allocate(capacity * SLOT_SIZE);
+            this.locations = new AtomicLongArray(capacity);
+        }
+
+        /* slot that holds or held the key, or -1 */
+        int find(byte[] key) {
+            int mask = capacity - 1;
+            int slot = hash(key) & mask;
+            /* reading the location first makes the key bytes written before it visible */
+            while (locations.get(slot) != EMPTY) {
+                if (keyEquals(slot, key)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        long expiry(int slot) {
+            AtomicLongArray e = expiries;
+            return e == null ? NEVER : e.get(slot);
+        }
+
+        void setExpiry(int slot, long expiresAt) {
+            if (expiries == null) {
+                if (expiresAt == NEVER) {
+                    return;
+                }
+                expiries = new AtomicLongArray(capacity);
+            }
+            expiries.set(slot, expiresAt);
+        }
+
+        /* puts a key known to be absent into the first empty slot of its probe sequence */
+        void insert(byte[] key, long location, long expiresAt) {
+            int mask = capacity - 1;
+            int slot = hash(key) & mask;
+            while (locations.get(slot) != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            int base = slot * SLOT_SIZE;
+            keys.put(base, (byte) key.length);
+            for (int i = 0; i < key.length; i++) {
+                keys.put(base + KEY_OFFSET + i, key[i]);
+            }
+            setExpiry(slot, expiresAt);
+            locations.set(slot, location);
+        }
+
+        byte[] key(int slot) {
+            int base = slot * SLOT_SIZE;
+            byte[] key = new byte[keys.get(base) & 0xFF];
+            for (int i = 0; i < key.length; i++) {
+                key[i] = keys.get(base + KEY_OFFSET + i);
+            }
+            return key;
+        }
+
+        private boolean keyEquals(int slot, byte[] key) {
+            int base = slot * SLOT_SIZE;
+            if ((keys.get(base) & 0xFF) != key.length) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (keys.get(base + KEY_OFFSET + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
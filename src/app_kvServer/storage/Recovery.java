@@ -0,0 +1,200 @@
+package app_kvServer.storage;
+
+import org.apache.log4j.Logger;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rebuilds the OffsetIndex of a LogStorage from its segment files, after an
+ * unclean shutdown or when the checkpoint and journals cannot be used.
+ *
+ * Segments are scanned in parallel, one task per segment on a pool with a
+ * thread per core, so the time it takes shrinks with the number of cores
+ * rather than growing with one pass over all data. Every record's checksum
+ * is verified. The newest segment, the one being appended to when the
+ * server stopped, is cut off at its first torn or corrupt record, which
+ * after a crash is its unfinished end. Older segments are sealed, so a
+ * crash can only have torn a record running up to the end of the file,
+ * e.g. of a compaction output; that end is cut off as well. A record that
+ * fails its checksum anywhere else in a sealed segment is skipped and the
+ * scan goes on behind it, and if its header is too damaged to tell where
+ * it ends the storage refuses to open rather than drop the records after
+ * it.
+ *
+ * The tasks merge what they find into one table holding the newest record of
+ * every key, tombstones included, so the outcome does not depend on the
+ * order in which segments are scanned. Keys whose newest record is a
+ * tombstone or has expired are left out of the index.
+ */
+class Recovery {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private final ConcurrentHashMap<String, Newest> newest = new ConcurrentHashMap<String, Newest>();
+    private final AtomicLong maxVersion = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong truncated = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    private Recovery() {
+    }
+
+    /**
+     * Scan the segments and put the newest live record of every key into
+     * the empty index.
+     * @return  newest version of any record, tombstones included
+     */
+    static long rebuild(Collection<Segment> segments, Segment newest, OffsetIndex index) throws IOException {
+        long start = System.currentTimeMillis();
+        Recovery recovery = new Recovery();
+        recovery.scanAll(segments, newest);
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Newest> entry : recovery.newest.entrySet()) {
+            Newest record = entry.getValue();
+            if (!record.tombstone && (record.expiresAt == OffsetIndex.NEVER || record.expiresAt > now)) {
+                index.put(entry.getKey().getBytes(LogStorage.CHARSET), record.location, record.expiresAt);
+            }
+        }
+        logger.info("Rebuilt index with " + index.size() + " keys from " + recovery.records.get()
+                + " records in " + segments.size() + " segments in "
+                + (System.currentTimeMillis() - start) + " ms, cut off "
+                + recovery.truncated.get() + " bytes of torn or corrupt records and skipped "
+                + recovery.skipped.get() + " bytes of corrupt records.");
+        return recovery.maxVersion.get();
+    }
+
+    /**
+     * Verify the records of the newest segment and cut off a torn or
+     * corrupt end, without building an index.
+     * @return  newest version of any record in the segment
+     */
+    static long truncateTornEnd(Segment segment) throws IOException {
+        Recovery recovery = new Recovery();
+        recovery.scan(segment, true);
+        return recovery.maxVersion.get();
+    }
+
+    private void scanAll(Collection<Segment> segments, final Segment newest) throws IOException {
+        if (segments.isEmpty()) {
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(segments.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<Void>> scans = new ArrayList<Future<Void>>();
+            for (final Segment segment : segments) {
+                scans.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        scan(segment, segment == newest);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> scan : scans) {
+                try {
+                    scan.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("Unable to scan segment: " + e.getCause().getMessage(), e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while scanning segments");
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void scan(Segment segment, boolean newest) throws IOException {
+        long offset = Segment.HEADER_SIZE;
+        long version = 0;
+        while (true) {
+            DataInputStream in = LogStorage.openScan(segment, offset);
+            try {
+                LogStorage.Record record;
+                while ((record = LogStorage.readRecord(in)) != null) {
+                    int length = record.length();
+                    offer(new String(record.keyBytes, LogStorage.CHARSET), new Newest(record.version,
+                            LogStorage.location(segment.getId(), offset, length), record.isTombstone(),
+                            record.expiresAt()));
+                    version = Math.max(version, record.version);
+                    records.incrementAndGet();
+                    offset += length;
+                }
+            } finally {
+                in.close();
+            }
+            if (newest || offset >= segment.getSize()) {
+                break;
+            }
+            if (offset + LogStorage.HEADER_SIZE > segment.getSize()) {
+                /* torn within the header */
+                break;
+            }
+            int length = LogStorage.recordLength(segment, offset);
+            if (length < 0) {
+                if (!LogStorage.isZeroFrom(segment, offset)) {
+                    throw new IOException("Segment " + segment.getId() + " holds a malformed record at offset "
+                            + offset + " with " + (segment.getSize() - offset) + " bytes after it!");
+                }
+                /* space the file was extended by, but that was never written */
+                break;
+            }
+            if (offset + length > segment.getSize()) {
+                /* torn within the key or value */
+                break;
+            }
+            logger.error("Segment " + segment.getId() + " holds a corrupt record at offset " + offset
+                    + ", skipping its " + length + " bytes.");
+            skipped.addAndGet(length);
+            offset += length;
+        }
+        if (offset < segment.getSize()) {
+            logger.error("Segment " + segment.getId() + " holds a torn or corrupt record at offset "
+                    + offset + ", cutting off the last " + (segment.getSize() - offset) + " bytes.");
+            truncated.addAndGet(segment.getSize() - offset);
+            segment.truncate(offset);
+        }
+        long max;
+        while (version > (max = maxVersion.get()) && !maxVersion.compareAndSet(max, version)) {
+            // retry with the new maximum
+        }
+    }
+
+    /* keeps the record if it is newer than what was found for its key so far */
+    private void offer(String key, Newest record) {
+        while (true) {
+            Newest current = newest.putIfAbsent(key, record);
+            if (current == null || current.version >= record.version
+                    || newest.replace(key, current, record)) {
+                return;
+            }
+        }
+    }
+
+    private static class Newest {
+        final long version;
+        final long location;
+        final boolean tombstone;
+        final long expiresAt;
+
+        Newest(long version, long location, boolean tombstone, long expiresAt) {
+            this.version = version;
+            this.location = location;
+            this.tombstone = tombstone;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
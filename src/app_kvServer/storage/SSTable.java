@@ -0,0 +1,353 @@
+package app_kvServer.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable sorted table file of an LsmStorage.
+ *
+ * Entries are stored in key order in blocks of about BLOCK_SIZE bytes. Only
+ * the first key of every block, the block positions and a BloomFilter over
+ * all keys are kept in memory, so a lookup costs at most one positional
+ * read of a single block and usually none for keys the table does not hold.
+ *
+ * File layout:
+ *   data blocks of records (1 byte key length | 1 byte flags | 4 byte value length | key bytes | value bytes)
+ *   index: 4 byte block count | per block (1 byte key length | first key | 8 byte offset | 4 byte length)
+ *          | 1 byte key length | last key | 8 byte entry count
+ *   bloom filter
+ *   footer: 8 byte index offset | 8 byte bloom filter offset | 4 byte magic
+ */
+class SSTable {
+
+    static final String PREFIX = "sst-";
+    static final String SUFFIX = ".sst";
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int FOOTER_SIZE = 8 + 8 + 4;
+    private static final int MAGIC = 0x4B565353;
+
+    private final long id;
+    private final File file;
+    private final FileChannel channel;
+    private final long size;
+    private final long dataSize;
+
+    private final String[] blockKeys;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private final String lastKey;
+    private final long entryCount;
+    private final BloomFilter bloom;
+
+    /**
+     * Open a table written by a Writer and load its index and filter.
+     */
+    SSTable(long id, File file) throws IOException {
+        this.id = id;
+        this.file = file;
+        this.channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            this.size = channel.size();
+            if (size < FOOTER_SIZE) {
+                throw new IOException("Table " + file + " is truncated!");
+            }
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            read(footer, size - FOOTER_SIZE);
+            long indexOffset = footer.getLong(0);
+            long bloomOffset = footer.getLong(8);
+            if (footer.getInt(16) != MAGIC || indexOffset > bloomOffset || bloomOffset > size - FOOTER_SIZE) {
+                throw new IOException("Table " + file + " has an unknown format!");
+            }
+            this.dataSize = indexOffset;
+
+            channel.position(indexOffset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            int blocks = in.readInt();
+            blockKeys = new String[blocks];
+            blockOffsets = new long[blocks];
+            blockLengths = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                blockKeys[i] = readKey(in);
+                blockOffsets[i] = in.readLong();
+                blockLengths[i] = in.readInt();
+            }
+            lastKey = readKey(in);
+            entryCount = in.readLong();
+            bloom = BloomFilter.read(in);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    long getId() { return this.id; }
+
+    File getFile() { return this.file; }
+
+    long getSize() { return this.size; }
+
+    long getEntryCount() { return this.entryCount; }
+
+    String getFirstKey() { return this.blockKeys[0]; }
+
+    String getLastKey() { return this.lastKey; }
+
+    /**
+     * @return  true if the key range of this table intersects [first, last]
+     */
+    boolean overlaps(String first, String last) {
+        return getFirstKey().compareTo(last) <= 0 && lastKey.compareTo(first) >= 0;
+    }
+
+    /**
+     * @return  the entry of the key, or null if the table holds none
+     */
+    byte[] get(String key, byte[] keyBytes) throws IOException {
+        if (key.compareTo(getFirstKey()) < 0 || key.compareTo(lastKey) > 0 || !bloom.mightContain(keyBytes)) {
+            return null;
+        }
+        /* last block starting at or before the key */
+        int block = Arrays.binarySearch(blockKeys, key);
+        if (block < 0) {
+            block = -block - 2;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(blockLengths[block]);
+        read(buf, blockOffsets[block]);
+
+        int pos = 0;
+        while (pos < buf.limit()) {
+            int keySize = buf.get(pos) & 0xFF;
+            int valSize = buf.getInt(pos + 2);
+            if (keySize == keyBytes.length && keyEquals(buf, pos + LsmStorage.RECORD_HEADER_SIZE, keyBytes)) {
+                byte[] entry = new byte[valSize + 1];
+                entry[0] = buf.get(pos + 1);
+                System.arraycopy(buf.array(), pos + LsmStorage.RECORD_HEADER_SIZE + keySize, entry, 1, valSize);
+                return entry;
+            }
+            pos += LsmStorage.RECORD_HEADER_SIZE + keySize + valSize;
+        }
+        return null;
+    }
+
+    /**
+     * Read the entries in key order from a separate stream, so scanning does
+     * not get in the way of lookups.
+     */
+    Scanner scan() throws IOException {
+        return new Scanner(new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024)), 0, dataSize);
+    }
+
+    /**
+     * Read the entries in key order starting at the block that may hold the
+     * given key, so entries before it can still come first.
+     */
+    Scanner scan(String from) throws IOException {
+        int block = Arrays.binarySearch(blockKeys, from);
+        if (block < 0) {
+            block = Math.max(-block - 2, 0);
+        }
+        FileInputStream file = new FileInputStream(this.file);
+        file.getChannel().position(blockOffsets[block]);
+        return new Scanner(new DataInputStream(new BufferedInputStream(file, 64 * 1024)), blockOffsets[block], dataSize);
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Close and remove the table file.
+     */
+    void delete() {
+        try {
+            close();
+        } catch (IOException e) {
+            // the file is deleted anyway
+        }
+        file.delete();
+    }
+
+    private void read(ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            if (n < 0) {
+                throw new EOFException("Read past the end of table " + id);
+            }
+            position += n;
+        }
+        dst.flip();
+    }
+
+    private static boolean keyEquals(ByteBuffer buf, int pos, byte[] key) {
+        for (int i = 0; i < key.length; i++) {
+            if (buf.get(pos + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String readKey(DataInputStream in) throws IOException {
+        byte[] key = new byte[in.readUnsignedByte()];
+        in.readFully(key);
+        return new String(key, LogStorage.CHARSET);
+    }
+
+    private static void writeKey(DataOutputStream out, byte[] key) throws IOException {
+        out.writeByte(key.length);
+        out.write(key);
+    }
+
+    static File fileOf(File dir, long id) {
+        return new File(dir, String.format("%s%010d%s", PREFIX, id, SUFFIX));
+    }
+
+    /**
+     * Sequential reader over the entries of a table.
+     */
+    class Scanner implements MergeIterator.Source {
+        private final DataInputStream in;
+        private final long end;
+        private long pos;
+
+        private Scanner(DataInputStream in, long start, long end) {
+            this.in = in;
+            this.pos = start;
+            this.end = end;
+        }
+
+        public Map.Entry<String, byte[]> next() throws IOException {
+            if (pos >= end) {
+                return null;
+            }
+            int keySize = in.readUnsignedByte();
+            byte flags = in.readByte();
+            byte[] entry = new byte[in.readInt() + 1];
+            byte[] key = new byte[keySize];
+            in.readFully(key);
+            in.readFully(entry, 1, entry.length - 1);
+            entry[0] = flags;
+            pos += LsmStorage.RECORD_HEADER_SIZE + keySize + entry.length - 1;
+            return new AbstractMap.SimpleImmutableEntry<String, byte[]>(new String(key, LogStorage.CHARSET), entry);
+        }
+
+        public void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing was written
+            }
+        }
+    }
+
+    /**
+     * Writes the entries of a new table, which must be added in key order.
+     */
+    static class Writer {
+        private final File file;
+        private final FileOutputStream fileOut;
+        private final DataOutputStream out;
+
+        private long pos = 0;
+        private long blockStart = 0;
+        private final List<byte[]> blockKeys = new ArrayList<byte[]>();
+        private final List<Long> blockOffsets = new ArrayList<Long>();
+        private final List<Integer> blockLengths = new ArrayList<Integer>();
+        private byte[] lastKey;
+        private long[] hashes = new long[1024];
+        private int count = 0;
+
+        Writer(File file) throws IOException {
+            this.file = file;
+            this.fileOut = new FileOutputStream(file);
+            this.out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+        }
+
+        void add(byte[] key, byte[] entry) throws IOException {
+            if (pos - blockStart >= BLOCK_SIZE || blockKeys.isEmpty()) {
+                endBlock();
+                blockStart = pos;
+                blockKeys.add(key);
+            }
+            out.writeByte(key.length);
+            out.writeByte(entry[0]);
+            out.writeInt(entry.length - 1);
+            out.write(key);
+            out.write(entry, 1, entry.length - 1);
+            pos += LsmStorage.RECORD_HEADER_SIZE + key.length + entry.length - 1;
+            lastKey = key;
+            if (count == hashes.length) {
+                hashes = Arrays.copyOf(hashes, count * 2);
+            }
+            hashes[count++] = BloomFilter.hash(key);
+        }
+
+        /**
+         * @return  bytes written so far
+         */
+        long getSize() { return this.pos; }
+
+        int getCount() { return this.count; }
+
+        /**
+         * Write the index, filter and footer and force the file to disk.
+         */
+        void finish() throws IOException {
+            endBlock();
+            long indexOffset = pos;
+            out.writeInt(blockKeys.size());
+            for (int i = 0; i < blockKeys.size(); i++) {
+                writeKey(out, blockKeys.get(i));
+                out.writeLong(blockOffsets.get(i));
+                out.writeInt(blockLengths.get(i));
+            }
+            writeKey(out, lastKey);
+            out.writeLong(count);
+            /* tables are bounded by the table size, far below the 2 GB size() counts up to */
+            long bloomOffset = out.size();
+            BloomFilter.build(hashes, count).write(out);
+            out.writeLong(indexOffset);
+            out.writeLong(bloomOffset);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOut.getFD().sync();
+            out.close();
+        }
+
+        /**
+         * Give up on the table and remove what was written.
+         */
+        void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // deleted anyway
+            }
+            file.delete();
+        }
+
+        private void endBlock() {
+            if (blockOffsets.size() < blockKeys.size()) {
+                blockOffsets.add(blockStart);
+                blockLengths.add((int) (pos - blockStart));
+            }
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package app_kvServer.storage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One append-only data file of the log. Only the active segment is ever
+ * appended to; once the log rolls over to a new segment the old one is
+ * sealed and immutable until the compactor rewrites and deletes it.
+ *
+ * The file stays open for the life of the segment. Reads are positional, so
+ * any number of threads can read concurrently without sharing a file pointer.
+ *
+ * In memory mapped mode reads are served from a read-only mapping of the
+ * file instead. A mapping cannot reach past the end of the file without
+ * growing it, so records appended after the file was mapped are read
+ * positionally until they add up to REMAP_CHUNK bytes or to the size of the
+ * mapping, and only then is the file mapped again. A sealed segment is thus
+ * mapped once, and the active one a few times as it fills. Readers pin the
+ * segment between acquire() and release() so superseded mappings can be
+ * unmapped once no reader is left, and close() can wait for them before it
+ * unmaps the file or closes the channel. The pins are counted in stripes
+ * picked by thread, so concurrent readers of one segment do not all update
+ * the same cache line.
+ *
+ * Every file starts with a small header recording the lowest version any
+ * of its records may have, which tells compaction whether older records a
+ * tombstone shadows can still exist. The header counts as dead bytes, so a
+ * segment without live records is entirely dead.
+ *
+ * File layout:
+ *   4 byte magic | 8 byte lowest version | records
+ */
+class Segment {
+
+    static final int HEADER_SIZE = 4 + 8;
+    private static final int MAGIC = 0x4B565347;
+
+    /* must be a power of two */
+    private static final int READER_STRIPES = 32;
+    /* ints between two stripes, keeps every stripe on its own cache line */
+    private static final int STRIPE_SPACING = 16;
+    /* unmapped bytes at the end of the file that are worth a new mapping */
+    private static final long REMAP_CHUNK = 4 * 1024 * 1024;
+
+    private final int id;
+    private final File file;
+    private final FileChannel channel;
+    private final boolean memoryMapped;
+    /* null until the first read in mapped mode and after close */
+    private volatile MappedByteBuffer map;
+    /* mappings replaced by a larger one, unmapped once no reader is pinned */
+    private final List<MappedByteBuffer> retired = new ArrayList<MappedByteBuffer>();
+    private volatile boolean retiring = false;
+    private final AtomicIntegerArray readers = new AtomicIntegerArray(READER_STRIPES * STRIPE_SPACING);
+    private volatile boolean closed = false;
+    /* bytes written so far, only advanced by the single thread appending */
+    private volatile long size;
+    /* bytes belonging to records that were overwritten or deleted */
+    private final AtomicLong deadBytes = new AtomicLong();
+    /* size class in the FreeSpaceMap, -1 while not tracked, guarded by the map */
+    private int freeClass = -1;
+    private volatile long minVersion;
+    /* false only while the segment is known to hold no tombstones */
+    private volatile boolean tombstones;
+    /* oldest tombstone compaction copied here, guarded by the compaction */
+    private long oldestKeptTombstone = Long.MAX_VALUE;
+
+    /**
+     * Open an existing segment file.
+     */
+    Segment(int id, File file, boolean memoryMapped) throws IOException {
+        this.id = id;
+        this.file = file;
+        this.memoryMapped = memoryMapped;
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        this.tombstones = true;
+        try {
+            if (channel.size() < HEADER_SIZE) {
+                /* the server stopped while creating the file, so it holds no
+                   records and any version is a safe lower bound */
+                channel.truncate(0);
+                writeHeader(0);
+                this.minVersion = 0;
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                read(header, 0);
+                if (header.getInt(0) != MAGIC) {
+                    throw new IOException("Segment " + file + " has an unknown format!");
+                }
+                this.minVersion = header.getLong(4);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.size = channel.size();
+    }
+
+    /**
+     * Create a new segment file whose records all have at least the given
+     * version.
+     */
+    Segment(int id, File file, boolean memoryMapped, long minVersion) throws IOException {
+        this.id = id;
+        this.file = file;
+        this.memoryMapped = memoryMapped;
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        this.minVersion = minVersion;
+        this.tombstones = false;
+        try {
+            writeHeader(minVersion);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.size = HEADER_SIZE;
+        this.deadBytes.set(HEADER_SIZE);
+    }
+
+    private void writeHeader(long minVersion) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putLong(minVersion);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    int getId() { return this.id; }
+
+    File getFile() { return this.file; }
+
+    long getSize() { return this.size; }
+
+    long getDeadBytes() { return this.deadBytes.get(); }
+
+    void addDeadBytes(long bytes) { this.deadBytes.addAndGet(bytes); }
+
+    int getFreeClass() { return this.freeClass; }
+
+    void setFreeClass(int freeClass) { this.freeClass = freeClass; }
+
+    long getMinVersion() { return this.minVersion; }
+
+    /**
+     * Raise the lowest version recorded in the header, once it is known
+     * exactly. Must be called before the segment is forced.
+     */
+    void setMinVersion(long minVersion) throws IOException {
+        writeHeader(minVersion);
+        this.minVersion = minVersion;
+    }
+
+    /**
+     * @return  false if the segment is known to hold no tombstones, which
+     *          is only tracked for segments created since the storage opened
+     */
+    boolean mayHoldTombstones() { return this.tombstones; }
+
+    void addedTombstone() { this.tombstones = true; }
+
+    /**
+     * @return  version of the oldest tombstone compaction had to keep in
+     *          this segment, Long.MAX_VALUE if there is none
+     */
+    long getOldestKeptTombstone() { return this.oldestKeptTombstone; }
+
+    void keptTombstone(long version) {
+        this.tombstones = true;
+        this.oldestKeptTombstone = Math.min(oldestKeptTombstone, version);
+    }
+
+    /**
+     * @return  share of the segment taken up by dead records, 0 for an
+     *          empty segment
+     */
+    double getDeadRatio() {
+        long total = this.size;
+        return total == 0 ? 0 : (double) deadBytes.get() / total;
+    }
+
+    /**
+     * Append the buffers as one record with a single gathering write.
+     * Callers must make sure only one thread appends to a segment.
+     * @return  offset of the record inside the segment
+     */
+    long append(ByteBuffer[] record) throws IOException {
+        long offset = this.size;
+        long length = 0;
+        for (ByteBuffer b : record) {
+            length += b.remaining();
+        }
+        channel.position(offset);
+        long written = 0;
+        while (written < length) {
+            written += channel.write(record);
+        }
+        this.size = offset + length;
+        return offset;
+    }
+
+    /**
+     * Cut off everything from the given position on, e.g. a record that was
+     * torn by a crash. Only called while the storage is being opened.
+     */
+    void truncate(long position) throws IOException {
+        channel.truncate(position);
+        this.size = position;
+    }
+
+    /**
+     * Get the bytes of a record and pin the segment until release() is
+     * called. The returned buffer is a slice of the mapping in memory mapped
+     * mode, so it must not be used after release().
+     */
+    ByteBuffer acquire(long position, int length) throws IOException {
+        int stripe = stripe();
+        readers.incrementAndGet(stripe);
+        try {
+            if (closed) {
+                throw new IOException("Segment " + id + " is closed!");
+            }
+            if (position + length > size) {
+                throw new IOException("Segment " + id + " ends before offset " + (position + length) + "!");
+            }
+            MappedByteBuffer current = memoryMapped ? mapping(position + length) : null;
+            if (current != null) {
+                ByteBuffer slice = current.duplicate();
+                slice.limit((int) position + length);
+                slice.position((int) position);
+                return slice.slice();
+            }
+            ByteBuffer dst = ByteBuffer.allocate(length);
+            read(dst, position);
+            dst.flip();
+            return dst;
+        } catch (IOException e) {
+            readers.decrementAndGet(stripe);
+            throw e;
+        } catch (RuntimeException e) {
+            readers.decrementAndGet(stripe);
+            throw e;
+        }
+    }
+
+    /**
+     * Send bytes of the file straight to the target channel, which for a
+     * socket lets the kernel copy them without passing through the heap.
+     * Only valid while the segment is pinned by acquire().
+     */
+    void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long n = channel.transferTo(position, end - position, target);
+            if (n <= 0) {
+                throw new EOFException("Segment " + id + " ended before offset " + end);
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * Unpin the segment, must be called by the thread that acquired it.
+     */
+    void release() {
+        readers.decrementAndGet(stripe());
+        if (retiring) {
+            unmapRetired();
+        }
+    }
+
+    private static int stripe() {
+        return (int) (Thread.currentThread().getId() & (READER_STRIPES - 1)) * STRIPE_SPACING;
+    }
+
+    private boolean pinned() {
+        for (int i = 0; i < READER_STRIPES; i++) {
+            if (readers.get(i * STRIPE_SPACING) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* returns a mapping that covers at least the first end bytes, or null
+       if the bytes past the current mapping are too few to map again */
+    private MappedByteBuffer mapping(long end) throws IOException {
+        MappedByteBuffer current = map;
+        if (current != null && current.limit() >= end) {
+            return current;
+        }
+        synchronized (this) {
+            current = map;
+            if (current != null && current.limit() >= end) {
+                return current;
+            }
+            long size = this.size;
+            if (current != null && size - current.limit() < Math.min(REMAP_CHUNK, current.limit())) {
+                return null;
+            }
+            MappedByteBuffer larger = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            map = larger;
+            if (current != null) {
+                /* readers may still use the old mapping, the last one to
+                   release the segment unmaps it */
+                retired.add(current);
+                retiring = true;
+            }
+            return larger;
+        }
+    }
+
+    /* unmaps the superseded mappings if no reader has the segment pinned, a
+       reader pinning it later only sees the current mapping */
+    private void unmapRetired() {
+        List<MappedByteBuffer> unused;
+        synchronized (this) {
+            if (retired.isEmpty() || pinned()) {
+                return;
+            }
+            unused = new ArrayList<MappedByteBuffer>(retired);
+            retired.clear();
+            retiring = false;
+        }
+        for (MappedByteBuffer buffer : unused) {
+            unmap(buffer);
+        }
+    }
+
+    /**
+     * Fill the buffer with the bytes starting at the given position.
+     */
+    void read(ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            if (n < 0) {
+                throw new EOFException("Read past the end of segment " + id);
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * Force the appended records to disk.
+     */
+    void force() throws IOException {
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException e) {
+            // compacted away, it was forced when it was sealed
+        }
+    }
+
+    /**
+     * Close the file. Waits for pinned readers to finish before the mapping
+     * is unmapped, so no reader can touch unmapped memory.
+     */
+    void close() throws IOException {
+        closed = true;
+        while (pinned()) {
+            Thread.yield();
+        }
+        MappedByteBuffer current = map;
+        map = null;
+        if (current != null) {
+            unmap(current);
+        }
+        unmapRetired();
+        channel.close();
+    }
+
+    /**
+     * Close and remove the segment file.
+     */
+    void delete() {
+        try {
+            close();
+        } catch (IOException e) {
+            // the file is deleted anyway
+        }
+        file.delete();
+    }
+
+    /* releases a mapping right away instead of waiting for the garbage
+       collector, which may keep a deleted file's pages around for long */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(field.get(null), buffer);
+        } catch (Exception e) {
+            // not available on this JVM, the garbage collector unmaps it eventually
+        }
+    }
+}
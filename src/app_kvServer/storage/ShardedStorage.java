@@ -0,0 +1,319 @@
+package app_kvServer.storage;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Splits the key space over a fixed number of independent partitions
+ * selected by key hash, each a LogStorage or an LsmStorage depending on the
+ * configured engine. Every partition has its own files, index, write lock
+ * and compactor, so writes to different partitions never wait for each
+ * other. Partitions are opened, and thereby recovered, in parallel.
+ *
+ * With a single partition the storage directory is used as is; otherwise
+ * partition i lives in the subdirectory partition-i. The partition count and
+ * the engine are recorded in the directory because changing them would look
+ * for keys where they are not stored.
+ *
+ * A snapshot has the same layout, so it can be opened with the same
+ * options. Each partition is copied as of its own point in time; as every
+ * operation touches a single key, each key's value is one it had at the
+ * moment its partition was captured.
+ *
+ * Keys are spread by hash, so a range scan asks every partition for the
+ * first keys of the range and merges their sorted answers.
+ */
+public class ShardedStorage implements IKVStorage {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final String PARTITIONS_FILE = "partitions";
+    private static final String PARTITION_PREFIX = "partition-";
+
+    private final IPartition[] partitions;
+    private final String engine;
+
+    public ShardedStorage(File dir, final StorageOptions options) throws IOException {
+        int count = options.getPartitions();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create storage directory " + dir);
+        }
+        this.engine = options.isLsmEngine() ? StorageOptions.ENGINE_LSM : StorageOptions.ENGINE_LOG;
+        checkLayout(dir, count, engine);
+
+        final File[] dirs = new File[count];
+        for (int i = 0; i < count; i++) {
+            dirs[i] = count == 1 ? dir : new File(dir, PARTITION_PREFIX + i);
+        }
+        this.partitions = new IPartition[count];
+
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(count, Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<IPartition>> opened = new ArrayList<Future<IPartition>>();
+            for (final File partitionDir : dirs) {
+                opened.add(pool.submit(new Callable<IPartition>() {
+                    public IPartition call() throws IOException {
+                        if (options.isLsmEngine()) {
+                            return new LsmStorage(partitionDir, options);
+                        }
+                        return new LogStorage(partitionDir, options);
+                    }
+                }));
+            }
+            IOException failure = null;
+            for (int i = 0; i < count; i++) {
+                try {
+                    partitions[i] = opened.get(i).get();
+                } catch (ExecutionException e) {
+                    failure = new IOException("Unable to open partition " + i + ": "
+                            + e.getCause().getMessage(), e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = new IOException("Interrupted while opening partition " + i);
+                }
+            }
+            if (failure != null) {
+                close();
+                throw failure;
+            }
+        } finally {
+            pool.shutdown();
+        }
+        logger.info("Opened storage with " + count + " partitions.");
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return partition(key).contains(key);
+    }
+
+    @Override
+    public String get(String key) throws IOException {
+        return partition(key).get(key);
+    }
+
+    @Override
+    public byte[] getBytes(String key) throws IOException {
+        return partition(key).getBytes(key);
+    }
+
+    /**
+     * Each partition reads its share of the keys in one pass.
+     */
+    @Override
+    public Map<String, byte[]> getAll(Collection<String> keys, Set<String> expiring) throws IOException {
+        if (partitions.length == 1) {
+            return partitions[0].getAll(keys, expiring);
+        }
+        Map<IPartition, List<String>> shares = new HashMap<IPartition, List<String>>();
+        for (String key : keys) {
+            IPartition partition = partition(key);
+            List<String> share = shares.get(partition);
+            if (share == null) {
+                share = new ArrayList<String>();
+                shares.put(partition, share);
+            }
+            share.add(key);
+        }
+        Map<String, byte[]> values = new HashMap<String, byte[]>();
+        for (Map.Entry<IPartition, List<String>> share : shares.entrySet()) {
+            values.putAll(share.getKey().getAll(share.getValue(), expiring));
+        }
+        return values;
+    }
+
+    @Override
+    public boolean transferValue(String key, Framer framer, WritableByteChannel target) throws IOException {
+        return partition(key).transferValue(key, framer, target);
+    }
+
+    @Override
+    public void put(String key, String value) throws IOException {
+        partition(key).put(key, value);
+    }
+
+    @Override
+    public void put(String key, String value, long expiresAt) throws IOException {
+        partition(key).put(key, value, expiresAt);
+    }
+
+    @Override
+    public void put(String key, byte[] value, long expiresAt) throws IOException {
+        partition(key).put(key, value, expiresAt);
+    }
+
+    /**
+     * Each partition writes its share of the tuples as one batch, so a
+     * failing partition leaves the shares of the others written.
+     */
+    @Override
+    public void putAll(Map<String, byte[]> entries, long expiresAt) throws IOException {
+        if (partitions.length == 1) {
+            partitions[0].putAll(entries, expiresAt);
+            return;
+        }
+        Map<IPartition, Map<String, byte[]>> shares = new HashMap<IPartition, Map<String, byte[]>>();
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            IPartition partition = partition(entry.getKey());
+            Map<String, byte[]> share = shares.get(partition);
+            if (share == null) {
+                share = new LinkedHashMap<String, byte[]>();
+                shares.put(partition, share);
+            }
+            share.put(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<IPartition, Map<String, byte[]>> share : shares.entrySet()) {
+            share.getKey().putAll(share.getValue(), expiresAt);
+        }
+    }
+
+    @Override
+    public long getExpiry(String key) throws IOException {
+        return partition(key).getExpiry(key);
+    }
+
+    @Override
+    public List<Map.Entry<String, byte[]>> scan(String from, String to, int limit) throws IOException {
+        if (partitions.length == 1) {
+            return partitions[0].scan(from, to, limit);
+        }
+        List<Map.Entry<String, byte[]>> merged = new ArrayList<Map.Entry<String, byte[]>>();
+        for (IPartition partition : partitions) {
+            merged.addAll(partition.scan(from, to, limit));
+        }
+        Collections.sort(merged, BY_KEY);
+        return merged.size() > limit ? new ArrayList<Map.Entry<String, byte[]>>(merged.subList(0, limit)) : merged;
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        partition(key).delete(key);
+    }
+
+    @Override
+    public void clear() throws IOException {
+        for (IPartition partition : partitions) {
+            partition.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (IPartition partition : partitions) {
+            if (partition != null) {
+                partition.close();
+            }
+        }
+    }
+
+    @Override
+    public void snapshot(File target) throws IOException {
+        if (!target.isDirectory() && !target.mkdirs()) {
+            throw new IOException("Unable to create snapshot directory " + target);
+        }
+        checkLayout(target, partitions.length, engine);
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i].snapshot(partitions.length == 1 ? target : new File(target, PARTITION_PREFIX + i));
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (IPartition partition : partitions) {
+            size += partition.size();
+        }
+        return size;
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long raw = 0;
+        long stored = 0;
+        for (IPartition partition : partitions) {
+            raw += partition.getValueBytes();
+            stored += partition.getStoredValueBytes();
+        }
+        return stored == 0 ? 1 : (double) raw / stored;
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    private static final Comparator<Map.Entry<String, byte[]>> BY_KEY = new Comparator<Map.Entry<String, byte[]>>() {
+        public int compare(Map.Entry<String, byte[]> a, Map.Entry<String, byte[]> b) {
+            return a.getKey().compareTo(b.getKey());
+        }
+    };
+
+    private IPartition partition(String key) {
+        /* spread the bits of String.hashCode, which is stable across JVMs */
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return partitions[(h & 0x7FFFFFFF) % partitions.length];
+    }
+
+    private static void checkLayout(File dir, int count, String engine) throws IOException {
+        File file = new File(dir, PARTITIONS_FILE);
+        Properties prop = new Properties();
+        if (file.isFile()) {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                prop.load(in);
+            } finally {
+                in.close();
+            }
+            int existing = Integer.parseInt(prop.getProperty("count", "1"));
+            if (existing != count) {
+                throw new IOException("Storage at " + dir + " was created with " + existing
+                        + " partitions, not " + count + "!");
+            }
+            String existingEngine = prop.getProperty("engine", StorageOptions.ENGINE_LOG);
+            if (!existingEngine.equals(engine)) {
+                throw new IOException("Storage at " + dir + " was created with the "
+                        + existingEngine + " engine, not " + engine + "!");
+            }
+            return;
+        }
+        String[] names = dir.list();
+        boolean lsm = engine.equals(StorageOptions.ENGINE_LSM);
+        for (int i = 0; (count != 1 || lsm) && names != null && i < names.length; i++) {
+            if (names[i].startsWith(LogStorage.SEGMENT_PREFIX)) {
+                throw new IOException("Storage at " + dir + " was created without partitions"
+                        + " and with the " + StorageOptions.ENGINE_LOG + " engine!");
+            }
+        }
+        prop.setProperty("count", String.valueOf(count));
+        prop.setProperty("engine", engine);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            prop.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+}
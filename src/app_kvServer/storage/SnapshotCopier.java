@@ -0,0 +1,170 @@
+package app_kvServer.storage;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Writes the files of a storage snapshot into a target directory, copying
+ * only what an earlier snapshot in the same directory does not hold yet.
+ *
+ * Storage files are append-only and never change once sealed, so a file of
+ * the same name that is as long as the source is skipped and a shorter one,
+ * e.g. the segment that was still being written last time, only gets the
+ * bytes appended since. The tail of the existing copy is compared with the
+ * source first, so a file whose name was reused is copied again in full.
+ *
+ * The SNAPSHOT_FILE marker is removed before anything changes and written
+ * last, so a directory holding it always holds a complete snapshot. Files
+ * with one of the managed prefixes that are not part of the new snapshot,
+ * i.e. were compacted away since the last one, are deleted by finish().
+ */
+class SnapshotCopier {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    static final String SNAPSHOT_FILE = "snapshot";
+    /* bytes at the end of an existing copy compared with the source */
+    private static final int COMPARE_SIZE = 4096;
+
+    private final File dir;
+    private final String[] managedPrefixes;
+    private final Set<String> written = new HashSet<String>();
+    private long copiedBytes = 0;
+    private long reusedBytes = 0;
+
+    /**
+     * @param dir target directory, created if needed
+     * @param managedPrefixes name prefixes of the storage files, stale files
+     *           with these prefixes are deleted by finish()
+     */
+    SnapshotCopier(File dir, String... managedPrefixes) throws IOException {
+        this.dir = dir;
+        this.managedPrefixes = managedPrefixes;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create snapshot directory " + dir);
+        }
+        File marker = new File(dir, SNAPSHOT_FILE);
+        if (marker.exists() && !marker.delete()) {
+            throw new IOException("Unable to replace snapshot in " + dir);
+        }
+    }
+
+    /**
+     * Copy the first length bytes of the source into a file of the given
+     * name, reusing what the target already holds.
+     */
+    void copy(FileChannel source, String name, long length) throws IOException {
+        written.add(name);
+        RandomAccessFile file = new RandomAccessFile(new File(dir, name), "rw");
+        try {
+            FileChannel target = file.getChannel();
+            long existing = target.size();
+            if (existing > length || !sameTail(source, target, existing)) {
+                existing = 0;
+            }
+            target.truncate(existing);
+            reusedBytes += existing;
+            long position = existing;
+            while (position < length) {
+                long n = source.transferTo(position, length - position, target.position(position));
+                if (n <= 0) {
+                    throw new IOException("Source of " + name + " ended before " + length + " bytes");
+                }
+                position += n;
+            }
+            copiedBytes += length - existing;
+            target.force(true);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Copy the first length bytes of the file.
+     */
+    void copy(File source, long length) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            copy(in.getChannel(), source.getName(), length);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return  file of the given name in the snapshot, for files the storage
+     *          writes itself rather than copies
+     */
+    File file(String name) {
+        written.add(name);
+        return new File(dir, name);
+    }
+
+    /**
+     * Delete stale files and mark the snapshot complete.
+     * @param version newest write the snapshot holds
+     */
+    void finish(long version) throws IOException {
+        String[] names = dir.list();
+        for (int i = 0; names != null && i < names.length; i++) {
+            if (!written.contains(names[i]) && isManaged(names[i])) {
+                new File(dir, names[i]).delete();
+            }
+        }
+        Properties prop = new Properties();
+        prop.setProperty("version", String.valueOf(version));
+        prop.setProperty("created", String.valueOf(System.currentTimeMillis()));
+        prop.setProperty("copiedBytes", String.valueOf(copiedBytes));
+        prop.setProperty("reusedBytes", String.valueOf(reusedBytes));
+        File tmp = new File(dir, SNAPSHOT_FILE + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            prop.store(out, null);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        IndexJournal.replace(tmp, new File(dir, SNAPSHOT_FILE));
+        logger.info("Wrote snapshot of version " + version + " to " + dir + ", copied "
+                + copiedBytes + " bytes and reused " + reusedBytes + " bytes.");
+    }
+
+    private boolean isManaged(String name) {
+        for (String prefix : managedPrefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* true if the last bytes of the existing copy match the source */
+    private static boolean sameTail(FileChannel source, FileChannel target, long existing) throws IOException {
+        int length = (int) Math.min(existing, COMPARE_SIZE);
+        ByteBuffer expected = ByteBuffer.allocate(length);
+        ByteBuffer actual = ByteBuffer.allocate(length);
+        read(source, expected, existing - length);
+        read(target, actual, existing - length);
+        return expected.equals(actual);
+    }
+
+    private static void read(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position + dst.position());
+            if (n < 0) {
+                break;
+            }
+        }
+        dst.flip();
+    }
+}
@@ -0,0 +1,258 @@
+package app_kvServer.storage;
+
+import java.util.Properties;
+
+/**
+ * Choice of storage engine and its tuning knobs. Defaults suit a general
+ * purpose server; fromProperties() reads overrides from the server's
+ * command line options.
+ */
+public class StorageOptions {
+
+    public static final String ENGINE = "storage.engine";
+    public static final String SEGMENT_SIZE = "storage.segmentSize";
+    public static final String MEMTABLE_SIZE = "storage.memtableSize";
+    public static final String MODE = "storage.mode";
+    public static final String FSYNC = "storage.fsync";
+    public static final String GROUP_COMMIT_WINDOW = "storage.groupCommitMillis";
+    public static final String INDEX = "storage.index";
+    public static final String PARTITIONS = "storage.partitions";
+    public static final String COMPRESSION = "storage.compression";
+    public static final String COMPRESSION_THRESHOLD = "storage.compressionThreshold";
+    public static final String RECOVERY = "storage.recovery";
+    public static final String SCAN_INDEX = "storage.scanIndex";
+    public static final String VERIFY_TRANSFERS = "storage.verifyTransfers";
+
+    /* storage engines, see LogStorage and LsmStorage */
+    public static final String ENGINE_LOG = "log";
+    public static final String ENGINE_LSM = "lsm";
+
+    /* read path modes */
+    public static final String MODE_CHANNEL = "channel";
+    public static final String MODE_MMAP = "mmap";
+
+    /* where the key index keeps its table */
+    public static final String INDEX_HEAP = "heap";
+    public static final String INDEX_OFFHEAP = "offheap";
+
+    /* how values are compressed */
+    public static final String COMPRESSION_NONE = "none";
+    public static final String COMPRESSION_DEFLATE = "deflate";
+
+    /* how a LogStorage rebuilds its index after a crash */
+    public static final String RECOVERY_SCAN = "scan";
+    public static final String RECOVERY_JOURNAL = "journal";
+
+    /* what a LogStorage serves range scans from */
+    public static final String SCAN_INDEX_NONE = "none";
+    public static final String SCAN_INDEX_SORTED = "sorted";
+
+    private boolean lsmEngine = false;
+    private long segmentSize = 8 * 1024 * 1024;
+    private long memtableSize = 4 * 1024 * 1024;
+    private boolean memoryMapped = false;
+    private SyncPolicy syncPolicy = SyncPolicy.GROUP;
+    private long groupCommitMillis = 0;
+    private boolean offHeapIndex = false;
+    private int partitions = 1;
+    private boolean compressed = false;
+    private int compressionThreshold = 512;
+    private String recovery = RECOVERY_SCAN;
+    private boolean sortedKeys = false;
+    private boolean verifiedTransfers = false;
+
+    public static StorageOptions fromProperties(Properties props) {
+        StorageOptions options = new StorageOptions();
+        String engine = props.getProperty(ENGINE, ENGINE_LOG);
+        if (engine.equals(ENGINE_LSM)) {
+            options.setLsmEngine(true);
+        } else if (!engine.equals(ENGINE_LOG)) {
+            throw new IllegalArgumentException("Unknown storage engine " + engine);
+        }
+        String memtableSize = props.getProperty(MEMTABLE_SIZE);
+        if (memtableSize != null) {
+            options.setMemtableSize(Long.parseLong(memtableSize));
+        }
+        String segmentSize = props.getProperty(SEGMENT_SIZE);
+        if (segmentSize != null) {
+            options.setSegmentSize(Long.parseLong(segmentSize));
+        }
+        String mode = props.getProperty(MODE, MODE_CHANNEL);
+        if (mode.equals(MODE_MMAP)) {
+            options.setMemoryMapped(true);
+        } else if (!mode.equals(MODE_CHANNEL)) {
+            throw new IllegalArgumentException("Unknown storage mode " + mode);
+        }
+        String fsync = props.getProperty(FSYNC);
+        if (fsync != null) {
+            options.setSyncPolicy(SyncPolicy.valueOf(fsync.toUpperCase()));
+        }
+        String window = props.getProperty(GROUP_COMMIT_WINDOW);
+        if (window != null) {
+            options.setGroupCommitMillis(Long.parseLong(window));
+        }
+        String partitions = props.getProperty(PARTITIONS);
+        if (partitions != null) {
+            options.setPartitions(Integer.parseInt(partitions));
+        }
+        String index = props.getProperty(INDEX, INDEX_HEAP);
+        if (index.equals(INDEX_OFFHEAP)) {
+            options.setOffHeapIndex(true);
+        } else if (!index.equals(INDEX_HEAP)) {
+            throw new IllegalArgumentException("Unknown index location " + index);
+        }
+        String compression = props.getProperty(COMPRESSION, COMPRESSION_NONE);
+        if (compression.equals(COMPRESSION_DEFLATE)) {
+            options.setCompressed(true);
+        } else if (!compression.equals(COMPRESSION_NONE)) {
+            throw new IllegalArgumentException("Unknown compression " + compression);
+        }
+        String threshold = props.getProperty(COMPRESSION_THRESHOLD);
+        if (threshold != null) {
+            options.setCompressionThreshold(Integer.parseInt(threshold));
+        }
+        options.setRecovery(props.getProperty(RECOVERY, RECOVERY_SCAN));
+        String scanIndex = props.getProperty(SCAN_INDEX, SCAN_INDEX_NONE);
+        if (scanIndex.equals(SCAN_INDEX_SORTED)) {
+            options.setSortedKeys(true);
+        } else if (!scanIndex.equals(SCAN_INDEX_NONE)) {
+            throw new IllegalArgumentException("Unknown scan index " + scanIndex);
+        }
+        options.setVerifiedTransfers(Boolean.parseBoolean(props.getProperty(VERIFY_TRANSFERS, "false")));
+        return options;
+    }
+
+    /**
+     * @return  true to store data in an LsmStorage instead of a LogStorage
+     */
+    public boolean isLsmEngine() { return this.lsmEngine; }
+
+    public void setLsmEngine(boolean lsmEngine) { this.lsmEngine = lsmEngine; }
+
+    /**
+     * @return  size in bytes after which an LsmStorage memtable is flushed,
+     *          also the size of its tables
+     */
+    public long getMemtableSize() { return this.memtableSize; }
+
+    public void setMemtableSize(long memtableSize) {
+        if (memtableSize <= 0) {
+            throw new IllegalArgumentException("Memtable size must be positive");
+        }
+        this.memtableSize = memtableSize;
+    }
+
+    /**
+     * @return  size in bytes after which the active segment is sealed
+     */
+    public long getSegmentSize() { return this.segmentSize; }
+
+    public void setSegmentSize(long segmentSize) {
+        if (segmentSize <= 0 || segmentSize > LogStorage.MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Segment size must be between 1 and " + LogStorage.MAX_SEGMENT_SIZE);
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * @return  true if GETs are served from memory mappings of the segments
+     *          instead of positional reads
+     */
+    public boolean isMemoryMapped() { return this.memoryMapped; }
+
+    public void setMemoryMapped(boolean memoryMapped) { this.memoryMapped = memoryMapped; }
+
+    /**
+     * @return  when writes are forced to disk before they are acknowledged
+     */
+    public SyncPolicy getSyncPolicy() { return this.syncPolicy; }
+
+    public void setSyncPolicy(SyncPolicy syncPolicy) { this.syncPolicy = syncPolicy; }
+
+    /**
+     * @return  how long the leader of a group commit waits for more writers
+     *          before it syncs, 0 to only batch writers that arrive while
+     *          the previous sync is running
+     */
+    public long getGroupCommitMillis() { return this.groupCommitMillis; }
+
+    public void setGroupCommitMillis(long groupCommitMillis) {
+        if (groupCommitMillis < 0) {
+            throw new IllegalArgumentException("Group commit window must not be negative");
+        }
+        this.groupCommitMillis = groupCommitMillis;
+    }
+
+    /**
+     * @return  true if the key index is allocated outside the Java heap
+     */
+    public boolean isOffHeapIndex() { return this.offHeapIndex; }
+
+    public void setOffHeapIndex(boolean offHeapIndex) { this.offHeapIndex = offHeapIndex; }
+
+    /**
+     * @return  number of hash partitions the key space is split into, fixed
+     *          once the storage directory has been created
+     */
+    public int getPartitions() { return this.partitions; }
+
+    public void setPartitions(int partitions) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("There must be at least one partition");
+        }
+        this.partitions = partitions;
+    }
+
+    /**
+     * @return  true if values of at least the compression threshold are
+     *          stored deflated
+     */
+    public boolean isCompressed() { return this.compressed; }
+
+    public void setCompressed(boolean compressed) { this.compressed = compressed; }
+
+    /**
+     * @return  size in bytes from which on values are compressed
+     */
+    public int getCompressionThreshold() { return this.compressionThreshold; }
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < 0) {
+            throw new IllegalArgumentException("Compression threshold must not be negative");
+        }
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * @return  RECOVERY_SCAN to rebuild the index of a LogStorage from all
+     *          segments in parallel after a crash, RECOVERY_JOURNAL to
+     *          replay the index journal instead
+     */
+    public String getRecovery() { return this.recovery; }
+
+    public void setRecovery(String recovery) {
+        if (!recovery.equals(RECOVERY_SCAN) && !recovery.equals(RECOVERY_JOURNAL)) {
+            throw new IllegalArgumentException("Unknown recovery mode " + recovery);
+        }
+        this.recovery = recovery;
+    }
+
+    /**
+     * @return  true if a LogStorage keeps its keys in a sorted set for range
+     *          scans, which costs about 100 bytes of heap plus twice the key
+     *          length per key; otherwise every scan walks the whole index
+     */
+    public boolean isSortedKeys() { return this.sortedKeys; }
+
+    public void setSortedKeys(boolean sortedKeys) { this.sortedKeys = sortedKeys; }
+
+    /**
+     * @return  true if a LogStorage verifies the checksum of a record before
+     *          it sends the value straight from the file, which reads the
+     *          record an extra time through the heap; otherwise those values
+     *          were last verified when recovery or compaction read them
+     */
+    public boolean isVerifiedTransfers() { return this.verifiedTransfers; }
+
+    public void setVerifiedTransfers(boolean verifiedTransfers) { this.verifiedTransfers = verifiedTransfers; }
+}
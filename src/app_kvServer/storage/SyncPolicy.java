@@ -0,0 +1,10 @@
+package app_kvServer.storage;
+
+/**
+ * When a write to the log is forced to disk before it is acknowledged.
+ */
+public enum SyncPolicy {
+    ALWAYS,     /* fsync after every write */
+    GROUP,      /* concurrent writers share one fsync */
+    NONE        /* leave flushing to the operating system */
+}
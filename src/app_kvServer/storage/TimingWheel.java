@@ -0,0 +1,168 @@
+package app_kvServer.storage;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel that hands keys to a handler once their
+ * deadline has passed, so expired keys are reclaimed without ever scanning
+ * the index.
+ *
+ * The wheel advances one slot per tick. Level 0 has a slot for each of the
+ * next SLOTS ticks; every further level has SLOTS slots that each cover a
+ * whole turn of the level below. A key is filed on the lowest level whose
+ * range reaches its deadline, so scheduling and expiring cost O(1)
+ * regardless of how many keys are waiting. Whenever a level completes a
+ * turn, the next slot of the level above is cascaded down and its keys
+ * are filed again, now closer to their deadline. Deadlines beyond the
+ * range of the top level wait in its last slot and are filed again when
+ * it comes round.
+ *
+ * Timers cannot be cancelled. A key that was overwritten or deleted before
+ * its deadline still fires, and the handler checks whether the deadline
+ * it was scheduled with is still the key's current one.
+ */
+class TimingWheel implements Runnable {
+
+    private static Logger logger = Logger.getRootLogger();
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    /**
+     * Receives the keys whose deadline passed.
+     */
+    interface Handler {
+        void expired(byte[] key, long deadline);
+    }
+
+    private final Handler handler;
+    private final long tickMillis;
+    /* slots[level][slot], each a list of timers */
+    private final List<List<Timer>> slots = new ArrayList<List<Timer>>();
+    /* ticks processed so far, counted from the epoch */
+    private long currentTick;
+    private int pending = 0;
+    private boolean running = true;
+
+    TimingWheel(Handler handler, long tickMillis) {
+        this.handler = handler;
+        this.tickMillis = tickMillis;
+        this.currentTick = System.currentTimeMillis() / tickMillis;
+        for (int i = 0; i < LEVELS * SLOTS; i++) {
+            slots.add(new ArrayList<Timer>());
+        }
+    }
+
+    /**
+     * Hand the key to the handler once the deadline has passed.
+     * @param deadline time in milliseconds since the epoch
+     */
+    synchronized void schedule(byte[] key, long deadline) {
+        file(new Timer(key, deadline));
+        pending++;
+    }
+
+    /**
+     * @return  number of keys waiting for their deadline
+     */
+    synchronized int size() {
+        return pending;
+    }
+
+    synchronized void stop() {
+        running = false;
+        notifyAll();
+    }
+
+    public void run() {
+        try {
+            List<Timer> due;
+            while ((due = await()) != null) {
+                for (Timer timer : due) {
+                    try {
+                        handler.expired(timer.key, timer.deadline);
+                    } catch (Exception e) {
+                        logger.error("Error expiring key " + new String(timer.key, LogStorage.CHARSET)
+                                + "! " + e.getMessage());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.info("Timing wheel interrupted.");
+        }
+    }
+
+    /* waits for the next tick and returns the timers that are due, or null once stopped */
+    private synchronized List<Timer> await() throws InterruptedException {
+        long now;
+        while (running && (now = System.currentTimeMillis()) / tickMillis < currentTick) {
+            wait(tickMillis - now % tickMillis);
+        }
+        if (!running) {
+            return null;
+        }
+        return advance(System.currentTimeMillis() / tickMillis);
+    }
+
+    /* processes every tick up to the given one and collects the due timers */
+    private List<Timer> advance(long tick) {
+        List<Timer> due = new ArrayList<Timer>();
+        while (currentTick <= tick) {
+            int index = (int) (currentTick & MASK);
+            /* a completed turn of one level cascades the next slot of the one above */
+            for (int level = 1; index == 0 && level < LEVELS; level++) {
+                index = (int) ((currentTick >>> (level * SLOT_BITS)) & MASK);
+                List<Timer> cascaded = slot(level, index);
+                slots.set(level * SLOTS + index, new ArrayList<Timer>());
+                for (Timer timer : cascaded) {
+                    file(timer);
+                }
+            }
+            List<Timer> expired = slot(0, (int) (currentTick & MASK));
+            slots.set((int) (currentTick & MASK), new ArrayList<Timer>());
+            due.addAll(expired);
+            pending -= expired.size();
+            currentTick++;
+        }
+        return due;
+    }
+
+    /* puts the timer into the slot of the lowest level that reaches its deadline */
+    private void file(Timer timer) {
+        long tick = Math.max(ceilDiv(timer.deadline, tickMillis), currentTick);
+        long ticks = tick - currentTick;
+        for (int level = 0; level < LEVELS; level++) {
+            if (ticks < 1L << ((level + 1) * SLOT_BITS)) {
+                slot(level, (int) ((tick >>> (level * SLOT_BITS)) & MASK)).add(timer);
+                return;
+            }
+        }
+        /* beyond the top level, wait in the slot that comes round last */
+        int top = LEVELS - 1;
+        long last = currentTick + (1L << (LEVELS * SLOT_BITS)) - 1;
+        slot(top, (int) ((last >>> (top * SLOT_BITS)) & MASK)).add(timer);
+    }
+
+    private List<Timer> slot(int level, int index) {
+        return slots.get(level * SLOTS + index);
+    }
+
+    private static long ceilDiv(long a, long b) {
+        return (a + b - 1) / b;
+    }
+
+    private static class Timer {
+        final byte[] key;
+        final long deadline;
+
+        Timer(byte[] key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+}
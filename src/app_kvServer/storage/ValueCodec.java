@@ -0,0 +1,88 @@
+package app_kvServer.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of record values.
+ *
+ * A compressed value is stored as its uncompressed length followed by the
+ * deflate stream, so it can be inflated into an array of the right size in
+ * one go. Every thread keeps its own Deflater and Inflater, which hold
+ * native memory and are expensive to create per record.
+ */
+class ValueCodec {
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private ValueCodec() {
+    }
+
+    /**
+     * @return  the compressed value, or null if compressing it does not
+     *          save any space
+     */
+    static byte[] compress(byte[] value) {
+        if (value.length <= 4) {
+            return null;
+        }
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(value);
+        deflater.finish();
+        /* anything that does not fit is not worth storing compressed */
+        byte[] buf = new byte[value.length];
+        ByteBuffer.wrap(buf).putInt(value.length);
+        int length = 4;
+        while (!deflater.finished() && length < buf.length) {
+            length += deflater.deflate(buf, length, buf.length - length);
+        }
+        if (!deflater.finished()) {
+            return null;
+        }
+        byte[] compressed = new byte[length];
+        System.arraycopy(buf, 0, compressed, 0, length);
+        return compressed;
+    }
+
+    /**
+     * Inflate a value stored by compress().
+     */
+    static byte[] decompress(byte[] src, int offset, int length) throws IOException {
+        if (length < 4) {
+            throw new IOException("Compressed value is truncated!");
+        }
+        byte[] value = new byte[ByteBuffer.wrap(src, offset, 4).getInt()];
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(src, offset + 4, length - 4);
+        try {
+            int n = 0;
+            while (n < value.length) {
+                int inflated = inflater.inflate(value, n, value.length - n);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Compressed value is truncated!");
+                }
+                n += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed value is corrupt! " + e.getMessage());
+        }
+        return value;
+    }
+}
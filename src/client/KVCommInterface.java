@@ -1,5 +1,9 @@
 package client;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
 import shared.messages.KVMessage;
 
 public interface KVCommInterface {
@@ -42,4 +46,91 @@ public interface KVCommInterface {
 	 *             KV server).
 	 */
 	public KVMessage get(String key) throws Exception;
+
+	/**
+	 * Inserts a key-value pair whose value is arbitrary bytes, e.g. a
+	 * serialized object, into the KVServer. The bytes are stored and
+	 * returned unchanged.
+	 *
+	 * @param key
+	 *            the key that identifies the given value.
+	 * @param value
+	 *            the value that is indexed by the given key.
+	 * @return a message that confirms the insertion of the tuple or an error.
+	 * @throws Exception
+	 *             if put command cannot be executed (e.g. not connected to any
+	 *             KV server).
+	 */
+	public KVMessage put(String key, byte[] value) throws Exception;
+
+	/**
+	 * Retrieves the value for a given key from the KVServer as bytes.
+	 *
+	 * @param key
+	 *            the key that identifies the value.
+	 * @return the bytes of the value, null if the key was not found or the
+	 *             server reported an error.
+	 * @throws Exception
+	 *             if get command cannot be executed (e.g. not connected to any
+	 *             KV server).
+	 */
+	public byte[] getBytes(String key) throws Exception;
+
+	/**
+	 * Sends a put() without waiting for the response, so that several
+	 * requests can be on their way to the server at once.
+	 *
+	 * @return the response once it arrives.
+	 * @throws Exception
+	 *             if the request cannot be sent (e.g. not connected to any
+	 *             KV server).
+	 */
+	public Future<KVMessage> putAsync(String key, String value) throws Exception;
+
+	/**
+	 * Sends a put() of a value of arbitrary bytes without waiting for the
+	 * response.
+	 *
+	 * @return the response once it arrives.
+	 * @throws Exception
+	 *             if the request cannot be sent (e.g. not connected to any
+	 *             KV server).
+	 */
+	public Future<KVMessage> putAsync(String key, byte[] value) throws Exception;
+
+	/**
+	 * Sends a get() without waiting for the response.
+	 *
+	 * @return the response once it arrives.
+	 * @throws Exception
+	 *             if the request cannot be sent (e.g. not connected to any
+	 *             KV server).
+	 */
+	public Future<KVMessage> getAsync(String key) throws Exception;
+
+	/**
+	 * Retrieves the values of several keys with a single request.
+	 *
+	 * @param keys
+	 *            the keys that identify the values.
+	 * @return the tuples found by key, in the order the keys were given,
+	 *             keys that were not found are left out.
+	 * @throws Exception
+	 *             if the request cannot be executed (e.g. not connected to
+	 *             any KV server or the server reported an error).
+	 */
+	public Map<String, KVMessage> mget(List<String> keys) throws Exception;
+
+	/**
+	 * Inserts, updates or, for an empty value, deletes several key-value
+	 * pairs with a single request, all written before the server replies.
+	 *
+	 * @param entries
+	 *            the values by the keys that identify them.
+	 * @return a message that confirms the insertion of the tuples or an error.
+	 * @throws Exception
+	 *             if the request cannot be executed (e.g. not connected to
+	 *             any KV server).
+	 */
+	public KVMessage mput(Map<String, String> entries) throws Exception;
 }
@@ -2,8 +2,18 @@ package client;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.apache.log4j.Logger;
+import shared.messages.BatchCodec;
+import shared.messages.BinaryProtocol;
 import shared.messages.KVMessage;
 import shared.messages.Message;
 import shared.messages.KVMessage.StatusType;
@@ -14,13 +24,29 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.Level;
 import logger.LogSetup;
 
+/**
+ * Client of a KVServer over one connection. Requests may be sent from
+ * several threads and without waiting for the responses: a reader thread
+ * hands every frame to the request it answers, matched by the request ID
+ * the binary protocol echoes, or by order on a text connection, which the
+ * server answers in order.
+ */
 public class KVStore extends Thread implements KVCommInterface {
 	private static Logger logger = Logger.getRootLogger();
+	private static final Charset UTF8 = Charset.forName("UTF-8");
 	private String KVServerAddress;
 	private int KVServerPort;
-	private MessengerModule msgModule;
+	private volatile MessengerModule msgModule;
 	private Socket clientSocket;
-	private boolean running;
+	private volatile boolean running;
+	/* negotiate the binary protocol on connect instead of speaking text */
+	private boolean binary;
+	/* held while a request is registered and written, so requests go out in
+	   the order they are registered in */
+	private final Object sendLock = new Object();
+	/* requests sent and not answered yet by request ID, in the order sent */
+	private final Map<Integer, PendingRequest<?>> pending = new LinkedHashMap<Integer, PendingRequest<?>>();
+	private int lastRequestId = 0;
 
 	HashSet<IClientSocketListener> listeners;
 
@@ -30,54 +56,124 @@ public class KVStore extends Thread implements KVCommInterface {
 	 * @param port the port of the KVServer
 	 */
 	public KVStore(String address, int port) {
+		this(address, port, true);
+	}
+
+	/**
+	 * Initialize KVStore with address and port of KVServer
+	 * @param address the address of the KVServer
+	 * @param port the port of the KVServer
+	 * @param binary true to speak the binary protocol, false to speak the
+	 * 		text protocol, e.g. to show the frames to a user
+	 */
+	public KVStore(String address, int port, boolean binary) {
 		// set the address and port
 		this.KVServerAddress = address;
 		this.KVServerPort = port;
+		this.binary = binary;
 		listeners = new HashSet<IClientSocketListener>();
 	}
 
-	/* creates a socket and connects it to the server */
+	/* creates a socket and connects it to the server, agreeing on the
+	 * version of the binary protocol if it is to be spoken
+	 */
 	@Override
 	public void connect() throws Exception {
 		clientSocket = new Socket(this.KVServerAddress, this.KVServerPort);
 		this.msgModule = new MessengerModule(clientSocket);
+		if (binary) {
+			this.msgModule.setVersion(BinaryProtocol.VERSION);
+			this.msgModule.sendMessage(BinaryProtocol.hello(BinaryProtocol.VERSION));
+			Message reply = this.msgModule.receiveMessage();
+			if (reply.getStatus() != StatusType.HELLO) {
+				tearDownConnection();
+				throw new IOException("Protocol negotiation failed: " + reply.getMsg());
+			}
+			this.msgModule.setVersion((int) reply.getOption());
+		}
 		setRunning(true);
+		Thread reader = new Thread(this, "kvstore-reader");
+		reader.setDaemon(true);
+		reader.start();
 		logger.info("Connection established");
 	}
+
+	/**
+	 * @return version of the binary protocol spoken, 0 for text
+	 */
+	public int getProtocolVersion() {
+		return msgModule == null ? 0 : msgModule.getVersion();
+	}
 	/**
-	 * Initializes and starts the client connection.
+	 * Reads the responses of the connection, started by connect().
 	 * Loops until the connection is closed or aborted by the client.
+	 * Frames that answer no request go to the listeners.
 	 */
 	public void run() {
+		MessengerModule messenger = this.msgModule;
 		try {
-			while(isRunning()) {
+			while(isRunning() && messenger == this.msgModule) {
 				try {
-					KVMessage latestMsg = this.msgModule.receiveMessage();
+					Message latestMsg = messenger.receiveMessage();
+					if (complete(latestMsg)) {
+						continue;
+					}
 					for(IClientSocketListener listener : listeners) {
 						listener.handleNewMessage(latestMsg);
 					}
 				} catch (IOException ioe) {
-					if(isRunning()) {
-						logger.error("Connection lost!");
-						try {
-							tearDownConnection();
-							for(IClientSocketListener listener : listeners) {
-								listener.handleStatus(
-										SocketStatus.CONNECTION_LOST);
-							}
-						} catch (IOException e) {
-							logger.error("Unable to close connection!");
-						}
-					}
+					lost(messenger);
+				} catch (IllegalArgumentException iae) {
+					logger.error("Received malformed frame!", iae);
+					lost(messenger);
 				}
 			}
 		} finally {
-			if(isRunning()) {
+			if(isRunning() && messenger == this.msgModule) {
 				disconnect();
 			}
 		}
 	}
 
+	/* hands the frame to the request it answers, false if it answers none */
+	private boolean complete(Message msg) {
+		Integer requestId = null;
+		PendingRequest<?> request;
+		synchronized (pending) {
+			if (getProtocolVersion() >= 2) {
+				requestId = msg.getRequestId();
+			} else if (!pending.isEmpty()) {
+				requestId = pending.keySet().iterator().next();
+			}
+			request = pending.get(requestId);
+		}
+		if (request == null) {
+			return false;
+		}
+		if (request.receive(msg)) {
+			synchronized (pending) {
+				pending.remove(requestId);
+			}
+		}
+		return true;
+	}
+
+	/* tears down the connection the messenger belongs to unless it was closed already */
+	private void lost(MessengerModule messenger) {
+		if(isRunning() && messenger == this.msgModule) {
+			logger.error("Connection lost!");
+			try {
+				tearDownConnection();
+				for(IClientSocketListener listener : listeners) {
+					listener.handleStatus(
+							SocketStatus.CONNECTION_LOST);
+				}
+			} catch (IOException e) {
+				logger.error("Unable to close connection!");
+			}
+		}
+	}
+
 	@Override
 	public void disconnect() {
 		logger.info("try to close connection ...");
@@ -95,10 +191,26 @@ public class KVStore extends Thread implements KVCommInterface {
 	private void tearDownConnection() throws IOException {
 		setRunning(false);
 		logger.info("tearing down the connection ...");
-		if (clientSocket != null) {
-			clientSocket.close();
-			clientSocket = null;
-			logger.info("connection closed!");
+		try {
+			if (clientSocket != null) {
+				clientSocket.close();
+				clientSocket = null;
+				logger.info("connection closed!");
+			}
+		} finally {
+			failPending(new IOException("Connection closed before the response arrived!"));
+		}
+	}
+
+	/* completes the requests still waiting for a response with the error */
+	private void failPending(IOException e) {
+		List<PendingRequest<?>> failed;
+		synchronized (pending) {
+			failed = new ArrayList<PendingRequest<?>>(pending.values());
+			pending.clear();
+		}
+		for (PendingRequest<?> request : failed) {
+			request.fail(e);
 		}
 	}
 
@@ -110,20 +222,239 @@ public class KVStore extends Thread implements KVCommInterface {
 		running = run;
 	}
 
+	/* sends an empty MGET, which the server answers without reading its
+	 * storage, and waits up to timeout ms for the answer; false if the
+	 * connection was lost or stays silent, e.g. because it is half-open
+	 */
+	public boolean isAlive(long timeout) {
+		if (!isRunning()) {
+			return false;
+		}
+		try {
+			send(new Message("", "", StatusType.MGET)).get(timeout, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
 	public void addListener(IClientSocketListener listener){
 		listeners.add(listener);
 	}
 
+	/* registers the request under a new ID and sends it, the reader
+	 * thread completes it once the response arrives
+	 */
+	private <V> Future<V> send(Message msg, PendingRequest<V> request) throws IOException {
+		synchronized (sendLock) {
+			if (!isRunning()) {
+				throw new IOException("Not connected!");
+			}
+			if (getProtocolVersion() == 0 && !msg.fitsTextFrame()) {
+				throw new IllegalArgumentException("Value of key " + msg.getKey()
+						+ " is not text, it needs the binary protocol!");
+			}
+			int requestId;
+			synchronized (pending) {
+				if (++lastRequestId == 0) {
+					lastRequestId = 1;
+				}
+				requestId = lastRequestId;
+				pending.put(requestId, request);
+			}
+			msg.setRequestId(requestId);
+			try {
+				msgModule.sendMessage(msg);
+			} catch (IOException e) {
+				synchronized (pending) {
+					pending.remove(requestId);
+				}
+				throw e;
+			}
+		}
+		return request;
+	}
+
+	private Future<KVMessage> send(Message msg) throws IOException {
+		return send(msg, new PendingRequest<KVMessage>() {
+			protected KVMessage result(List<KVMessage> entries, KVMessage response) {
+				return response;
+			}
+		});
+	}
+
+	/* waits for the response, throwing what kept it from arriving */
+	private static <V> V await(Future<V> response) throws Exception {
+		try {
+			return response.get();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+	}
+
 	/* check if key and value are valid
 	 * constructs a message following the protocol key, value, statusType
 	 * uses sendMessage() from MessengerModule to send the msg
 	 */
 	@Override
 	public KVMessage put(String key, String value) throws Exception {
-		Message msg = new Message(key, value, StatusType.PUT);
-		msgModule.sendMessage(msg);
-		Message receiveMsg = msgModule.receiveMessage();
-		return receiveMsg;
+		return await(putAsync(key, value));
+	}
+
+	/* like put(), but returns once the request is sent */
+	@Override
+	public Future<KVMessage> putAsync(String key, String value) throws Exception {
+		return send(new Message(key, value, StatusType.PUT));
+	}
+
+	/* like put(), but the server drops the tuple once ttl seconds
+	 * have passed
+	 */
+	public KVMessage put(String key, String value, long ttl) throws Exception {
+		return await(putAsync(key, value, ttl));
+	}
+
+	public Future<KVMessage> putAsync(String key, String value, long ttl) throws Exception {
+		return send(new Message(key, value, StatusType.PUT, ttl));
+	}
+
+	/* like put(), but the value is sent as it is; on a text connection
+	 * it has to be UTF-8 text without control characters
+	 */
+	@Override
+	public KVMessage put(String key, byte[] value) throws Exception {
+		return put(key, value, 0);
+	}
+
+	@Override
+	public Future<KVMessage> putAsync(String key, byte[] value) throws Exception {
+		return putAsync(key, value, 0);
+	}
+
+	/* binary put() that expires after ttl seconds */
+	public KVMessage put(String key, byte[] value, long ttl) throws Exception {
+		return await(putAsync(key, value, ttl));
+	}
+
+	public Future<KVMessage> putAsync(String key, byte[] value, long ttl) throws Exception {
+		return send(new Message(key, value, StatusType.PUT, ttl));
+	}
+
+	/* gets up to limit tuples with keys in [from, to) in key order, to null
+	 * for no end and limit 0 for the server's default. The server streams
+	 * the tuples one frame each and closes the page with a frame naming
+	 * the key to continue from.
+	 */
+	public ScanPage scan(String from, String to, int limit) throws Exception {
+		return await(scanAsync(from, to, limit));
+	}
+
+	public Future<ScanPage> scanAsync(String from, String to, int limit) throws Exception {
+		Message msg = new Message(from, to == null ? "" : to, StatusType.SCAN, limit);
+		return send(msg, new PendingRequest<ScanPage>() {
+			protected ScanPage result(List<KVMessage> entries, KVMessage response) {
+				return new ScanPage(entries, response);
+			}
+		});
+	}
+
+	/* gets the tuples of several keys with one request, streamed like the
+	 * tuples of a SCAN; keys not found are left out
+	 */
+	@Override
+	public Map<String, KVMessage> mget(List<String> keys) throws Exception {
+		return await(mgetAsync(keys));
+	}
+
+	public Future<Map<String, KVMessage>> mgetAsync(List<String> keys) throws Exception {
+		if (getProtocolVersion() == 0 && !keys.isEmpty()) {
+			return mgetText(keys);
+		}
+		Message msg = new Message("", BatchCodec.encodeKeys(keys), StatusType.MGET);
+		return send(msg, new PendingRequest<Map<String, KVMessage>>() {
+			protected Map<String, KVMessage> result(List<KVMessage> entries, KVMessage response)
+					throws IOException {
+				if (response.getStatus() != StatusType.MGET_SUCCESS) {
+					throw new IOException(response.getStatus() + ": " + response.getValue());
+				}
+				Map<String, KVMessage> tuples = new LinkedHashMap<String, KVMessage>();
+				for (KVMessage entry : entries) {
+					tuples.put(entry.getKey(), entry);
+				}
+				return tuples;
+			}
+		});
+	}
+
+	/* a text frame cannot carry the batch, so every key gets a GET of its
+	 * own; the responses arrive in order, so the last one completes the batch
+	 */
+	private Future<Map<String, KVMessage>> mgetText(List<String> keys) throws Exception {
+		final Map<String, KVMessage> tuples = new LinkedHashMap<String, KVMessage>();
+		Future<Map<String, KVMessage>> batch = null;
+		for (String key : keys) {
+			batch = send(new Message(key, "", StatusType.GET), new PendingRequest<Map<String, KVMessage>>() {
+				protected Map<String, KVMessage> result(List<KVMessage> entries, KVMessage response) {
+					if (response.getStatus() == StatusType.GET_SUCCESS) {
+						tuples.put(response.getKey(), response);
+					}
+					return tuples;
+				}
+			});
+		}
+		return batch;
+	}
+
+	/* puts several tuples with one request, which the server writes to
+	 * storage at once; an empty value deletes its key. The batch is not
+	 * text, so it needs the binary protocol.
+	 */
+	@Override
+	public KVMessage mput(Map<String, String> entries) throws Exception {
+		return await(mputAsync(entries, 0));
+	}
+
+	/* mput() of tuples that expire after ttl seconds */
+	public KVMessage mput(Map<String, String> entries, long ttl) throws Exception {
+		return await(mputAsync(entries, ttl));
+	}
+
+	public Future<KVMessage> mputAsync(Map<String, String> entries, long ttl) throws Exception {
+		Map<String, byte[]> values = new LinkedHashMap<String, byte[]>();
+		for (Map.Entry<String, String> entry : entries.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().getBytes(UTF8));
+		}
+		return send(new Message("", BatchCodec.encodeEntries(values), StatusType.MPUT, ttl));
+	}
+
+	/* gets up to limit tuples whose keys start with prefix, the next page
+	 * is scan(continuation, prefixEnd(prefix), limit)
+	 */
+	public ScanPage scanPrefix(String prefix, int limit) throws Exception {
+		return scan(prefix, prefixEnd(prefix), limit);
+	}
+
+	/* smallest key above all keys starting with prefix, null if there is
+	 * none; the server orders keys by their UTF-16 chars, so this is the
+	 * prefix with its last char below '\uFFFF' incremented
+	 */
+	public static String prefixEnd(String prefix) {
+		StringBuilder end = new StringBuilder(prefix);
+		while (end.length() > 0 && end.charAt(end.length() - 1) == Character.MAX_VALUE) {
+			end.setLength(end.length() - 1);
+		}
+		if (end.length() == 0) {
+			return null;
+		}
+		end.setCharAt(end.length() - 1, (char) (end.charAt(end.length() - 1) + 1));
+		return end.toString();
+	}
+
+	/* asks the server to write a snapshot of its storage under the given
+	 * name, returns once the snapshot is complete
+	 */
+	public KVMessage snapshot(String name) throws Exception {
+		return await(send(new Message(name, "", StatusType.SNAPSHOT)));
 	}
 
 	/* check if key and value are valid
@@ -132,9 +463,24 @@ public class KVStore extends Thread implements KVCommInterface {
 	 */
 	@Override
 	public KVMessage get(String key) throws Exception {
-		Message msg = new Message(key, "", StatusType.GET);
-		msgModule.sendMessage(msg);
-		Message receiveMsg = msgModule.receiveMessage();
-		return receiveMsg;
+		return await(getAsync(key));
+	}
+
+	/* like get(), but returns once the request is sent */
+	@Override
+	public Future<KVMessage> getAsync(String key) throws Exception {
+		return send(new Message(key, "", StatusType.GET));
+	}
+
+	/* get() that returns the value as the bytes it was put with, null if
+	 * the server answered with an error
+	 */
+	@Override
+	public byte[] getBytes(String key) throws Exception {
+		KVMessage receiveMsg = get(key);
+		if (receiveMsg.getStatus() != StatusType.GET_SUCCESS) {
+			return null;
+		}
+		return receiveMsg.getValueBytes();
 	}
 }
@@ -0,0 +1,342 @@
+package client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import shared.messages.KVMessage;
+
+/**
+ * A fixed number of connections to one KVServer, shared by any number of
+ * threads. Every request checks a connection out and returns it once the
+ * response arrived, or once it is sent for the async methods, so requests
+ * of different threads run on different connections in parallel.
+ *
+ * A connection that was lost, i.e. whose KVStore went through the
+ * CONNECTION_LOST path and stopped running, is replaced by a new one when
+ * it is checked out. A half-open connection, whose peer went away without
+ * the socket noticing, still looks like it runs, so a connection that was
+ * idle for longer than PROBE_IDLE_TIME is probed with a request first and
+ * replaced if the answer does not arrive within PROBE_TIMEOUT. A health
+ * check probes the idle connections periodically and replaces those that
+ * do not answer, so requests after an outage do not wait for the
+ * reconnects.
+ */
+public class KVStorePool implements KVCommInterface {
+
+	private static Logger logger = Logger.getRootLogger();
+
+	/* time a request waits for a free connection */
+	public static final long DEFAULT_CHECKOUT_TIMEOUT = 5000;
+	/* time between health checks of the idle connections */
+	public static final long DEFAULT_HEALTH_CHECK_INTERVAL = 10000;
+	/* connections idle for longer are probed before they are checked out */
+	public static final long PROBE_IDLE_TIME = 1000;
+	/* time a probed connection has to answer */
+	public static final long PROBE_TIMEOUT = 1000;
+
+	private final String address;
+	private final int port;
+	private final int size;
+	private final long checkoutTimeout;
+	private final long healthCheckInterval;
+	private final BlockingQueue<KVStore> idle = new LinkedBlockingQueue<KVStore>();
+	/* when each connection was last released or opened */
+	private final Map<KVStore, Long> lastUsed = new ConcurrentHashMap<KVStore, Long>();
+	/* guarded by this, like the idle connections while closing */
+	private boolean open = false;
+	private ScheduledExecutorService healthCheck;
+
+	/**
+	 * @param address the address of the KVServer
+	 * @param port the port of the KVServer
+	 * @param size number of connections
+	 */
+	public KVStorePool(String address, int port, int size) {
+		this(address, port, size, DEFAULT_CHECKOUT_TIMEOUT, DEFAULT_HEALTH_CHECK_INTERVAL);
+	}
+
+	/**
+	 * @param address the address of the KVServer
+	 * @param port the port of the KVServer
+	 * @param size number of connections
+	 * @param checkoutTimeout milliseconds a request waits for a free
+	 * 		connection before it fails
+	 * @param healthCheckInterval milliseconds between health checks of
+	 * 		the idle connections
+	 */
+	public KVStorePool(String address, int port, int size, long checkoutTimeout, long healthCheckInterval) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Pool needs at least one connection");
+		}
+		this.address = address;
+		this.port = port;
+		this.size = size;
+		this.checkoutTimeout = checkoutTimeout;
+		this.healthCheckInterval = healthCheckInterval;
+	}
+
+	/* opens all connections, fails without any open if one cannot be opened */
+	@Override
+	public synchronized void connect() throws Exception {
+		if (open) {
+			return;
+		}
+		List<KVStore> stores = new ArrayList<KVStore>();
+		try {
+			for (int i = 0; i < size; i++) {
+				KVStore store = new KVStore(address, port);
+				store.connect();
+				stores.add(store);
+			}
+		} catch (Exception e) {
+			for (KVStore store : stores) {
+				store.disconnect();
+			}
+			throw e;
+		}
+		for (KVStore store : stores) {
+			lastUsed.put(store, System.currentTimeMillis());
+		}
+		idle.addAll(stores);
+		open = true;
+		healthCheck = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "kvstore-pool-health");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		healthCheck.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				checkHealth();
+			}
+		}, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+		logger.info("Opened " + size + " connections to " + address + ":" + port);
+	}
+
+	/* closes the idle connections now and the checked out ones when they are returned */
+	@Override
+	public void disconnect() {
+		List<KVStore> stores = new ArrayList<KVStore>();
+		synchronized (this) {
+			if (!open) {
+				return;
+			}
+			open = false;
+			healthCheck.shutdownNow();
+			idle.drainTo(stores);
+			lastUsed.clear();
+		}
+		for (KVStore store : stores) {
+			store.disconnect();
+		}
+	}
+
+	/**
+	 * Take a connection for the calling thread alone, which it has to hand
+	 * back with release().
+	 * @throws IOException if the pool is closed, no connection became
+	 * 		free in time or a lost connection could not be replaced
+	 */
+	public KVStore checkout() throws IOException {
+		synchronized (this) {
+			if (!open) {
+				throw new IOException("Not connected!");
+			}
+		}
+		KVStore store;
+		try {
+			store = idle.poll(checkoutTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a connection!");
+		}
+		if (store == null) {
+			throw new IOException("No connection free after " + checkoutTimeout + " ms!");
+		}
+		Long released = lastUsed.get(store);
+		boolean probe = released == null || System.currentTimeMillis() - released > PROBE_IDLE_TIME;
+		if (!store.isRunning() || probe && !store.isAlive(PROBE_TIMEOUT)) {
+			try {
+				store = replace(store);
+			} catch (IOException e) {
+				/* keep the pool at its size, the next checkout tries again */
+				release(store);
+				throw e;
+			}
+		}
+		return store;
+	}
+
+	/**
+	 * Hand back a connection taken with checkout().
+	 */
+	public void release(KVStore store) {
+		synchronized (this) {
+			if (open) {
+				lastUsed.put(store, System.currentTimeMillis());
+				idle.offer(store);
+				return;
+			}
+		}
+		store.disconnect();
+	}
+
+	/* closes a lost or silent connection and opens one in its place, the
+	 * old one stays closed if no new one can be opened
+	 */
+	private KVStore replace(KVStore lost) throws IOException {
+		lost.disconnect();
+		lastUsed.remove(lost);
+		KVStore store = new KVStore(address, port);
+		try {
+			store.connect();
+		} catch (Exception e) {
+			throw new IOException("Unable to replace lost connection to " + address + ":" + port + "!", e);
+		}
+		logger.info("Replaced lost connection to " + address + ":" + port);
+		return store;
+	}
+
+	/* probes the idle connections and replaces those that do not answer,
+	 * called by the health check thread
+	 */
+	private void checkHealth() {
+		for (KVStore store : new ArrayList<KVStore>(idle)) {
+			/* taken out while probed, so no request gets it meanwhile */
+			if (!idle.remove(store)) {
+				continue;
+			}
+			if (!store.isAlive(PROBE_TIMEOUT)) {
+				try {
+					store = replace(store);
+				} catch (IOException e) {
+					logger.error(e.getMessage());
+				}
+			}
+			release(store);
+		}
+	}
+
+	@Override
+	public KVMessage put(String key, String value) throws Exception {
+		KVStore store = checkout();
+		try {
+			return store.put(key, value);
+		} finally {
+			release(store);
+		}
+	}
+
+	@Override
+	public KVMessage put(String key, byte[] value) throws Exception {
+		KVStore store = checkout();
+		try {
+			return store.put(key, value);
+		} finally {
+			release(store);
+		}
+	}
+
+	@Override
+	public KVMessage get(String key) throws Exception {
+		KVStore store = checkout();
+		try {
+			return store.get(key);
+		} finally {
+			release(store);
+		}
+	}
+
+	@Override
+	public byte[] getBytes(String key) throws Exception {
+		KVStore store = checkout();
+		try {
+			return store.getBytes(key);
+		} finally {
+			release(store);
+		}
+	}
+
+	/* the async methods only hold the connection while the request is
+	 * sent, the response completes the future on the connection's reader
+	 */
+	@Override
+	public Future<KVMessage> putAsync(String key, String value) throws Exception {
+		KVStore store = checkout();
+		try {
+			return store.putAsync(key, value);
+		} finally {
+			release(store);
+		}
+	}
+
+	@Override
+	public Future<KVMessage> putAsync(String key, byte[] value) throws Exception {
+		KVStore store = checkout();
+		try {
+			return store.putAsync(key, value);
+		} finally {
+			release(store);
+		}
+	}
+
+	@Override
+	public Future<KVMessage> getAsync(String key) throws Exception {
+		KVStore store = checkout();
+		try {
+			return store.getAsync(key);
+		} finally {
+			release(store);
+		}
+	}
+
+	@Override
+	public Map<String, KVMessage> mget(List<String> keys) throws Exception {
+		KVStore store = checkout();
+		try {
+			return store.mget(keys);
+		} finally {
+			release(store);
+		}
+	}
+
+	@Override
+	public KVMessage mput(Map<String, String> entries) throws Exception {
+		KVStore store = checkout();
+		try {
+			return store.mput(entries);
+		} finally {
+			release(store);
+		}
+	}
+
+	/* like KVStore.scan() */
+	public ScanPage scan(String from, String to, int limit) throws Exception {
+		KVStore store = checkout();
+		try {
+			return store.scan(from, to, limit);
+		} finally {
+			release(store);
+		}
+	}
+
+	/**
+	 * @return number of connections waiting to be checked out
+	 */
+	public int getIdleCount() {
+		return idle.size();
+	}
+}
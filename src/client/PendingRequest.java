@@ -0,0 +1,96 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+
+/**
+ * A request sent on the connection of a KVStore, completed by the thread
+ * reading the connection once the frame closing its response arrives.
+ * Requests cannot be cancelled, as they are on their way to the server.
+ */
+abstract class PendingRequest<V> implements Future<V> {
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	/* frames sent ahead of the response, the tuples of a SCAN or MGET */
+	private final List<KVMessage> entries = new ArrayList<KVMessage>();
+	private V result;
+	private Exception failure;
+
+	/**
+	 * @return the value of the request, given the frames sent ahead of
+	 * 		the response and the response itself
+	 * @throws Exception to fail the request, e.g. on an error response
+	 */
+	protected abstract V result(List<KVMessage> entries, KVMessage response) throws Exception;
+
+	/**
+	 * Take the next frame sent for the request.
+	 * @return true if the frame completed the request
+	 */
+	boolean receive(KVMessage msg) {
+		if (msg.getStatus() == StatusType.SCAN_ENTRY) {
+			entries.add(msg);
+			return false;
+		}
+		try {
+			result = result(entries, msg);
+		} catch (Exception e) {
+			failure = e;
+		}
+		done.countDown();
+		return true;
+	}
+
+	/**
+	 * Complete the request with the error that kept its response from
+	 * arriving.
+	 */
+	void fail(Exception e) {
+		failure = e;
+		done.countDown();
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	@Override
+	public V get() throws InterruptedException, ExecutionException {
+		done.await();
+		return value();
+	}
+
+	@Override
+	public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException("No response after " + timeout + " " + unit + "!");
+		}
+		return value();
+	}
+
+	private V value() throws ExecutionException {
+		if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,45 @@
+package client;
+
+import java.util.List;
+
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+
+/**
+ * One page of tuples returned by a SCAN, in key order, and where the next
+ * page starts.
+ */
+public class ScanPage {
+	private List<KVMessage> entries;
+	private KVMessage end;
+
+	public ScanPage(List<KVMessage> entries, KVMessage end) {
+		this.entries = entries;
+		this.end = end;
+	}
+
+	/**
+	 * @return the SCAN_ENTRY messages of the page, each holding one tuple.
+	 */
+	public List<KVMessage> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return the message that closed the page, SCAN_SUCCESS or SCAN_ERROR.
+	 */
+	public KVMessage getEnd() {
+		return end;
+	}
+
+	/**
+	 * @return the key to start the next page at, null if the range has
+	 * 		no more tuples or the scan failed.
+	 */
+	public String getContinuation() {
+		if (end.getStatus() != StatusType.SCAN_SUCCESS || end.getKey().isEmpty()) {
+			return null;
+		}
+		return end.getKey();
+	}
+}
@@ -0,0 +1,131 @@
+package shared.messages;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs the keys of an MGET or the tuples of an MPUT into the value of a
+ * single frame. Keys are UTF-8 prefixed by their length as a short, values
+ * are prefixed by their length as an int:
+ * <pre>
+ *   MGET   (short length, key)*
+ *   MPUT   (short length, key, int length, value)*
+ * </pre>
+ * The value holds any bytes, so it needs the binary protocol. A batch may
+ * take at most BinaryProtocol.MAX_BATCH_SIZE bytes, larger ones have to be
+ * split by the caller.
+ */
+public class BatchCodec {
+
+    private BatchCodec() {
+    }
+
+    public static byte[] encodeKeys(List<String> keys) {
+        List<byte[]> encoded = new ArrayList<byte[]>(keys.size());
+        long length = 0;
+        for (String key : keys) {
+            byte[] keyBytes = checkKey(key);
+            encoded.add(keyBytes);
+            length += 2 + keyBytes.length;
+        }
+        checkLength(length);
+        ByteBuffer out = ByteBuffer.allocate((int) length);
+        for (byte[] keyBytes : encoded) {
+            out.putShort((short) keyBytes.length);
+            out.put(keyBytes);
+        }
+        return out.array();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the bytes are not a list of keys
+     */
+    public static List<String> decodeKeys(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        List<String> keys = new ArrayList<String>();
+        try {
+            while (in.hasRemaining()) {
+                keys.add(readKey(in));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Batch of keys is truncated!");
+        }
+        return keys;
+    }
+
+    /**
+     * @param entries tuples in the order they are to be sent, an empty
+     *          value deletes its key like a PUT does
+     */
+    public static byte[] encodeEntries(Map<String, byte[]> entries) {
+        List<byte[]> keys = new ArrayList<byte[]>(entries.size());
+        long length = 0;
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            byte[] keyBytes = checkKey(entry.getKey());
+            keys.add(keyBytes);
+            length += 2 + keyBytes.length + 4 + entry.getValue().length;
+        }
+        checkLength(length);
+        ByteBuffer out = ByteBuffer.allocate((int) length);
+        int i = 0;
+        for (byte[] value : entries.values()) {
+            byte[] keyBytes = keys.get(i++);
+            out.putShort((short) keyBytes.length);
+            out.put(keyBytes);
+            out.putInt(value.length);
+            out.put(value);
+        }
+        return out.array();
+    }
+
+    /**
+     * @return the tuples in the order they were encoded, a key given twice
+     *          keeps the value given last
+     * @throws IllegalArgumentException if the bytes are not a list of tuples
+     */
+    public static Map<String, byte[]> decodeEntries(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        try {
+            while (in.hasRemaining()) {
+                String key = readKey(in);
+                int length = in.getInt();
+                if (length < 0 || length > in.remaining()) {
+                    throw new IllegalArgumentException("Value of " + length + " bytes exceeds the batch!");
+                }
+                byte[] value = new byte[length];
+                in.get(value);
+                entries.put(key, value);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Batch of tuples is truncated!");
+        }
+        return entries;
+    }
+
+    private static byte[] checkKey(String key) {
+        byte[] keyBytes = key.getBytes(Message.CHARSET);
+        if (keyBytes.length > BinaryProtocol.MAX_KEY_SIZE) {
+            throw new IllegalArgumentException("Key of " + keyBytes.length + " bytes exceeds "
+                    + BinaryProtocol.MAX_KEY_SIZE + " bytes!");
+        }
+        return keyBytes;
+    }
+
+    private static void checkLength(long length) {
+        if (length > BinaryProtocol.MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Batch of " + length + " bytes exceeds "
+                    + BinaryProtocol.MAX_BATCH_SIZE + " bytes!");
+        }
+    }
+
+    private static String readKey(ByteBuffer in) {
+        byte[] key = new byte[in.getShort() & 0xFFFF];
+        in.get(key);
+        return new String(key, Message.CHARSET);
+    }
+}
@@ -0,0 +1,229 @@
+package shared.messages;
+
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.Map;
+
+import shared.messages.KVMessage.StatusType;
+
+/**
+ * Length-prefixed binary framing, which a connection switches to by
+ * negotiation, so nothing is formatted or parsed as text per request and
+ * frames are not limited by the text protocol's DROP_SIZE.
+ *
+ * A frame is a header of headerSize(version) bytes followed by the key in UTF-8
+ * and the value:
+ * <pre>
+ *   byte   0x80 | version, the high bit tells it apart from text frames
+ *   byte   opcode of the StatusType
+ *   short  key length
+ *   int    value length
+ *   int    option: TTL of a PUT, limit of a SCAN, version of a HELLO
+ *   int    request ID, from version 2 on
+ * </pre>
+ * A client that wants binary frames sends a HELLO frame first, offering
+ * the highest version it speaks. The server answers with a HELLO naming
+ * the version both speak, and from then on both sides send binary frames
+ * of that version. A connection that starts with a text frame stays text.
+ * Until a reader received a HELLO it only takes a frame for binary if its
+ * whole header is the one of a HELLO, as text frames may start with any
+ * UTF-8 character. From then on readers tell the forms apart by the first
+ * byte of every frame, so a reply sent before negotiation completed, e.g.
+ * SERVER_BUSY, still reads.
+ *
+ * A reader buffers a whole frame before decoding it, so the lengths a
+ * header may announce are capped at what the server takes: a value of
+ * MAX_VALUE_SIZE, a little more than the 120000 bytes it stores so an
+ * oversized value still gets its error reply, and a batch of an MGET or
+ * MPUT of MAX_BATCH_SIZE. A frame announcing more is malformed.
+ *
+ * From version 2 on a client may send requests without waiting for the
+ * responses. Every frame the server sends for a request, the tuples of a
+ * SCAN included, carries the request's ID, so the client can tell which
+ * request a frame answers.
+ */
+public class BinaryProtocol {
+
+    /* highest version spoken */
+    public static final int VERSION = 2;
+    /* bytes of a header up to the lengths, which all versions share */
+    public static final int HEADER_SIZE = 12;
+    /* longest key and value accepted in a frame */
+    public static final int MAX_KEY_SIZE = 0xFFFF;
+    public static final int MAX_VALUE_SIZE = 128 * 1024;
+    /* longest value of an MGET or MPUT frame, i.e. encoded batch */
+    public static final int MAX_BATCH_SIZE = 1024 * 1024;
+
+    private static final int BINARY_FLAG = 0x80;
+
+    /* opcodes are the positions in this table, which may only be appended to */
+    private static final StatusType[] OPCODES = {
+            StatusType.HELLO,
+            StatusType.GET,
+            StatusType.GET_ERROR,
+            StatusType.GET_SUCCESS,
+            StatusType.PUT,
+            StatusType.PUT_SUCCESS,
+            StatusType.PUT_UPDATE,
+            StatusType.PUT_ERROR,
+            StatusType.DELETE_SUCCESS,
+            StatusType.DELETE_ERROR,
+            StatusType.SNAPSHOT,
+            StatusType.SNAPSHOT_SUCCESS,
+            StatusType.SNAPSHOT_ERROR,
+            StatusType.SCAN,
+            StatusType.SCAN_ENTRY,
+            StatusType.SCAN_SUCCESS,
+            StatusType.SCAN_ERROR,
+            StatusType.SERVER_BUSY,
+            StatusType.MGET,
+            StatusType.MGET_SUCCESS,
+            StatusType.MGET_ERROR,
+            StatusType.MPUT,
+            StatusType.MPUT_SUCCESS,
+            StatusType.MPUT_ERROR,
+    };
+    private static final Map<StatusType, Byte> CODES = new EnumMap<StatusType, Byte>(StatusType.class);
+
+    static {
+        for (int i = 0; i < OPCODES.length; i++) {
+            CODES.put(OPCODES[i], (byte) i);
+        }
+    }
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * @return true if a frame starting with this byte is a binary frame
+     */
+    public static boolean isBinary(byte first) {
+        return (first & BINARY_FLAG) != 0;
+    }
+
+    /**
+     * @param header at least the HEADER_SIZE bytes at the buffer's position
+     * @return true if the header is the one of a HELLO frame of a version
+     *         spoken, which is all a peer sends in binary before negotiation
+     */
+    public static boolean isHello(ByteBuffer header) {
+        int start = header.position();
+        int version = header.get(start) & ~BINARY_FLAG & 0xFF;
+        return isBinary(header.get(start)) && version >= 1 && version <= VERSION
+                && header.get(start + 1) == CODES.get(StatusType.HELLO)
+                && header.getShort(start + 2) == 0 && header.getInt(start + 4) == 0;
+    }
+
+    /**
+     * @return the version a server speaks with a client offering the given one
+     */
+    public static int negotiate(long offered) {
+        return (int) Math.max(1, Math.min(offered, VERSION));
+    }
+
+    /**
+     * @return the HELLO frame offering or accepting the version
+     */
+    public static Message hello(int version) {
+        return new Message("", "", StatusType.HELLO, version);
+    }
+
+    /**
+     * Encode the message as a frame of the given version.
+     */
+    public static byte[] encode(Message msg, int version) {
+        byte[] key = msg.getKey().getBytes(Message.CHARSET);
+        byte[] value = msg.getValueBytes();
+        if (value == null) {
+            value = new byte[0];
+        }
+        ByteBuffer frame = ByteBuffer.allocate(headerSize(version) + key.length + value.length);
+        putHeader(frame, key, value.length, msg.getStatus(), msg.getOption(), msg.getRequestId(), version);
+        frame.put(value);
+        return frame.array();
+    }
+
+    /**
+     * Bytes of a frame up to its value, for sending a value of the given
+     * length that is written separately, e.g. straight from a file.
+     */
+    public static byte[] header(String key, int valueLength, StatusType statusType, int requestId, int version) {
+        byte[] keyBytes = key.getBytes(Message.CHARSET);
+        ByteBuffer header = ByteBuffer.allocate(headerSize(version) + keyBytes.length);
+        putHeader(header, keyBytes, valueLength, statusType, 0, requestId, version);
+        return header.array();
+    }
+
+    /**
+     * @return the length of a header of the given version without the key
+     */
+    public static int headerSize(int version) {
+        return version >= 2 ? HEADER_SIZE + 4 : HEADER_SIZE;
+    }
+
+    /**
+     * @param header at least the HEADER_SIZE bytes at the buffer's position
+     * @return the length of the frame starting at the buffer's position
+     * @throws IllegalArgumentException if the header is malformed
+     */
+    public static int frameLength(ByteBuffer header) {
+        int start = header.position();
+        int version = header.get(start) & ~BINARY_FLAG & 0xFF;
+        if (!isBinary(header.get(start)) || version < 1 || version > VERSION) {
+            throw new IllegalArgumentException("Unsupported binary protocol version " + version + "!");
+        }
+        int keyLength = header.getShort(start + 2) & 0xFFFF;
+        int valueLength = header.getInt(start + 4);
+        int opcode = header.get(start + 1) & 0xFF;
+        boolean batch = opcode < OPCODES.length
+                && (OPCODES[opcode] == StatusType.MGET || OPCODES[opcode] == StatusType.MPUT);
+        int maxLength = batch ? MAX_BATCH_SIZE : MAX_VALUE_SIZE;
+        if (valueLength < 0 || valueLength > maxLength) {
+            throw new IllegalArgumentException("Binary value of " + valueLength + " bytes exceeds "
+                    + maxLength + " bytes!");
+        }
+        return headerSize(version) + keyLength + valueLength;
+    }
+
+    /**
+     * Decode the complete frame at the buffer's position and move the
+     * position past it.
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+    public static Message decode(ByteBuffer in) {
+        int length = frameLength(in);
+        if (in.remaining() < length) {
+            throw new IllegalArgumentException("Binary frame is incomplete!");
+        }
+        int version = in.get() & ~BINARY_FLAG & 0xFF;
+        int opcode = in.get() & 0xFF;
+        if (opcode >= OPCODES.length) {
+            throw new IllegalArgumentException("Unknown opcode " + opcode + "!");
+        }
+        byte[] key = new byte[in.getShort() & 0xFFFF];
+        byte[] value = new byte[in.getInt()];
+        int option = in.getInt();
+        int requestId = version >= 2 ? in.getInt() : 0;
+        in.get(key);
+        in.get(value);
+        Message msg = new Message(new String(key, Message.CHARSET), value, OPCODES[opcode], option);
+        msg.setRequestId(requestId);
+        return msg;
+    }
+
+    private static void putHeader(ByteBuffer frame, byte[] key, int valueLength, StatusType statusType,
+                                  long option, int requestId, int version) {
+        if (key.length > MAX_KEY_SIZE) {
+            throw new IllegalArgumentException("Key of " + key.length + " bytes exceeds " + MAX_KEY_SIZE + " bytes!");
+        }
+        frame.put((byte) (BINARY_FLAG | version));
+        frame.put(CODES.get(statusType));
+        frame.putShort((short) key.length);
+        frame.putInt(valueLength);
+        frame.putInt((int) Math.min(option, Integer.MAX_VALUE));
+        if (version >= 2) {
+            frame.putInt(requestId);
+        }
+        frame.put(key);
+    }
+}
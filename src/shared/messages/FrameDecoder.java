@@ -0,0 +1,169 @@
+package shared.messages;
+
+import java.nio.ByteBuffer;
+
+import shared.messages.KVMessage.StatusType;
+
+/**
+ * Splits the bytes of a connection into messages as they arrive, for
+ * readers that must not block until a frame is complete.
+ *
+ * Frames are taken apart the way MessengerModule reads them: a text frame
+ * ends at the first CR and only its characters other than ASCII control
+ * characters count, and a frame of the BinaryProtocol starts with a byte
+ * that has the high bit set. As text frames may start with such a byte
+ * too, the first frame of the BinaryProtocol taken is a HELLO recognized
+ * by its whole header, and only after it any frame starting with the high
+ * bit set is one. A decoder keeps whether it saw a HELLO and how far it
+ * searched the buffer for the end of a frame, so it belongs to a single
+ * connection.
+ */
+public class FrameDecoder {
+
+    /* longest text frame accepted, like the blocking reader's limit,
+       BinaryProtocol sets the limits of its own frames */
+    public static final int MAX_FRAME_SIZE = 128 * 1024;
+
+    private static final byte LINE_FEED = 10;
+    private static final byte RETURN = 13;
+    private static final byte DELETE = 127;
+
+    /* bytes from the buffer's position on already searched for a CR */
+    private int scanned = 0;
+    /* true once a HELLO was taken, from then on the peer may send frames
+       of the BinaryProtocol */
+    private boolean binary = false;
+
+    /**
+     * Take the next message from the buffer.
+     * @return  the message, with the buffer's position moved past its
+     *          frame, or null if the buffer ends within a frame, which is
+     *          then left in the buffer
+     * @throws IllegalArgumentException if the frame is malformed or longer
+     *          than MAX_FRAME_SIZE; the buffer's position is moved past it
+     *          if its end is known, e.g. not for a malformed header
+     */
+    public Message decode(ByteBuffer in) {
+        int start = in.position();
+        if (in.hasRemaining() && BinaryProtocol.isBinary(in.get(start))) {
+            if (binary) {
+                return binaryFrame(in);
+            }
+            if (in.remaining() >= BinaryProtocol.HEADER_SIZE) {
+                if (BinaryProtocol.isHello(in)) {
+                    return binaryFrame(in);
+                }
+            } else if (findReturn(in) < 0) {
+                /* too short yet to tell a HELLO from a text frame */
+                return null;
+            }
+        }
+        int end = findReturn(in);
+        if (end < 0) {
+            if (scanned > MAX_FRAME_SIZE) {
+                throw new IllegalArgumentException("Frame exceeds " + MAX_FRAME_SIZE + " bytes!");
+            }
+            return null;
+        }
+        /* moved past first, so a malformed frame is not taken again */
+        scanned = 0;
+        in.position(end + 1);
+        return text(in, start, end);
+    }
+
+    /**
+     * @return the length of the frame of the BinaryProtocol the buffer
+     *         starts with, 0 if it starts with a text frame or the header
+     *         is incomplete
+     * @throws IllegalArgumentException if the header is malformed
+     */
+    public int frameLength(ByteBuffer in) {
+        if (in.remaining() < BinaryProtocol.HEADER_SIZE || !BinaryProtocol.isBinary(in.get(in.position()))
+                || !binary && !BinaryProtocol.isHello(in)) {
+            return 0;
+        }
+        return BinaryProtocol.frameLength(in);
+    }
+
+    /* takes a frame of the BinaryProtocol, noting when the peer said HELLO */
+    private Message binaryFrame(ByteBuffer in) {
+        if (in.remaining() < BinaryProtocol.HEADER_SIZE) {
+            return null;
+        }
+        int start = in.position();
+        int length = BinaryProtocol.frameLength(in);
+        if (in.remaining() < length) {
+            return null;
+        }
+        scanned = 0;
+        Message msg;
+        try {
+            msg = BinaryProtocol.decode(in);
+        } catch (IllegalArgumentException e) {
+            in.position(start + length);
+            throw e;
+        }
+        if (msg.getStatus() == StatusType.HELLO) {
+            binary = true;
+        }
+        return msg;
+    }
+
+    /* index of the CR ending the frame at the buffer's position, -1 if
+       there is none yet, in which case the bytes searched are kept */
+    private int findReturn(ByteBuffer in) {
+        for (int i = in.position() + scanned; i < in.limit(); i++) {
+            if (in.get(i) == RETURN) {
+                return i;
+            }
+        }
+        scanned = in.remaining();
+        return -1;
+    }
+
+    /* parses a text frame in place unless characters other than the line
+       feed ending it have to be dropped first */
+    private static Message text(ByteBuffer in, int start, int end) {
+        int last = end;
+        if (last > start && in.get(last - 1) == LINE_FEED) {
+            last--;
+        }
+        if (in.hasArray() && isPrintable(in, start, last)) {
+            return new Message(in.array(), in.arrayOffset() + start, last - start);
+        }
+        return new Message(printable(in, start, end));
+    }
+
+    private static boolean isPrintable(ByteBuffer in, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (isControl(in.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* copies the characters between start and end, without control characters */
+    private static byte[] printable(ByteBuffer in, int start, int end) {
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (!isControl(in.get(i))) {
+                count++;
+            }
+        }
+        byte[] bytes = new byte[count];
+        int index = 0;
+        for (int i = start; i < end; i++) {
+            byte b = in.get(i);
+            if (!isControl(b)) {
+                bytes[index++] = b;
+            }
+        }
+        return bytes;
+    }
+
+    /* bytes of UTF-8 sequences, which are negative, are never control characters */
+    private static boolean isControl(byte b) {
+        return b >= 0 && b < 32 || b == DELETE;
+    }
+}
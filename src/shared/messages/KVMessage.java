@@ -11,7 +11,22 @@ public interface KVMessage {
 		PUT_UPDATE, 	/* Put - request successful, i.e. value updated */
 		PUT_ERROR, 		/* Put - request not successful */
 		DELETE_SUCCESS, /* Delete - request successful */
-		DELETE_ERROR 	/* Delete - request successful */
+		DELETE_ERROR, 	/* Delete - request successful */
+		SNAPSHOT, 		/* Snapshot - request, key names the snapshot */
+		SNAPSHOT_SUCCESS, /* Snapshot - request successful, snapshot written */
+		SNAPSHOT_ERROR, 	/* Snapshot - request not successful */
+		SCAN, 			/* Scan - request, keys from key up to value */
+		SCAN_ENTRY, 	/* Scan - one tuple of the range or of an MGET, streamed */
+		SCAN_SUCCESS, 	/* Scan - page complete, key continues the scan */
+		SCAN_ERROR, 	/* Scan - request not successful */
+		SERVER_BUSY, 	/* request rejected, the server is at capacity */
+		HELLO, 			/* Protocol negotiation, option carries the binary protocol version */
+		MGET, 			/* Batch get - request, value packs the keys */
+		MGET_SUCCESS, 	/* Batch get - tuples found streamed, value counts them */
+		MGET_ERROR, 	/* Batch get - request not successful */
+		MPUT, 			/* Batch put - request, value packs the tuples */
+		MPUT_SUCCESS, 	/* Batch put - request successful, value counts the tuples */
+		MPUT_ERROR 		/* Batch put - request not successful, nothing written */
 	}
 
 	/**
@@ -25,6 +40,12 @@ public interface KVMessage {
 	 * 		null if not value is associated.
 	 */
 	public String getValue();
+
+	/**
+	 * @return the value that is associated with this message as bytes,
+	 * 		UTF-8 for values given as text, null if no value is associated.
+	 */
+	public byte[] getValueBytes();
 	
 	/**
 	 * @return a status string that is used to identify request types, 
@@ -32,6 +53,18 @@ public interface KVMessage {
 	 */
 	public StatusType getStatus();
 
+	/**
+	 * @return the number of seconds after which the tuple of a PUT
+	 * 		expires, 0 if it never expires.
+	 */
+	public long getTtl();
+
+	/**
+	 * @return the maximum number of tuples a SCAN returns,
+	 * 		0 for the server's default.
+	 */
+	public int getLimit();
+
 	public String getMsg();
 
 	public byte[] getMsgBytes();
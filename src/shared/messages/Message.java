@@ -1,40 +1,79 @@
 package shared.messages;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
 
 public class Message implements KVMessage{
 
     private String key;
     private String value;
+    private byte[] valueBytes;  // Value given or received as bytes, null if given as text
     private StatusType statusType;
-    private String msg;         // Serialized message string
-    private byte[] msgBytes;    // Serialized message represented using byte array
+    private long option;        // Optional fourth field: seconds until a PUT expires or page size of a SCAN
+    private int requestId;      // ID the response to a request echoes, only sent by the binary protocol
+    private String msg;         // Serialized message string, built when first asked for
+    private byte[] msgBytes;    // Serialized message represented using byte array, built when first asked for
 
     private static final char LINE_FEED = 0x0A;		// "ASCII for '/n' "
     private static final char RETURN = 0x0D;		// "ASCII for '/r' "
+    static final Charset CHARSET = Charset.forName("UTF-8");
 
     /**
      * Constructs a Message object with a given array of bytes that
      * forms the message.
      *
-     * @param bytes the bytes that form the message in ASCII coding.
+     * @param bytes the bytes that form the message in UTF-8 coding.
      */
     public Message(byte[] bytes) {
-        this.msgBytes = addCtrChars(bytes);
-        this.msg = new String(this.msgBytes).trim();
+        this(bytes, 0, bytes.length);
+    }
 
+    /**
+     * Constructs a Message object from the bytes of a text frame within a
+     * larger array, e.g. a read buffer, without copying them first.
+     *
+     * @param bytes array holding the message in UTF-8 coding
+     * @param offset index of the message's first byte
+     * @param length number of bytes of the message
+     */
+    public Message(byte[] bytes, int offset, int length) {
+        int start = offset;
+        int end = offset + length;
+        /* like String.trim(), bytes of UTF-8 sequences are negative */
+        while (start < end && bytes[start] >= 0 && bytes[start] <= ' ') {
+            start++;
+        }
+        while (end > start && bytes[end - 1] >= 0 && bytes[end - 1] <= ' ') {
+            end--;
+        }
+        /* drop trailing empty fields like String.split(",") */
+        while (end > start && bytes[end - 1] == ',') {
+            end--;
+        }
+        /* the key ends at the first comma and the status is the last field,
+           or the one before a numeric option, so the value may hold commas */
+        int keyEnd = indexOf(bytes, start, end);
+        int last = lastIndexOf(bytes, keyEnd + 1, end);
+        if (keyEnd < 0 || last < 0) {
+            throw new IllegalArgumentException("Message must be in format of '<KEY>,<VALUE>,<STATUS>[,<OPTION>]'");
+        }
+        int statusStart = last + 1;
+        int statusEnd = end;
+        int beforeLast = lastIndexOf(bytes, keyEnd + 1, last);
+        if (beforeLast >= 0 && isNumber(bytes, last + 1, end)) {
+            statusStart = beforeLast + 1;
+            statusEnd = last;
+        }
         try {
-            List<String> msgArgs = new ArrayList<String>(Arrays.asList(this.msg.split(",")));
-            if(msgArgs.size() != 3){
-                throw new Exception();
+            this.key = new String(bytes, start, keyEnd - start, CHARSET);
+            this.value = new String(bytes, keyEnd + 1, statusStart - 1 - (keyEnd + 1), CHARSET);
+            this.statusType = StatusType.valueOf(new String(bytes, statusStart, statusEnd - statusStart, CHARSET));
+            if (statusEnd < end) {
+                this.option = Long.parseLong(new String(bytes, last + 1, end - (last + 1), CHARSET));
             }
-            this.key = msgArgs.get(0);
-            this.value = msgArgs.get(1);
-            this.statusType = StatusType.valueOf(msgArgs.get(2));
         } catch(Exception e){
-            throw new IllegalArgumentException("Message must be in format of '<KEY>,<VALUE>,<STATUS>'");
+            throw new IllegalArgumentException("Message must be in format of '<KEY>,<VALUE>,<STATUS>[,<OPTION>]'");
         }
     }
 
@@ -43,11 +82,36 @@ public class Message implements KVMessage{
      * forms the message.
      */
     public Message(String key, String value, StatusType statusType){
+        this(key, value, statusType, 0);
+    }
+
+    /**
+     * Constructs a Message with a numeric option sent as a fourth field,
+     * the time-to-live in seconds of a PUT or the page size of a SCAN.
+     */
+    public Message(String key, String value, StatusType statusType, long option){
         this.key = key;
         this.value = value;
         this.statusType = statusType;
-        this.msg = String.format("%s,%s,%s", key, value, statusType);
-        this.msgBytes = toByteArray(this.msg);
+        this.option = option;
+    }
+
+    /**
+     * Constructs a Message whose value is arbitrary bytes.
+     */
+    public Message(String key, byte[] value, StatusType statusType){
+        this(key, value, statusType, 0);
+    }
+
+    /**
+     * Constructs a Message whose value is arbitrary bytes, which only the
+     * BinaryProtocol carries unless they are text a text frame can carry.
+     */
+    public Message(String key, byte[] value, StatusType statusType, long option){
+        this.key = key;
+        this.valueBytes = value;
+        this.statusType = statusType;
+        this.option = option;
     }
 
     @Override
@@ -55,32 +119,140 @@ public class Message implements KVMessage{
 
     @Override
     public String getValue() {
+        if (this.value == null && this.valueBytes != null) {
+            this.value = new String(this.valueBytes, CHARSET);
+        }
         return this.value;
     }
 
+    @Override
+    public byte[] getValueBytes() {
+        if (this.valueBytes == null && this.value != null) {
+            this.valueBytes = this.value.getBytes(CHARSET);
+        }
+        return this.valueBytes;
+    }
+
     @Override
     public StatusType getStatus() {
         return this.statusType;
     }
 
     @Override
-    public String getMsg() { return this.msg; }
+    public long getTtl() { return this.option; }
 
     @Override
-    public byte[] getMsgBytes() { return this.msgBytes;}
+    public int getLimit() { return (int) Math.min(this.option, Integer.MAX_VALUE); }
 
-    private byte[] addCtrChars(byte[] bytes) {
-        byte[] ctrBytes = new byte[]{LINE_FEED, RETURN};		//"/n/r"
-        byte[] tmp = new byte[bytes.length + ctrBytes.length];
+    /**
+     * @return the numeric option, whatever it means for the status
+     */
+    public long getOption() { return this.option; }
 
-        System.arraycopy(bytes, 0, tmp, 0, bytes.length);
-        System.arraycopy(ctrBytes, 0, tmp, bytes.length, ctrBytes.length);
+    /**
+     * @return the ID of the request the message is or answers, 0 if none
+     */
+    public int getRequestId() { return this.requestId; }
 
-        return tmp;
+    /**
+     * Set the ID of the request the message is or answers, which frames of
+     * BinaryProtocol version 2 on carry.
+     */
+    public void setRequestId(int requestId) { this.requestId = requestId; }
+
+    @Override
+    public String getMsg() {
+        if (this.msg == null) {
+            this.msg = fitsTextFrame() ? format(getValue()) : format("<" + getValueBytes().length + " bytes>");
+        }
+        return this.msg;
+    }
+
+    /**
+     * @return the message as a text frame; BinaryProtocol encodes frames of
+     * 		the binary protocol.
+     * @throws IllegalArgumentException if a text frame cannot carry the
+     * 		message
+     */
+    @Override
+    public byte[] getMsgBytes() {
+        if (this.msgBytes == null) {
+            if (!fitsTextFrame()) {
+                throw new IllegalArgumentException("Message of key " + key
+                        + " holds bytes a text frame cannot carry, it needs the binary protocol!");
+            }
+            this.msgBytes = toByteArray(format(getValue()));
+        }
+        return this.msgBytes;
+    }
+
+    /**
+     * @return true if a text frame carries the message unchanged: a key
+     * 		without commas and a value of UTF-8 text, neither holding
+     * 		control characters
+     */
+    public boolean fitsTextFrame() {
+        if (this.key != null && !isText(this.key, true)) {
+            return false;
+        }
+        if (this.value == null && this.valueBytes != null) {
+            try {
+                this.value = CHARSET.newDecoder().decode(ByteBuffer.wrap(this.valueBytes)).toString();
+            } catch (CharacterCodingException e) {
+                return false;
+            }
+        }
+        return this.value == null || isText(this.value, false);
+    }
+
+    /* true if the string holds no control characters, nor commas if separated */
+    private static boolean isText(String s, boolean separated) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 32 || c == 127 || (separated && c == ',')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* index of the first comma between start and end, -1 if there is none */
+    private static int indexOf(byte[] bytes, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == ',') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /* index of the last comma between start and end, -1 if there is none */
+    private static int lastIndexOf(byte[] bytes, int start, int end) {
+        for (int i = end - 1; i >= start; i--) {
+            if (bytes[i] == ',') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /* true if the bytes between start and end are digits, as format() writes an option */
+    private static boolean isNumber(byte[] bytes, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] < '0' || bytes[i] > '9') {
+                return false;
+            }
+        }
+        return end > start;
+    }
+
+    private String format(String value) {
+        return option > 0 ? String.format("%s,%s,%s,%d", key, value, statusType, option)
+                : String.format("%s,%s,%s", key, value, statusType);
     }
 
-    private byte[] toByteArray(String s){
-        byte[] bytes = s.getBytes();
+    private static byte[] toByteArray(String s){
+        byte[] bytes = s.getBytes(CHARSET);
         byte[] ctrBytes = new byte[]{LINE_FEED, RETURN};
         byte[] tmp = new byte[bytes.length + ctrBytes.length];
 
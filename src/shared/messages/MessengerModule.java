@@ -2,10 +2,12 @@ package shared.messages;
 
 import org.apache.log4j.Logger;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -15,81 +17,97 @@ import java.net.Socket;
 public class MessengerModule {
 
     private Logger logger = Logger.getRootLogger();
-    private static final int BUFFER_SIZE = 1024;
-    private static final int DROP_SIZE = 128 * BUFFER_SIZE;
+    /* size of the read buffer, which grows for larger frames and keeps up
+       to RETAINED_SIZE bytes, enough for a frame of the longest value */
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int RETAINED_SIZE = 2 * FrameDecoder.MAX_FRAME_SIZE;
 
     private Socket clientSocket;
     private InputStream input;
     private OutputStream output;
+    /* bytes read but not yet taken apart into messages, from position to limit */
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final FrameDecoder decoder = new FrameDecoder();
+    /* version of the binary protocol frames are sent in, 0 for text frames */
+    private int version = 0;
 
     public MessengerModule(Socket clientSocket) throws IOException{
+        this.buffer.limit(0);
         this.clientSocket = clientSocket;
         this.output = clientSocket.getOutputStream();
         this.input = clientSocket.getInputStream();
     }
 
+    /**
+     * @return version of the binary protocol the connection speaks, 0 for
+     *         the text protocol
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Send binary frames of the given version from now on, 0 for text
+     * frames. Frames of either kind are received regardless.
+     */
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
     public void sendMessage(Message msg) throws IOException {
-        byte[] msgBytes = msg.getMsgBytes();
+        byte[] msgBytes = version > 0 ? BinaryProtocol.encode(msg, version) : msg.getMsgBytes();
         output.write(msgBytes, 0, msgBytes.length);
         output.flush();
     }
 
+    /**
+     * Receive the next frame of either protocol.
+     * @throws IllegalArgumentException if the frame is malformed. The frames
+     *         read ahead of it are kept, but the peer gets no answer to it, so
+     *         readers close the connection rather than carry on out of step.
+     */
     public Message receiveMessage() throws IOException {
-
-        int index = 0;
-        byte[] msgBytes = null, tmp = null;
-        byte[] bufferBytes = new byte[BUFFER_SIZE];
-
-        /* read first char from stream */
-        byte read = (byte) input.read();
-        boolean reading = true;
-
-        while(read != 13 && reading) {/* carriage return */
-            /* if buffer filled, copy to msg array */
-            if(index == BUFFER_SIZE) {
-                if(msgBytes == null){
-                    tmp = new byte[BUFFER_SIZE];
-                    System.arraycopy(bufferBytes, 0, tmp, 0, BUFFER_SIZE);
-                } else {
-                    tmp = new byte[msgBytes.length + BUFFER_SIZE];
-                    System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-                    System.arraycopy(bufferBytes, 0, tmp, msgBytes.length,
-                            BUFFER_SIZE);
+        while (true) {
+            Message msg = decoder.decode(buffer);
+            if (msg != null) {
+                if (!buffer.hasRemaining()) {
+                    release();
                 }
-
-                msgBytes = tmp;
-                bufferBytes = new byte[BUFFER_SIZE];
-                index = 0;
-            }
-
-            /* only read valid characters, i.e. letters and numbers */
-            if((read > 31 && read < 127)) {
-                bufferBytes[index] = read;
-                index++;
+                return msg;
             }
+            fill();
+        }
+    }
 
-            /* stop reading is DROP_SIZE is reached */
-            if(msgBytes != null && msgBytes.length + index >= DROP_SIZE) {
-                reading = false;
+    /* reads as many bytes as the stream has after those left in the buffer,
+       making room by moving them to its start or by growing it */
+    private void fill() throws IOException {
+        if (buffer.limit() == buffer.capacity()) {
+            int needed = Math.max(buffer.remaining() + 1, decoder.frameLength(buffer));
+            if (buffer.position() > 0 && needed <= buffer.capacity()) {
+                buffer.compact();
+                buffer.flip();
+            } else {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, needed));
+                grown.put(buffer);
+                grown.flip();
+                buffer = grown;
             }
-
-            /* read next char from stream */
-            read = (byte) input.read();
         }
-
-        if(msgBytes == null){
-            tmp = new byte[index];
-            System.arraycopy(bufferBytes, 0, tmp, 0, index);
-        } else {
-            tmp = new byte[msgBytes.length + index];
-            System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-            System.arraycopy(bufferBytes, 0, tmp, msgBytes.length, index);
+        int read = input.read(buffer.array(), buffer.limit(), buffer.capacity() - buffer.limit());
+        if (read < 0) {
+            throw new EOFException(buffer.hasRemaining() ? "Connection closed within a frame!"
+                    : "Connection closed by peer!");
         }
+        buffer.limit(buffer.limit() + read);
+    }
 
-        msgBytes = tmp;
-
-        /* build final String */
-        Message msg = new Message(msgBytes);
-        return msg;
+    /* empties the buffer, letting go of one grown for a large frame */
+    private void release() {
+        if (buffer.capacity() > RETAINED_SIZE) {
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        buffer.clear();
+        buffer.limit(0);
     }
 }
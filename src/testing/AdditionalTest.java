@@ -1,7 +1,36 @@
 package testing;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.junit.Test;
 
+import app_kvServer.cache.FIFOCache;
+import app_kvServer.cache.ICache;
+import app_kvServer.cache.LFUCache;
+import app_kvServer.cache.LRUCache;
+import app_kvServer.storage.IKVStorage;
+import app_kvServer.storage.LegacyDatabase;
+import app_kvServer.storage.LogStorage;
+import app_kvServer.storage.LsmStorage;
+import app_kvServer.storage.ShardedStorage;
+import app_kvServer.storage.StorageOptions;
+import app_kvServer.storage.SyncPolicy;
 import junit.framework.TestCase;
 
 public class AdditionalTest extends TestCase {
@@ -12,4 +41,835 @@ public class AdditionalTest extends TestCase {
 	public void testStub() {
 		assertTrue(true);
 	}
+
+	@Test
+	public void testFIFOCacheEviction() {
+		ICache cache = new FIFOCache(2);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.get("a");
+		cache.put("c", "3");
+
+		assertFalse(cache.contains("a"));
+		assertTrue(cache.contains("b") && cache.contains("c"));
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void testLRUCacheEviction() {
+		ICache cache = new LRUCache(2);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.get("a");
+		cache.put("c", "3");
+
+		assertFalse(cache.contains("b"));
+		assertEquals("1", cache.get("a"));
+		assertEquals("3", cache.get("c"));
+	}
+
+	@Test
+	public void testLFUCacheEviction() {
+		ICache cache = new LFUCache(2);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.get("a");
+		cache.get("a");
+		cache.get("b");
+		cache.put("c", "3");
+
+		assertFalse(cache.contains("b"));
+		assertTrue(cache.contains("a") && cache.contains("c"));
+
+		cache.remove("c");
+		cache.put("d", "4");
+		cache.put("e", "5");
+		assertTrue(cache.contains("a") && cache.contains("e"));
+		assertFalse(cache.contains("d"));
+	}
+
+	@Test
+	public void testLogStorageCompaction() throws Exception {
+		File dir = new File("logs/testing/compaction");
+		LogStorage storage = new LogStorage(dir, 256);
+		storage.clear();
+		for (int i = 0; i < 200; i++) {
+			storage.put("key" + (i % 4), "value" + i);
+		}
+		storage.delete("key0");
+		storage.compact();
+
+		/* 200 records took ~3.4 kB, only the active segment and a few live
+		   records may be left over */
+		assertTrue(storage.diskSize() < 1024);
+		assertNull(storage.get("key0"));
+		assertEquals("value199", storage.get("key3"));
+		storage.close();
+
+		storage = new LogStorage(dir, 256);
+		assertEquals(3, storage.size());
+		assertEquals("value197", storage.get("key1"));
+		storage.clear();
+		storage.close();
+	}
+
+	@Test
+	public void testDeletedSegmentsAreFreed() throws Exception {
+		LogStorage storage = new LogStorage(new File("logs/testing/freespace"), 256);
+		storage.clear();
+		for (int i = 0; i < 300; i++) {
+			storage.put("key" + i, "value" + i);
+		}
+		for (int i = 0; i < 300; i++) {
+			storage.delete("key" + i);
+		}
+		storage.put("last", "value");
+		/* all sealed segments are dead, nothing has to be copied */
+		storage.compact();
+
+		assertTrue(storage.diskSize() <= 256);
+		assertEquals("value", storage.get("last"));
+		storage.clear();
+		storage.close();
+	}
+
+	@Test
+	public void testSegmentIdsAreReused() throws Exception {
+		File dir = new File("logs/testing/segmentids");
+		LogStorage storage = new LogStorage(dir, 256);
+		storage.clear();
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 200; i++) {
+				storage.put("key" + (i % 4), "value" + round + "_" + i);
+			}
+			storage.compact();
+		}
+
+		/* ~150 segments were created, the ids of deleted ones were taken again */
+		int highest = 0;
+		for (String name : dir.list()) {
+			if (name.startsWith("segment-")) {
+				highest = Math.max(highest, Integer.parseInt(name.replaceAll("\\D", "")));
+			}
+		}
+		assertTrue(highest < 32);
+		storage.close();
+
+		/* the newest segment is found without relying on the highest id */
+		storage = new LogStorage(dir, 256);
+		storage.put("key0", "reopened");
+		storage.close();
+		storage = new LogStorage(dir, 256);
+		assertEquals(4, storage.size());
+		assertEquals("reopened", storage.get("key0"));
+		assertEquals("value4_199", storage.get("key3"));
+		storage.clear();
+		storage.close();
+	}
+
+	@Test
+	public void testIndexJournalReplay() throws Exception {
+		File dir = new File("logs/testing/journal");
+		LogStorage storage = new LogStorage(dir, 4096);
+		storage.clear();
+		storage.put("kept", "1");
+		storage.put("updated", "1");
+		storage.checkpoint();
+		storage.put("updated", "2");
+		storage.put("deleted", "3");
+		storage.delete("deleted");
+
+		/* reopen without closing, i.e. without a final checkpoint */
+		LogStorage recovered = new LogStorage(dir, 4096);
+		assertEquals(2, recovered.size());
+		assertEquals("1", recovered.get("kept"));
+		assertEquals("2", recovered.get("updated"));
+		assertNull(recovered.get("deleted"));
+		recovered.clear();
+		recovered.close();
+	}
+
+	@Test
+	public void testScanRecoveryAfterCrash() throws Exception {
+		File dir = new File("logs/testing/recovery");
+		LogStorage storage = new LogStorage(dir, 256);
+		storage.clear();
+		for (int i = 0; i < 20; i++) {
+			storage.put("key" + i, "value" + i);
+		}
+		storage.put("key3", "updated");
+		storage.delete("key5");
+
+		/* crash without closing, lose the index and tear the last record */
+		File last = null;
+		for (File file : dir.listFiles()) {
+			if (!file.getName().startsWith("segment-")) {
+				assertTrue(file.delete());
+			} else if (last == null || file.getName().compareTo(last.getName()) > 0) {
+				last = file;
+			}
+		}
+		FileOutputStream out = new FileOutputStream(last, true);
+		out.write(new byte[] {5, 0, 0, 0, 0, 9});
+		out.close();
+		long tornLength = last.length();
+
+		LogStorage recovered = new LogStorage(dir, 256);
+		assertEquals(19, recovered.size());
+		assertEquals("updated", recovered.get("key3"));
+		assertNull(recovered.get("key5"));
+		assertEquals("value19", recovered.get("key19"));
+		assertEquals(tornLength - 6, last.length());
+		recovered.put("key5", "again");
+		recovered.close();
+
+		LogStorage reopened = new LogStorage(dir, 256);
+		assertEquals(20, reopened.size());
+		assertEquals("again", reopened.get("key5"));
+		reopened.clear();
+		reopened.close();
+	}
+
+	@Test
+	public void testCorruptSealedRecordIsSkipped() throws Exception {
+		File dir = new File("logs/testing/corruption");
+		LogStorage storage = new LogStorage(dir, 256);
+		storage.clear();
+		for (int i = 0; i < 20; i++) {
+			storage.put("key" + i, "value" + i);
+		}
+
+		/* crash without closing, lose the index and flip a bit in the value
+		   of key1, the second record of the first, sealed segment */
+		File first = null;
+		for (File file : dir.listFiles()) {
+			if (!file.getName().startsWith("segment-")) {
+				assertTrue(file.delete());
+			} else if (first == null || file.getName().compareTo(first.getName()) < 0) {
+				first = file;
+			}
+		}
+		long sealedLength = first.length();
+		RandomAccessFile raf = new RandomAccessFile(first, "rw");
+		raf.seek(12 + 28 + 18 + 4);
+		int b = raf.read();
+		raf.seek(12 + 28 + 18 + 4);
+		raf.write(b ^ 1);
+		raf.close();
+
+		LogStorage recovered = new LogStorage(dir, 256);
+		assertEquals(19, recovered.size());
+		assertNull(recovered.get("key1"));
+		assertEquals("value0", recovered.get("key0"));
+		assertEquals("value2", recovered.get("key2"));
+		assertEquals("value7", recovered.get("key7"));
+		assertEquals(sealedLength, first.length());
+		recovered.clear();
+		recovered.close();
+	}
+
+	@Test
+	public void testCorruptValueIsNotServed() throws Exception {
+		checkCorruptValue(false);
+		checkCorruptValue(true);
+	}
+
+	private void checkCorruptValue(boolean memoryMapped) throws Exception {
+		File dir = new File("logs/testing/checksums");
+		StorageOptions options = new StorageOptions();
+		options.setSegmentSize(256);
+		options.setMemoryMapped(memoryMapped);
+		options.setRecovery(StorageOptions.RECOVERY_JOURNAL);
+		options.setVerifiedTransfers(true);
+		LogStorage storage = new LogStorage(dir, options);
+		storage.clear();
+		for (int i = 0; i < 20; i++) {
+			storage.put("key" + i, "value" + i);
+		}
+		storage.close();
+
+		/* flip a bit in the value of key1, which the index still points at */
+		File first = null;
+		for (File file : dir.listFiles()) {
+			if (file.getName().startsWith("segment-")
+					&& (first == null || file.getName().compareTo(first.getName()) < 0)) {
+				first = file;
+			}
+		}
+		RandomAccessFile raf = new RandomAccessFile(first, "rw");
+		raf.seek(12 + 28 + 18 + 4);
+		int b = raf.read();
+		raf.seek(12 + 28 + 18 + 4);
+		raf.write(b ^ 1);
+		raf.close();
+
+		storage = new LogStorage(dir, options);
+		IOException ex = null;
+		try {
+			storage.get("key1");
+		} catch (IOException e) {
+			ex = e;
+		}
+		assertNotNull(ex);
+		assertEquals("value2", storage.get("key2"));
+
+		IKVStorage.Framer framer = new IKVStorage.Framer() {
+			public ByteBuffer header(int valueLength) {
+				return ByteBuffer.allocate(0);
+			}
+
+			public ByteBuffer trailer() {
+				return ByteBuffer.allocate(0);
+			}
+		};
+		ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		ex = null;
+		try {
+			storage.transferValue("key1", framer, Channels.newChannel(sent));
+		} catch (IOException e) {
+			ex = e;
+		}
+		assertNotNull(ex);
+		assertEquals(0, sent.size());
+		assertTrue(storage.transferValue("key2", framer, Channels.newChannel(sent)));
+		assertEquals("value2", sent.toString("UTF-8"));
+		storage.clear();
+		storage.close();
+	}
+
+	@Test
+	public void testExpiringKeys() throws Exception {
+		File dir = new File("logs/testing/expiry");
+		LogStorage storage = new LogStorage(dir, 256);
+		storage.clear();
+		long now = System.currentTimeMillis();
+		storage.put("session", "short", now + 1000);
+		storage.put("long", "lived", now + 3600 * 1000);
+		storage.put("plain", "value");
+		assertEquals("short", storage.get("session"));
+		assertTrue(storage.contains("session"));
+		assertEquals(now + 1000, storage.getExpiry("session"));
+		assertEquals(0, storage.getExpiry("plain"));
+
+		/* invisible right after the deadline, reclaimed within a tick or two */
+		Thread.sleep(1100);
+		assertNull(storage.get("session"));
+		assertFalse(storage.contains("session"));
+		for (int i = 0; i < 30 && storage.size() > 2; i++) {
+			Thread.sleep(100);
+		}
+		assertEquals(2, storage.size());
+		storage.close();
+
+		LogStorage reopened = new LogStorage(dir, 256);
+		assertEquals(2, reopened.size());
+		assertNull(reopened.get("session"));
+		assertEquals("lived", reopened.get("long"));
+		assertEquals(now + 3600 * 1000, reopened.getExpiry("long"));
+		reopened.clear();
+		reopened.close();
+
+		StorageOptions options = new StorageOptions();
+		LsmStorage lsm = new LsmStorage(new File("logs/testing/expiry-lsm"), options);
+		lsm.clear();
+		lsm.put("session", "short", System.currentTimeMillis() + 200);
+		lsm.put("plain", "value");
+		assertEquals("short", lsm.get("session"));
+		Thread.sleep(300);
+		assertNull(lsm.get("session"));
+		assertFalse(lsm.contains("session"));
+		assertEquals(1, lsm.size());
+		lsm.close();
+	}
+
+	@Test
+	public void testRangeScan() throws Exception {
+		StorageOptions options = new StorageOptions();
+		options.setPartitions(2);
+		checkRangeScan(new ShardedStorage(new File("logs/testing/scan-log"), options));
+
+		options = new StorageOptions();
+		options.setSortedKeys(true);
+		checkRangeScan(new ShardedStorage(new File("logs/testing/scan-sorted"), options));
+
+		options = new StorageOptions();
+		options.setLsmEngine(true);
+		options.setMemtableSize(1024);
+		options.setPartitions(3);
+		checkRangeScan(new ShardedStorage(new File("logs/testing/scan-lsm"), options));
+	}
+
+	private void checkRangeScan(IKVStorage storage) throws Exception {
+		storage.clear();
+		for (int i = 199; i >= 0; i--) {
+			storage.put(String.format("k%03d", i), "value" + i);
+		}
+		storage.delete("k052");
+		storage.put("k055", "updated");
+		storage.put("other", "value");
+
+		List<Map.Entry<String, byte[]>> range = storage.scan("k050", "k060", 100);
+		assertEquals(9, range.size());
+		assertEquals("k050", range.get(0).getKey());
+		assertEquals("k053", range.get(2).getKey());
+		assertEquals("updated", new String(range.get(4).getValue(), "UTF-8"));
+		assertEquals("k059", range.get(8).getKey());
+
+		range = storage.scan("k195", null, 3);
+		assertEquals(3, range.size());
+		assertEquals("k197", range.get(2).getKey());
+		assertEquals(201 - 1, storage.scan("", null, 1000).size());
+		assertEquals("other", storage.scan("k2", null, 10).get(0).getKey());
+		storage.clear();
+		storage.close();
+	}
+
+	@Test
+	public void testBinaryValues() throws Exception {
+		StorageOptions options = new StorageOptions();
+		options.setCompressed(true);
+		options.setCompressionThreshold(64);
+		options.setMemoryMapped(true);
+		checkBinaryValues(new LogStorage(new File("logs/testing/binary"), options));
+		checkBinaryValues(new LsmStorage(new File("logs/testing/binary-lsm"), new StorageOptions()));
+	}
+
+	private void checkBinaryValues(IKVStorage storage) throws Exception {
+		storage.clear();
+		byte[] all = new byte[256];
+		for (int i = 0; i < all.length; i++) {
+			all[i] = (byte) i;
+		}
+		byte[] repeated = new byte[4096];
+		for (int i = 0; i < repeated.length; i++) {
+			repeated[i] = (byte) (i % 7 == 0 ? 0xFF : ',');
+		}
+		storage.put("all", all, 0);
+		storage.put("repeated", repeated, 0);
+		storage.put("text", "h\u00e9llo, w\u00f6rld");
+
+		assertTrue(Arrays.equals(all, storage.getBytes("all")));
+		assertTrue(Arrays.equals(repeated, storage.getBytes("repeated")));
+		assertEquals("h\u00e9llo, w\u00f6rld", storage.get("text"));
+		assertTrue(Arrays.equals("h\u00e9llo, w\u00f6rld".getBytes("UTF-8"), storage.getBytes("text")));
+		assertTrue(Arrays.equals(all, storage.scan("all", "allz", 1).get(0).getValue()));
+		assertNull(storage.getBytes("missing"));
+		storage.clear();
+		storage.close();
+	}
+
+	@Test
+	public void testIncrementalSnapshots() throws Exception {
+		File dir = new File("logs/testing/snapshot-source");
+		File target = new File("logs/testing/snapshot");
+		LogStorage storage = new LogStorage(dir, 256);
+		storage.clear();
+		for (int i = 0; i < 50; i++) {
+			storage.put("key" + i, "value" + i);
+		}
+		storage.snapshot(target);
+
+		storage.put("key0", "updated");
+		storage.delete("key1");
+		storage.put("key50", "value50");
+		storage.snapshot(target);
+		storage.put("key2", "after");
+
+		Properties marker = new Properties();
+		FileInputStream in = new FileInputStream(new File(target, "snapshot"));
+		marker.load(in);
+		in.close();
+		assertTrue(Long.parseLong(marker.getProperty("reusedBytes")) > Long.parseLong(marker.getProperty("copiedBytes")));
+
+		LogStorage restored = new LogStorage(target, 256);
+		assertEquals(50, restored.size());
+		assertEquals("updated", restored.get("key0"));
+		assertNull(restored.get("key1"));
+		assertEquals("value2", restored.get("key2"));
+		assertEquals("value50", restored.get("key50"));
+		restored.clear();
+		restored.close();
+		storage.clear();
+		storage.close();
+
+		StorageOptions options = new StorageOptions();
+		options.setMemtableSize(512);
+		LsmStorage lsm = new LsmStorage(new File("logs/testing/snapshot-lsm"), options);
+		lsm.clear();
+		for (int i = 0; i < 50; i++) {
+			lsm.put("key" + i, "value" + i);
+		}
+		lsm.snapshot(new File("logs/testing/snapshot-lsm-copy"));
+		lsm.delete("key3");
+		LsmStorage lsmCopy = new LsmStorage(new File("logs/testing/snapshot-lsm-copy"), options);
+		assertEquals(50, lsmCopy.size());
+		assertEquals("value3", lsmCopy.get("key3"));
+		lsmCopy.clear();
+		lsmCopy.close();
+		lsm.clear();
+		lsm.close();
+	}
+
+	@Test
+	public void testMemoryMappedReads() throws Exception {
+		StorageOptions options = new StorageOptions();
+		options.setSegmentSize(1024);
+		options.setMemoryMapped(true);
+		LogStorage storage = new LogStorage(new File("logs/testing/mmap"), options);
+		storage.clear();
+		for (int i = 0; i < 100; i++) {
+			storage.put("key" + i, "value" + i);
+			/* a read past the mapping is served positionally or maps the file again */
+			assertEquals("value" + i, storage.get("key" + i));
+		}
+		storage.put("key0", "updated");
+		storage.compact();
+
+		assertEquals("updated", storage.get("key0"));
+		assertEquals("value99", storage.get("key99"));
+		storage.clear();
+		storage.close();
+	}
+
+	@Test
+	public void testGroupCommitConcurrentWriters() throws Exception {
+		StorageOptions options = new StorageOptions();
+		options.setSyncPolicy(SyncPolicy.GROUP);
+		options.setGroupCommitMillis(1);
+		final LogStorage storage = new LogStorage(new File("logs/testing/group"), options);
+		storage.clear();
+
+		Thread[] writers = new Thread[8];
+		final Exception[] failure = new Exception[1];
+		for (int t = 0; t < writers.length; t++) {
+			final int id = t;
+			writers[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 25; i++) {
+							storage.put("w" + id + "k" + i, "v" + i);
+						}
+					} catch (Exception e) {
+						failure[0] = e;
+					}
+				}
+			};
+			writers[t].start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+
+		assertNull(failure[0]);
+		assertEquals(200, storage.size());
+		assertEquals("v24", storage.get("w7k24"));
+		storage.clear();
+		storage.close();
+	}
+
+	@Test
+	public void testOffHeapIndexGrowsAndRecovers() throws Exception {
+		File dir = new File("logs/testing/offheap");
+		StorageOptions options = new StorageOptions();
+		options.setOffHeapIndex(true);
+		options.setSyncPolicy(SyncPolicy.NONE);
+		LogStorage storage = new LogStorage(dir, options);
+		storage.clear();
+		for (int i = 0; i < 5000; i++) {
+			storage.put("key" + i, "value" + i);
+		}
+		for (int i = 0; i < 5000; i += 2) {
+			storage.delete("key" + i);
+		}
+		storage.put("key0", "again");
+		assertEquals(2501, storage.size());
+		storage.close();
+
+		storage = new LogStorage(dir, options);
+		assertEquals(2501, storage.size());
+		assertEquals("again", storage.get("key0"));
+		assertNull(storage.get("key4998"));
+		assertEquals("value4999", storage.get("key4999"));
+		storage.clear();
+		storage.close();
+	}
+
+	@Test
+	public void testReadersSeeCompleteVersions() throws Exception {
+		StorageOptions options = new StorageOptions();
+		options.setSegmentSize(4096);
+		options.setSyncPolicy(SyncPolicy.NONE);
+		final LogStorage storage = new LogStorage(new File("logs/testing/mvcc"), options);
+		storage.clear();
+		storage.put("hot", "a");
+
+		final AtomicBoolean done = new AtomicBoolean();
+		final String[] failure = new String[1];
+		Thread[] readers = new Thread[4];
+		for (int t = 0; t < readers.length; t++) {
+			readers[t] = new Thread() {
+				public void run() {
+					try {
+						while (!done.get()) {
+							/* every version is one letter repeated as often as its position */
+							String value = storage.get("hot");
+							if (value == null || value.length() != value.charAt(0) - 'a' + 1
+									|| value.replace(value.charAt(0), ' ').trim().length() != 0) {
+								failure[0] = "Read incomplete value " + value;
+							}
+						}
+					} catch (Exception e) {
+						failure[0] = e.toString();
+					}
+				}
+			};
+			readers[t].start();
+		}
+
+		/* overwrite the key while new keys make the index grow and old segments get compacted */
+		for (int i = 0; i < 3000; i++) {
+			char c = (char) ('a' + i % 26);
+			storage.put("hot", new String(new char[i % 26 + 1]).replace('\0', c));
+			storage.put("k" + i, "v" + i);
+			if (i % 1000 == 0) {
+				storage.compact();
+			}
+		}
+		done.set(true);
+		for (Thread reader : readers) {
+			reader.join();
+		}
+
+		assertNull(failure[0]);
+		assertEquals(3001, storage.size());
+		storage.clear();
+		storage.close();
+	}
+
+	@Test
+	public void testCompressedValues() throws Exception {
+		File dir = new File("logs/testing/compression");
+		StorageOptions options = new StorageOptions();
+		options.setCompressed(true);
+		options.setCompressionThreshold(64);
+		options.setMemoryMapped(true);
+		options.setSegmentSize(4096);
+		LogStorage storage = new LogStorage(dir, options);
+		storage.clear();
+
+		StringBuilder json = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			json.append("{\"id\": ").append(i).append(", \"name\": \"item\"},");
+		}
+		for (int i = 0; i < 20; i++) {
+			storage.put("big" + i, json.toString());
+			storage.put("big" + i, json.toString() + i);
+		}
+		storage.put("small", "tiny");
+		storage.compact();
+
+		assertTrue(storage.getCompressionRatio() > 3);
+		assertEquals(json.toString() + 7, storage.get("big7"));
+		assertEquals("tiny", storage.get("small"));
+		storage.close();
+
+		storage = new LogStorage(dir, options);
+		assertEquals(json.toString() + 19, storage.get("big19"));
+		storage.clear();
+		storage.close();
+	}
+
+	@Test
+	public void testLsmStorage() throws Exception {
+		File dir = new File("logs/testing/lsm");
+		StorageOptions options = new StorageOptions();
+		options.setMemtableSize(2048);
+		options.setSyncPolicy(SyncPolicy.NONE);
+		LsmStorage storage = new LsmStorage(dir, options);
+		storage.clear();
+		for (int i = 0; i < 3000; i++) {
+			storage.put("key" + (i % 500), "value" + i);
+		}
+		for (int i = 0; i < 500; i += 3) {
+			storage.delete("key" + i);
+		}
+		assertEquals("value2999", storage.get("key499"));
+		assertNull(storage.get("key3"));
+		storage.close();
+
+		storage = new LsmStorage(dir, options);
+		storage.compact();
+		int[] levels = storage.getLevelSizes();
+		assertTrue(levels[0] < 4 && levels[1] > 0);
+		assertEquals("value2501", storage.get("key1"));
+		assertNull(storage.get("key0"));
+		assertNull(storage.get("missing"));
+		assertEquals(333, storage.size());
+		storage.clear();
+		assertEquals(0, storage.size());
+		storage.close();
+	}
+
+	@Test
+	public void testPartitionedStorage() throws Exception {
+		File dir = new File("logs/testing/partitioned");
+		StorageOptions options = new StorageOptions();
+		options.setPartitions(4);
+		ShardedStorage storage = new ShardedStorage(dir, options);
+		storage.clear();
+		for (int i = 0; i < 100; i++) {
+			storage.put("key" + i, "value" + i);
+		}
+		storage.close();
+
+		storage = new ShardedStorage(dir, options);
+		assertEquals(100, storage.size());
+		assertEquals("value42", storage.get("key42"));
+		storage.close();
+
+		Exception ex = null;
+		options.setPartitions(2);
+		try {
+			new ShardedStorage(dir, options);
+		} catch (IOException e) {
+			ex = e;
+		}
+		assertNotNull(ex);
+	}
+
+	@Test
+	public void testBatchWrites() throws Exception {
+		File dir = new File("logs/testing/batch");
+		StorageOptions options = new StorageOptions();
+		options.setSyncPolicy(SyncPolicy.ALWAYS);
+		LogStorage log = new LogStorage(dir, options);
+		checkInvalidBatch(log);
+		checkBatchWrites(log);
+		log.close();
+
+		/* the journal entries of the batch were written */
+		log = new LogStorage(dir, options);
+		assertEquals(50, log.size());
+		assertEquals("batch7", log.get("key7"));
+		assertNull(log.get("key0"));
+		log.clear();
+		log.close();
+
+		IKVStorage lsm = new LsmStorage(new File("logs/testing/batch-lsm"), new StorageOptions());
+		checkInvalidBatch(lsm);
+		checkBatchWrites(lsm);
+		lsm.clear();
+		lsm.close();
+
+		options = new StorageOptions();
+		options.setPartitions(3);
+		IKVStorage sharded = new ShardedStorage(new File("logs/testing/batch-sharded"), options);
+		checkBatchWrites(sharded);
+		sharded.clear();
+		sharded.close();
+	}
+
+	@Test
+	public void testLegacyDatabaseImport() throws Exception {
+		File dir = new File("logs/testing/legacy");
+		dir.mkdirs();
+		File data = new File(dir, "database.dat");
+		File index = new File(dir, "hash.idx");
+		new File(dir, "database.dat.imported").delete();
+		new File(dir, "hash.idx.imported").delete();
+		writeLegacyDatabase(data, index, "key1", "value1", "key2", "longer value");
+		LogStorage storage = new LogStorage(new File(dir, "log"), new StorageOptions());
+		storage.clear();
+
+		assertTrue(LegacyDatabase.exists(data, index));
+		assertEquals(2, LegacyDatabase.importInto(data, index, storage));
+		assertEquals("value1", storage.get("key1"));
+		assertEquals("longer value", storage.get("key2"));
+		/* the old files are kept aside, so the import runs once */
+		assertFalse(LegacyDatabase.exists(data, index));
+		assertTrue(new File(dir, "hash.idx.imported").isFile());
+
+		/* an index pointing past the data file fails the import and keeps the files */
+		writeLegacyDatabase(data, index, "key3", "value3");
+		Properties offsets = new Properties();
+		offsets.setProperty("key3", "4096");
+		FileOutputStream out = new FileOutputStream(index);
+		offsets.store(out, null);
+		out.close();
+		Exception ex = null;
+		try {
+			LegacyDatabase.importInto(data, index, storage);
+		} catch (IOException e) {
+			ex = e;
+		}
+		assertNotNull(ex);
+		assertTrue(LegacyDatabase.exists(data, index));
+		data.delete();
+		index.delete();
+		storage.clear();
+		storage.close();
+	}
+
+	/* writes keys and values in the layout of the fixed-layout storage */
+	private void writeLegacyDatabase(File data, File index, String... pairs) throws IOException {
+		RandomAccessFile f = new RandomAccessFile(data, "rw");
+		f.setLength(0);
+		Properties offsets = new Properties();
+		for (int i = 0; i < pairs.length; i += 2) {
+			long begin = f.length();
+			offsets.setProperty(pairs[i], String.valueOf(begin));
+			f.seek(begin);
+			f.writeInt(pairs[i + 1].length());
+			f.writeBytes(pairs[i]);
+			f.seek(begin + 4 + 20);
+			f.writeBytes(pairs[i + 1]);
+		}
+		f.close();
+		FileOutputStream out = new FileOutputStream(index);
+		offsets.store(out, null);
+		out.close();
+	}
+
+	private void checkBatchWrites(IKVStorage storage) throws Exception {
+		storage.clear();
+		storage.put("key0", "old");
+		Map<String, byte[]> batch = new LinkedHashMap<String, byte[]>();
+		for (int i = 1; i <= 50; i++) {
+			batch.put("key" + i, ("batch" + i).getBytes("UTF-8"));
+		}
+		batch.put("key0", null);
+		storage.putAll(batch, 0);
+
+		assertEquals(50, storage.size());
+		assertNull(storage.get("key0"));
+		Map<String, byte[]> values = storage.getAll(Arrays.asList("key3", "key0", "key50", "missing"), null);
+		assertEquals(2, values.size());
+		assertEquals("batch3", new String(values.get("key3"), "UTF-8"));
+		assertEquals("batch50", new String(values.get("key50"), "UTF-8"));
+
+		/* the keys of expiring values are told apart by the entries read */
+		storage.put("expiring", "soon", System.currentTimeMillis() + 60000);
+		Set<String> expiring = new HashSet<String>();
+		values = storage.getAll(Arrays.asList("key3", "expiring"), expiring);
+		assertEquals(2, values.size());
+		assertEquals(Collections.singleton("expiring"), expiring);
+		storage.delete("expiring");
+	}
+
+	/* a batch holding an invalid key writes nothing */
+	private void checkInvalidBatch(IKVStorage storage) throws Exception {
+		storage.clear();
+		Map<String, byte[]> batch = new LinkedHashMap<String, byte[]>();
+		Exception ex = null;
+		batch.put("valid", "value".getBytes("UTF-8"));
+		batch.put("", "value".getBytes("UTF-8"));
+		try {
+			storage.putAll(batch, 0);
+		} catch (IllegalArgumentException e) {
+			ex = e;
+		}
+		assertNotNull(ex);
+		assertNull(storage.get("valid"));
+		storage.clear();
+	}
 }
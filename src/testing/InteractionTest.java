@@ -1,11 +1,28 @@
 package testing;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.junit.Test;
 
 import client.KVStore;
+import client.KVStorePool;
+import client.ScanPage;
 import junit.framework.TestCase;
 import shared.messages.KVMessage;
 import shared.messages.KVMessage.StatusType;
+import shared.messages.BinaryProtocol;
 import shared.messages.Message;
 import shared.messages.MessengerModule;
 
@@ -133,4 +150,564 @@ public class InteractionTest extends TestCase {
 	
 
 
+	@Test
+	public void testScanPages() {
+		ScanPage first = null;
+		ScanPage second = null;
+		Exception ex = null;
+
+		try {
+			for (int i = 1; i <= 5; i++) {
+				kvClient.put("scan" + i, "value" + i);
+			}
+			kvClient.put("scanz", "other");
+			first = kvClient.scan("scan1", "scan9", 3);
+			second = kvClient.scan(first.getContinuation(), "scan9", 3);
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertNull(ex);
+		assertEquals(3, first.getEntries().size());
+		assertEquals("scan1", first.getEntries().get(0).getKey());
+		assertEquals("scan4", first.getContinuation());
+		assertEquals(2, second.getEntries().size());
+		assertEquals("value5", second.getEntries().get(1).getValue());
+		assertNull(second.getContinuation());
+	}
+
+	@Test
+	public void testLargeValueGet() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 40000; i++) {
+			sb.append((char) ('a' + i % 26));
+		}
+		String value = sb.toString();
+		KVMessage response = null;
+		Exception ex = null;
+
+		try {
+			kvClient.put("large", value);
+			/* push the key out of the server's cache, so it is read from disk */
+			for (int i = 0; i < 20; i++) {
+				kvClient.put("filler" + i, "value");
+			}
+			response = kvClient.get("large");
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertNull(ex);
+		assertEquals(StatusType.GET_SUCCESS, response.getStatus());
+		assertEquals(value, response.getValue());
+	}
+
+	@Test
+	public void testBinaryValue() {
+		byte[] value = new byte[300];
+		for (int i = 0; i < value.length; i++) {
+			value[i] = (byte) (i * 7);
+		}
+		value[0] = ',';
+		value[1] = '\r';
+		value[2] = '\n';
+		String text = "caf\u00e9, cr\u00e8me";
+		KVMessage response = null;
+		byte[] stored = null;
+		KVMessage textResponse = null;
+		Exception ex = null;
+
+		try {
+			response = kvClient.put("binary", value);
+			stored = kvClient.getBytes("binary");
+			kvClient.put("unicode", text);
+			textResponse = kvClient.get("unicode");
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertNull(ex);
+		assertTrue(response.getStatus() == StatusType.PUT_SUCCESS
+				|| response.getStatus() == StatusType.PUT_UPDATE);
+		assertTrue(Arrays.equals(value, stored));
+		assertEquals(StatusType.GET_SUCCESS, textResponse.getStatus());
+		assertEquals(text, textResponse.getValue());
+	}
+
+	@Test
+	public void testProtocolNegotiation() {
+		KVStore textClient = new KVStore("localhost", 50000, false);
+		KVMessage putResponse = null;
+		KVMessage getResponse = null;
+		int textVersion = -1;
+		Exception ex = null;
+
+		try {
+			textClient.connect();
+			textVersion = textClient.getProtocolVersion();
+			putResponse = textClient.put("negotiated", "plain");
+			getResponse = kvClient.get("negotiated");
+		} catch (Exception e) {
+			ex = e;
+		} finally {
+			textClient.disconnect();
+		}
+
+		assertNull(ex);
+		assertEquals(0, textVersion);
+		assertEquals(BinaryProtocol.VERSION, kvClient.getProtocolVersion());
+		assertTrue(putResponse.getStatus() == StatusType.PUT_SUCCESS
+				|| putResponse.getStatus() == StatusType.PUT_UPDATE);
+		assertEquals("plain", getResponse.getValue());
+	}
+
+	@Test
+	public void testTextConnectionValues() {
+		KVStore textClient = new KVStore("localhost", 50000, false);
+		String text = "caf\u00e9, cr\u00e8me";
+		byte[] binary = new byte[]{1, 2, (byte) 0xFF};
+		KVMessage textResponse = null;
+		KVMessage binaryResponse = null;
+		Map<String, KVMessage> found = null;
+		Exception refused = null;
+		Exception ex = null;
+
+		try {
+			textClient.connect();
+			textClient.put("textcomma", text);
+			textResponse = textClient.get("textcomma");
+			kvClient.put("textbinary", binary);
+			binaryResponse = textClient.get("textbinary");
+			found = textClient.mget(Arrays.asList("textcomma", "textmissing"));
+			try {
+				textClient.put("textbinary", binary);
+			} catch (IllegalArgumentException e) {
+				refused = e;
+			}
+			/* the refused request left the responses in step */
+			textResponse = textClient.get("textcomma");
+		} catch (Exception e) {
+			ex = e;
+		} finally {
+			textClient.disconnect();
+		}
+
+		assertNull(ex);
+		assertNotNull(refused);
+		assertEquals(StatusType.GET_SUCCESS, textResponse.getStatus());
+		assertEquals(text, textResponse.getValue());
+		assertEquals(StatusType.GET_ERROR, binaryResponse.getStatus());
+		assertEquals(1, found.size());
+		assertEquals(text, found.get("textcomma").getValue());
+	}
+
+	@Test
+	public void testNonAsciiKey() {
+		KVStore textClient = new KVStore("localhost", 50000, false);
+		String key = "\u00e9t\u00e9";
+		KVMessage putResponse = null;
+		KVMessage textResponse = null;
+		KVMessage binaryResponse = null;
+		Exception ex = null;
+
+		try {
+			textClient.connect();
+			putResponse = textClient.put(key, "summer");
+			textResponse = textClient.get(key);
+			binaryResponse = kvClient.get(key);
+		} catch (Exception e) {
+			ex = e;
+		} finally {
+			textClient.disconnect();
+		}
+
+		assertNull(ex);
+		assertTrue(putResponse.getStatus() == StatusType.PUT_SUCCESS
+				|| putResponse.getStatus() == StatusType.PUT_UPDATE);
+		assertEquals(StatusType.GET_SUCCESS, textResponse.getStatus());
+		assertEquals(key, textResponse.getKey());
+		assertEquals("summer", textResponse.getValue());
+		assertEquals("summer", binaryResponse.getValue());
+	}
+
+	@Test
+	public void testNonAsciiPrefixScan() {
+		ScanPage page = null;
+		Exception ex = null;
+
+		try {
+			kvClient.put("pr\u00e9a", "inside");
+			kvClient.put("pr\u00e9~", "inside");
+			kvClient.put("pr\u00e9\u00ff", "inside");
+			kvClient.put("pr\u00e8z", "before");
+			kvClient.put("pr\u00ea", "after");
+			page = kvClient.scanPrefix("pr\u00e9", 10);
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertNull(ex);
+		List<String> keys = new ArrayList<String>();
+		for (KVMessage entry : page.getEntries()) {
+			keys.add(entry.getKey());
+		}
+		assertEquals(Arrays.asList("pr\u00e9a", "pr\u00e9~", "pr\u00e9\u00ff"), keys);
+		assertEquals("pr\u00ea", KVStore.prefixEnd("pr\u00e9"));
+		assertEquals("a\u007f", KVStore.prefixEnd("a~"));
+		assertEquals("b", KVStore.prefixEnd("a\uffff"));
+		assertNull(KVStore.prefixEnd("\uffff\uffff"));
+	}
+
+	@Test
+	public void testFramesInOneWrite() {
+		Message first = null;
+		Message second = null;
+		Message get = null;
+		Exception ex = null;
+
+		try {
+			Socket socket = new Socket("localhost", 50000);
+			try {
+				ByteArrayOutputStream frames = new ByteArrayOutputStream();
+				frames.write(new Message("batched1", "one", StatusType.PUT).getMsgBytes());
+				frames.write(new Message("batched2", "two", StatusType.PUT).getMsgBytes());
+				frames.write(new Message("batched1", "", StatusType.GET).getMsgBytes());
+				socket.getOutputStream().write(frames.toByteArray());
+				socket.getOutputStream().flush();
+
+				MessengerModule messenger = new MessengerModule(socket);
+				first = messenger.receiveMessage();
+				second = messenger.receiveMessage();
+				get = messenger.receiveMessage();
+			} finally {
+				socket.close();
+			}
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertNull(ex);
+		assertEquals("batched1", first.getKey());
+		assertEquals("batched2", second.getKey());
+		assertEquals(StatusType.GET_SUCCESS, get.getStatus());
+		assertEquals("one", get.getValue());
+	}
+
+	@Test
+	public void testMalformedFrameClosesConnection() {
+		int read = 0;
+		KVMessage response = null;
+		Exception ex = null;
+
+		try {
+			Socket socket = new Socket("localhost", 50000);
+			try {
+				socket.setSoTimeout(5000);
+				ByteArrayOutputStream frames = new ByteArrayOutputStream();
+				frames.write("not a message\n\r".getBytes("UTF-8"));
+				frames.write(new Message("afterbad", "value", StatusType.PUT).getMsgBytes());
+				socket.getOutputStream().write(frames.toByteArray());
+				socket.getOutputStream().flush();
+
+				/* no response to either frame, as it would answer the wrong request */
+				read = socket.getInputStream().read();
+			} finally {
+				socket.close();
+			}
+			response = kvClient.put("afterbad", "value");
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertNull(ex);
+		assertEquals(-1, read);
+		assertTrue(response.getStatus() == StatusType.PUT_SUCCESS
+				|| response.getStatus() == StatusType.PUT_UPDATE);
+	}
+
+	@Test
+	public void testOversizedFrameClosesConnection() {
+		int read = 0;
+		Exception refused = null;
+		Exception ex = null;
+
+		try {
+			Socket socket = new Socket("localhost", 50000);
+			try {
+				socket.setSoTimeout(5000);
+				ByteArrayOutputStream frames = new ByteArrayOutputStream();
+				frames.write(BinaryProtocol.encode(BinaryProtocol.hello(BinaryProtocol.VERSION), 1));
+				/* announces a value far beyond what the server takes */
+				frames.write(BinaryProtocol.header("oversized", 16 * 1024 * 1024, StatusType.PUT, 1,
+						BinaryProtocol.VERSION));
+				socket.getOutputStream().write(frames.toByteArray());
+				socket.getOutputStream().flush();
+
+				/* the HELLO is answered, then the connection is closed */
+				while (read != -1) {
+					read = socket.getInputStream().read();
+				}
+			} finally {
+				socket.close();
+			}
+			Map<String, String> tuples = new LinkedHashMap<String, String>();
+			StringBuilder value = new StringBuilder();
+			for (int i = 0; i < 100000; i++) {
+				value.append('x');
+			}
+			for (int i = 0; i < 11; i++) {
+				tuples.put("okey" + i, value.toString());
+			}
+			try {
+				kvClient.mput(tuples);
+			} catch (IllegalArgumentException e) {
+				refused = e;
+			}
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertNull(ex);
+		assertEquals(-1, read);
+		/* a batch the server would not take is not sent */
+		assertNotNull(refused);
+	}
+
+	@Test
+	public void testPipelinedRequests() {
+		KVStore textClient = new KVStore("localhost", 50000, false);
+		Exception ex = null;
+
+		try {
+			textClient.connect();
+			checkPipelined(kvClient, "pipelined");
+			checkPipelined(textClient, "pipelinedtext");
+		} catch (Exception e) {
+			ex = e;
+		} finally {
+			textClient.disconnect();
+		}
+
+		assertNull(ex);
+	}
+
+	private void checkPipelined(KVStore client, String prefix) throws Exception {
+		List<Future<KVMessage>> puts = new ArrayList<Future<KVMessage>>();
+		for (int i = 0; i < 50; i++) {
+			puts.add(client.putAsync(prefix + i, "value" + i));
+		}
+		Future<ScanPage> scan = client.scanAsync(prefix + "1", prefix + "2", 0);
+		List<Future<KVMessage>> gets = new ArrayList<Future<KVMessage>>();
+		for (int i = 0; i < 50; i++) {
+			gets.add(client.getAsync(prefix + i));
+		}
+
+		for (int i = 0; i < 50; i++) {
+			KVMessage put = puts.get(i).get();
+			assertEquals(prefix + i, put.getKey());
+			assertTrue(put.getStatus() == StatusType.PUT_SUCCESS
+					|| put.getStatus() == StatusType.PUT_UPDATE);
+			KVMessage get = gets.get(i).get();
+			assertEquals(StatusType.GET_SUCCESS, get.getStatus());
+			assertEquals("value" + i, get.getValue());
+		}
+		/* keys 1 and 10 to 19 */
+		assertEquals(11, scan.get().getEntries().size());
+	}
+
+	@Test
+	public void testBatchRequests() {
+		Map<String, String> tuples = new LinkedHashMap<String, String>();
+		for (int i = 0; i < 100; i++) {
+			tuples.put("mkey" + i, "mvalue" + i);
+		}
+		tuples.put("mbinary", "caf\u00e9, cr\u00e8me");
+		KVMessage put = null;
+		Map<String, KVMessage> found = null;
+		KVMessage deleted = null;
+		Exception ex = null;
+
+		try {
+			put = kvClient.mput(tuples);
+			found = kvClient.mget(Arrays.asList("mkey99", "mmissing", "mkey0", "mbinary"));
+			Map<String, String> delete = new LinkedHashMap<String, String>();
+			delete.put("mkey0", "");
+			kvClient.mput(delete);
+			deleted = kvClient.get("mkey0");
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertNull(ex);
+		assertEquals(StatusType.MPUT_SUCCESS, put.getStatus());
+		assertEquals("101", put.getValue());
+		assertEquals(Arrays.asList("mkey99", "mkey0", "mbinary"), new ArrayList<String>(found.keySet()));
+		assertEquals("mvalue99", found.get("mkey99").getValue());
+		assertEquals("caf\u00e9, cr\u00e8me", found.get("mbinary").getValue());
+		assertEquals(StatusType.GET_ERROR, deleted.getStatus());
+	}
+
+	@Test
+	public void testConnectionPool() {
+		final KVStorePool pool = new KVStorePool("localhost", 50000, 3);
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		KVMessage afterLoss = null;
+		int idle = 0;
+		Exception closed = null;
+		Exception ex = null;
+
+		try {
+			pool.connect();
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int t = 0; t < 8; t++) {
+				final String prefix = "pooled" + t + "_";
+				Thread thread = new Thread() {
+					public void run() {
+						try {
+							for (int i = 0; i < 25; i++) {
+								pool.put(prefix + i, "value" + i);
+								KVMessage get = pool.get(prefix + i);
+								if (!("value" + i).equals(get.getValue())) {
+									throw new IllegalStateException("Read " + get.getValue() + " for " + prefix + i);
+								}
+							}
+						} catch (Exception e) {
+							failure.compareAndSet(null, e);
+						}
+					}
+				};
+				threads.add(thread);
+				thread.start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+
+			/* lose a connection, every connection serves a request afterwards */
+			KVStore lost = pool.checkout();
+			lost.disconnect();
+			pool.release(lost);
+			for (int i = 0; i < 3; i++) {
+				afterLoss = pool.get("pooled0_0");
+			}
+			idle = pool.getIdleCount();
+		} catch (Exception e) {
+			ex = e;
+		} finally {
+			pool.disconnect();
+		}
+
+		try {
+			pool.get("pooled0_0");
+		} catch (Exception e) {
+			closed = e;
+		}
+
+		assertNull(ex);
+		assertNull(failure.get());
+		assertEquals("value0", afterLoss.getValue());
+		assertEquals(3, idle);
+		assertNotNull(closed);
+	}
+
+	@Test
+	public void testPoolReplacesSilentConnection() {
+		KVStorePool pool = null;
+		SilencingProxy proxy = null;
+		KVMessage first = null;
+		KVMessage second = null;
+		Exception ex = null;
+
+		try {
+			proxy = new SilencingProxy();
+			proxy.start();
+			pool = new KVStorePool("localhost", proxy.getPort(), 2);
+			pool.connect();
+			pool.put("probed", "answered");
+			/* the connections still run, but no answer comes back */
+			proxy.silenceAll();
+			Thread.sleep(KVStorePool.PROBE_IDLE_TIME + 200);
+			first = pool.get("probed");
+			second = pool.get("probed");
+		} catch (Exception e) {
+			ex = e;
+		} finally {
+			if (pool != null) {
+				pool.disconnect();
+			}
+			if (proxy != null) {
+				proxy.close();
+			}
+		}
+
+		assertNull(ex);
+		assertEquals("answered", first.getValue());
+		assertEquals("answered", second.getValue());
+	}
+
+	/* forwards connections to the server, dropping the answers on the
+	 * connections silenced, as if the server went away without closing them
+	 */
+	private static class SilencingProxy extends Thread {
+		private final ServerSocket listener;
+		private final List<AtomicBoolean> silenced = new CopyOnWriteArrayList<AtomicBoolean>();
+
+		SilencingProxy() throws IOException {
+			listener = new ServerSocket(0);
+			setDaemon(true);
+		}
+
+		int getPort() {
+			return listener.getLocalPort();
+		}
+
+		/* silences the connections opened so far */
+		void silenceAll() {
+			for (AtomicBoolean silent : silenced) {
+				silent.set(true);
+			}
+		}
+
+		void close() {
+			try {
+				listener.close();
+			} catch (IOException e) {
+			}
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					Socket client = listener.accept();
+					Socket server = new Socket("localhost", 50000);
+					AtomicBoolean silent = new AtomicBoolean();
+					silenced.add(silent);
+					forward(client, server, new AtomicBoolean());
+					forward(server, client, silent);
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+
+		private static void forward(final Socket from, final Socket to, final AtomicBoolean silent) {
+			Thread pump = new Thread() {
+				public void run() {
+					byte[] buffer = new byte[8192];
+					try {
+						int n;
+						while ((n = from.getInputStream().read(buffer)) > 0) {
+							if (!silent.get()) {
+								to.getOutputStream().write(buffer, 0, n);
+							}
+						}
+					} catch (IOException e) {
+						// either side closed
+					}
+				}
+			};
+			pump.setDaemon(true);
+			pump.start();
+		}
+	}
 }
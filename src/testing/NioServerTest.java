@@ -0,0 +1,333 @@
+package testing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import app_kvServer.KVServer;
+import client.KVStore;
+import client.ScanPage;
+import junit.framework.TestCase;
+import shared.messages.BinaryProtocol;
+import shared.messages.KVMessage;
+import shared.messages.KVMessage.StatusType;
+import shared.messages.Message;
+import shared.messages.MessengerModule;
+
+
+/* runs servers of its own in nio mode next to the one on port 50000 */
+public class NioServerTest extends TestCase {
+
+	private static final int NIO_PORT = 50001;
+	/* one worker and a queue of one, so a few busy clients saturate it */
+	private static final int BUSY_PORT = 50002;
+	private static final int VIRTUAL_PORT = 50003;
+
+	private static final Set<Integer> started = new HashSet<Integer>();
+
+	/* starts a server on the port the first time it is asked for, the
+	 * servers run until the tests end
+	 */
+	private static synchronized void startServer(final int port, String... options) throws Exception {
+		if (!started.add(port)) {
+			return;
+		}
+		final Properties properties = new Properties();
+		properties.setProperty(KVServer.DATABASE_PATH, "logs/testing/server" + port);
+		for (String option : options) {
+			int eq = option.indexOf('=');
+			properties.setProperty(option.substring(0, eq), option.substring(eq + 1));
+		}
+		Thread server = new Thread() {
+			public void run() {
+				/* only returns once the server stops */
+				new KVServer(port, 10, "FIFO", properties);
+			}
+		};
+		server.setDaemon(true);
+		server.start();
+		for (int i = 0; ; i++) {
+			try {
+				new Socket("localhost", port).close();
+				return;
+			} catch (IOException e) {
+				if (i == 100) {
+					throw e;
+				}
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	@Test
+	public void testPipelinedRequests() {
+		KVStore binaryClient = new KVStore("localhost", NIO_PORT);
+		KVStore textClient = new KVStore("localhost", NIO_PORT, false);
+		Exception ex = null;
+
+		try {
+			startServer(NIO_PORT, "server.mode=nio");
+			binaryClient.connect();
+			textClient.connect();
+			checkPipelined(binaryClient, "niobinary", 200);
+			checkPipelined(textClient, "niotext", 200);
+		} catch (Exception e) {
+			ex = e;
+		} finally {
+			binaryClient.disconnect();
+			textClient.disconnect();
+		}
+
+		assertNull(ex);
+	}
+
+	@Test
+	public void testFrameSplitAcrossReads() {
+		Message textGet = null;
+		Message hello = null;
+		Message binaryPut = null;
+		Message binaryGet = null;
+		Exception ex = null;
+
+		try {
+			startServer(NIO_PORT, "server.mode=nio");
+			Socket socket = new Socket("localhost", NIO_PORT);
+			try {
+				socket.setTcpNoDelay(true);
+				byte[] put = new Message("niosplit", "split value", StatusType.PUT).getMsgBytes();
+				byte[] get = new Message("niosplit", "", StatusType.GET).getMsgBytes();
+				/* the first read ends inside the PUT, the second inside the GET */
+				writeInPieces(socket, concat(put, get), 3, put.length + 2);
+				MessengerModule messenger = new MessengerModule(socket);
+				messenger.receiveMessage();
+				textGet = messenger.receiveMessage();
+			} finally {
+				socket.close();
+			}
+
+			socket = new Socket("localhost", NIO_PORT);
+			try {
+				socket.setTcpNoDelay(true);
+				MessengerModule messenger = new MessengerModule(socket);
+				messenger.setVersion(BinaryProtocol.VERSION);
+				byte[] helloFrame = BinaryProtocol.encode(BinaryProtocol.hello(BinaryProtocol.VERSION), 1);
+				byte[] put = BinaryProtocol.encode(new Message("niosplitbin", "binary value", StatusType.PUT),
+						BinaryProtocol.VERSION);
+				byte[] get = BinaryProtocol.encode(new Message("niosplitbin", "", StatusType.GET),
+						BinaryProtocol.VERSION);
+				/* reads end inside the HELLO, the PUT's header and the PUT's value */
+				writeInPieces(socket, concat(concat(helloFrame, put), get), 5, helloFrame.length + 7,
+						helloFrame.length + put.length - 4);
+				hello = messenger.receiveMessage();
+				binaryPut = messenger.receiveMessage();
+				binaryGet = messenger.receiveMessage();
+			} finally {
+				socket.close();
+			}
+		} catch (Exception e) {
+			ex = e;
+		}
+
+		assertNull(ex);
+		assertEquals(StatusType.GET_SUCCESS, textGet.getStatus());
+		assertEquals("split value", textGet.getValue());
+		assertEquals(StatusType.HELLO, hello.getStatus());
+		assertTrue(binaryPut.getStatus() == StatusType.PUT_SUCCESS
+				|| binaryPut.getStatus() == StatusType.PUT_UPDATE);
+		assertEquals(StatusType.GET_SUCCESS, binaryGet.getStatus());
+		assertEquals("binary value", binaryGet.getValue());
+	}
+
+	@Test
+	public void testLargeScanQueuesWrites() {
+		KVStore client = new KVStore("localhost", NIO_PORT);
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < 60000; i++) {
+			value.append((char) ('a' + i % 26));
+		}
+		int entries = 0;
+		Message end = null;
+		Message get = null;
+		Exception ex = null;
+
+		try {
+			startServer(NIO_PORT, "server.mode=nio");
+			client.connect();
+			List<Future<KVMessage>> puts = new ArrayList<Future<KVMessage>>();
+			for (int i = 0; i < 100; i++) {
+				puts.add(client.putAsync(String.format("nioscan%03d", i), value.toString()));
+			}
+			for (Future<KVMessage> put : puts) {
+				put.get();
+			}
+
+			Socket socket = new Socket();
+			try {
+				socket.setReceiveBufferSize(4096);
+				socket.connect(new InetSocketAddress("localhost", NIO_PORT));
+				MessengerModule messenger = new MessengerModule(socket);
+				messenger.sendMessage(new Message("nioscan", "nioscao", StatusType.SCAN, 100));
+				/* 6 MB of tuples do not fit the socket buffers, so the server
+				   has to queue what is left until the client reads */
+				Thread.sleep(1000);
+				Message msg;
+				while ((msg = messenger.receiveMessage()).getStatus() == StatusType.SCAN_ENTRY) {
+					if (msg.getValue().equals(value.toString())) {
+						entries++;
+					}
+				}
+				end = msg;
+				/* once the queue is written the connection reads again */
+				messenger.sendMessage(new Message("nioscan042", "", StatusType.GET));
+				get = messenger.receiveMessage();
+			} finally {
+				socket.close();
+			}
+		} catch (Exception e) {
+			ex = e;
+		} finally {
+			client.disconnect();
+		}
+
+		assertNull(ex);
+		assertEquals(100, entries);
+		assertEquals(StatusType.SCAN_SUCCESS, end.getStatus());
+		assertEquals(StatusType.GET_SUCCESS, get.getStatus());
+		assertEquals(value.toString(), get.getValue());
+	}
+
+	@Test
+	public void testSaturatedPoolAnswersServerBusy() {
+		KVStore single = new KVStore("localhost", BUSY_PORT);
+		List<KVStore> clients = new ArrayList<KVStore>();
+		int busy = 0;
+		int succeeded = 0;
+		Exception ex = null;
+
+		try {
+			startServer(BUSY_PORT, "server.mode=nio", "server.executor=pool", "server.workers=1",
+					"server.queue=1", "storage.fsync=always");
+			/* the pipelined requests of one client are served by its worker
+			   and never shed, however many there are */
+			single.connect();
+			checkPipelined(single, "niosingle", 200);
+
+			for (int i = 0; i < 16; i++) {
+				KVStore client = new KVStore("localhost", BUSY_PORT);
+				client.connect();
+				clients.add(client);
+			}
+			List<Future<KVMessage>> puts = new ArrayList<Future<KVMessage>>();
+			for (int i = 0; i < 50; i++) {
+				for (int c = 0; c < clients.size(); c++) {
+					puts.add(clients.get(c).putAsync("niobusy" + c + "_" + i, "value" + i));
+				}
+			}
+			for (Future<KVMessage> put : puts) {
+				StatusType status = put.get().getStatus();
+				if (status == StatusType.SERVER_BUSY) {
+					busy++;
+				} else if (status == StatusType.PUT_SUCCESS || status == StatusType.PUT_UPDATE) {
+					succeeded++;
+				}
+			}
+		} catch (Exception e) {
+			ex = e;
+		} finally {
+			single.disconnect();
+			for (KVStore client : clients) {
+				client.disconnect();
+			}
+		}
+
+		assertNull(ex);
+		/* every request was either served or shed */
+		assertEquals(16 * 50, busy + succeeded);
+		assertTrue(busy > 0);
+		assertTrue(succeeded > 0);
+	}
+
+	@Test
+	public void testVirtualThreads() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			/* needs Java 21, the server refuses to start without */
+			return;
+		}
+		KVStore client = new KVStore("localhost", VIRTUAL_PORT);
+		Exception ex = null;
+
+		try {
+			startServer(VIRTUAL_PORT, "server.mode=nio", "server.executor=virtual");
+			client.connect();
+			checkPipelined(client, "niovirtual", 200);
+		} catch (Exception e) {
+			ex = e;
+		} finally {
+			client.disconnect();
+		}
+
+		assertNull(ex);
+	}
+
+	/* sends puts, a scan and gets without waiting and checks that every
+	 * response answers its request
+	 */
+	private void checkPipelined(KVStore client, String prefix, int count) throws Exception {
+		List<Future<KVMessage>> puts = new ArrayList<Future<KVMessage>>();
+		for (int i = 0; i < count; i++) {
+			puts.add(client.putAsync(prefix + i, "value" + i));
+		}
+		Future<ScanPage> scan = client.scanAsync(prefix + "1", prefix + "2", count);
+		List<Future<KVMessage>> gets = new ArrayList<Future<KVMessage>>();
+		for (int i = 0; i < count; i++) {
+			gets.add(client.getAsync(prefix + i));
+		}
+
+		for (int i = 0; i < count; i++) {
+			KVMessage put = puts.get(i).get();
+			assertEquals(prefix + i, put.getKey());
+			assertTrue(put.getStatus() == StatusType.PUT_SUCCESS
+					|| put.getStatus() == StatusType.PUT_UPDATE);
+			KVMessage get = gets.get(i).get();
+			assertEquals(StatusType.GET_SUCCESS, get.getStatus());
+			assertEquals("value" + i, get.getValue());
+		}
+		/* keys 1, 10 to 19 and 100 to 199 */
+		assertEquals(111, scan.get().getEntries().size());
+	}
+
+	/* writes the bytes in pieces cut at the given offsets, pausing between
+	 * them so the server reads every piece on its own
+	 */
+	private void writeInPieces(Socket socket, byte[] bytes, int... cuts) throws Exception {
+		OutputStream out = socket.getOutputStream();
+		int start = 0;
+		for (int cut : cuts) {
+			out.write(bytes, start, cut - start);
+			out.flush();
+			Thread.sleep(100);
+			start = cut;
+		}
+		out.write(bytes, start, bytes.length - start);
+		out.flush();
+	}
+
+	private byte[] concat(byte[] first, byte[] second) {
+		byte[] bytes = new byte[first.length + second.length];
+		System.arraycopy(first, 0, bytes, 0, first.length);
+		System.arraycopy(second, 0, bytes, first.length, second.length);
+		return bytes;
+	}
+}